@@ -0,0 +1,54 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.benchmark;
+
+import static net.hydromatic.resource.Resources.*;
+
+/**
+ * Resource interface used by the benchmarks.
+ *
+ * <p>Messages for {@link #hello(String, int)} and {@link #bad(String)} are
+ * in {@code BenchResource.properties}; {@link #onlyInClass(String)} is not,
+ * so looking it up is a miss.
+ */
+public interface BenchResource {
+  @BaseMessage("hello, {0}; you are {1,number} years old")
+  Inst hello(String name, int age);
+
+  @BaseMessage("goodbye")
+  Inst goodbye();
+
+  @BaseMessage("only in class {0}")
+  Inst onlyInClass(String s);
+
+  @BaseMessage("bad value {0}")
+  ExInst<IllegalArgumentException> bad(String s);
+
+  @BaseMessage("failed with cause {0}")
+  ExInstWithCause<IllegalStateException> failed(String s);
+
+  @Default("10")
+  IntProp maximumAge();
+
+  @Default("chocolate")
+  StringProp flavor();
+
+  @Default("false")
+  BooleanProp featureFlag();
+}
+
+// End BenchResource.java
@@ -0,0 +1,57 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static net.hydromatic.resource.Resources.*;
+
+/**
+ * Benchmarks for loading a {@link ShadowResourceBundle}.
+ *
+ * <p>The benchmarks construct bundles directly, bypassing the cache in
+ * {@link java.util.ResourceBundle#getBundle}, so that every operation reads
+ * and parses the properties files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleBenchmark {
+  /** Loads a bundle that has no parent. */
+  @Benchmark public ShadowResourceBundle load() throws IOException {
+    return new BenchBundle();
+  }
+
+  /** Loads a bundle and its parent. */
+  @Benchmark public ShadowResourceBundle loadWithParent()
+      throws IOException {
+    return new BenchBundle_fr();
+  }
+}
+
+// End BundleBenchmark.java
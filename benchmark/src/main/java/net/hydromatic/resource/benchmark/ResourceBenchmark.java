@@ -0,0 +1,160 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import net.hydromatic.resource.Resources;
+
+import static net.hydromatic.resource.Resources.*;
+
+/**
+ * Benchmarks for the hot paths of {@link Resources}: calling a method of a
+ * resource interface, formatting and looking up messages, creating
+ * exceptions, and reading properties.
+ *
+ * <p>Each benchmark measures one operation on objects created in
+ * {@link #setup()}, so that, for example, {@link #str()} does not include
+ * the cost of {@link #dispatch()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceBenchmark {
+  private static final String BASE = BenchResource.class.getName();
+  private static final EnumSet<Validation> VALIDATIONS =
+      EnumSet.complementOf(
+          EnumSet.of(Validation.BUNDLE_HAS_RESOURCE,
+              Validation.MESSAGE_MATCH));
+
+  private BenchResource resource;
+  private BenchResource propertiesResource;
+  private Inst hello;
+  private Inst onlyInClass;
+  private ExInst<IllegalArgumentException> bad;
+  private ExInstWithCause<IllegalStateException> failed;
+  private IntProp maximumAge;
+  private StringProp flavor;
+  private BooleanProp featureFlag;
+  private BooleanProp snapshotFeatureFlag;
+  private Throwable cause;
+
+  @Setup public void setup() {
+    resource = Resources.create(BASE, BenchResource.class);
+    final Properties properties = new Properties();
+    properties.setProperty("MaximumAge", "20");
+    properties.setProperty("Flavor", "vanilla");
+    propertiesResource = Resources.create(properties, BenchResource.class);
+    hello = resource.hello("world", 42);
+    onlyInClass = resource.onlyInClass("x");
+    bad = resource.bad("x");
+    failed = resource.failed("x");
+    maximumAge = propertiesResource.maximumAge();
+    flavor = propertiesResource.flavor();
+    properties.setProperty("FeatureFlag", "true");
+    featureFlag = propertiesResource.featureFlag();
+    snapshotFeatureFlag =
+        Resources.create(
+            SnapshotPropertyAccessor.of(properties, BenchResource.class),
+            BenchResource.class).featureFlag();
+    cause = new RuntimeException("cause");
+  }
+
+  /** Calls a method of the resource interface, which creates an
+   * {@link Inst}. */
+  @Benchmark public Inst dispatch() {
+    return resource.hello("world", 42);
+  }
+
+  /** Calls a method that has no arguments. */
+  @Benchmark public Inst dispatchNoArgs() {
+    return resource.goodbye();
+  }
+
+  /** Formats a message that is in the resource bundle. */
+  @Benchmark public String str() {
+    return hello.str();
+  }
+
+  /** Looks up a message that is in the resource bundle. */
+  @Benchmark public String rawHit() {
+    return hello.raw();
+  }
+
+  /** Looks up a message that is not in the resource bundle, and so falls
+   * back to the base message. */
+  @Benchmark public String rawMiss() {
+    return onlyInClass.raw();
+  }
+
+  /** Creates an exception without a cause. */
+  @Benchmark public Exception ex() {
+    return bad.ex();
+  }
+
+  /** Creates an exception with a cause. */
+  @Benchmark public Exception exWithCause() {
+    return failed.ex(cause);
+  }
+
+  /** Reads an integer property. */
+  @Benchmark public int intPropGet() {
+    return maximumAge.get();
+  }
+
+  /** Reads a string property. */
+  @Benchmark public String stringPropGet() {
+    return flavor.get();
+  }
+
+  /** Reads a boolean property from a {@link Properties}. */
+  @Benchmark public boolean booleanPropGet() {
+    return featureFlag.get();
+  }
+
+  /** Reads a boolean property from a {@link SnapshotPropertyAccessor}; the
+   * property caches the value. */
+  @Benchmark public boolean booleanPropGetSnapshot() {
+    return snapshotFeatureFlag.get();
+  }
+
+  /** Validates every resource in the interface. Skips the checks that each
+   * resource is in the bundle with the same message, because
+   * {@link BenchResource#onlyInClass} deliberately is not. */
+  @Benchmark public BenchResource validate() {
+    Resources.validate(resource, VALIDATIONS);
+    return resource;
+  }
+}
+
+// End ResourceBenchmark.java
@@ -0,0 +1,38 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/** Source that fetches the values of many properties in one call, such
+ * as a configuration service or a database table.
+ *
+ * @see CachingPropertyAccessor */
+public interface BatchPropertySource {
+  /** Fetches the values of some properties.
+   *
+   * @param keys Keys of the properties to fetch
+   * @return Values of the properties that are defined; a key that is not
+   * in the map is not set
+   * @throws IOException if the values cannot be fetched
+   */
+  Map<String, String> fetch(Set<String> keys) throws IOException;
+}
+
+// End BatchPropertySource.java
@@ -0,0 +1,269 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Property accessor that fetches properties from a
+ * {@link BatchPropertySource} and caches them.
+ *
+ * <p>When the accessor is created, it fetches the values of all
+ * properties declared in an interface in one call, and stores them in a
+ * {@link Resources.SnapshotPropertyAccessor}. Reading a property never
+ * calls the source, and does not look at the clock; it reads the current
+ * snapshot.
+ * A daemon thread fetches the values again every {@code ttlMillis}
+ * milliseconds, and readers continue to see the cached values until the
+ * fetch has finished. If the fetch fails, the accessor keeps the previous
+ * values, records the error (see {@link #lastError()}), and tries again
+ * after another {@code ttlMillis} milliseconds.
+ *
+ * <p>A new snapshot is published only if some value has changed, so
+ * properties keep their cached values across a refresh that changes
+ * nothing. */
+public class CachingPropertyAccessor
+    implements Resources.ObservablePropertyAccessor,
+    Resources.TypedPropertyAccessor, Closeable {
+  private final Class<?> clazz;
+  private final BatchPropertySource source;
+  private final Set<String> keys;
+  /** Executor that fetches values, or null to fetch in the timer's
+   * thread. */
+  private final Executor executor;
+  /** Thread that starts a refresh every {@code ttlMillis}
+   * milliseconds. */
+  private final ScheduledExecutorService timer;
+  private volatile Resources.SnapshotPropertyAccessor snapshot;
+  private volatile Throwable lastError;
+  /** Whether a refresh has been given to the executor and has not
+   * finished. */
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private final Resources.Subscribers subscribers = new Resources.Subscribers();
+
+  private final Runnable task = new Runnable() {
+    public void run() {
+      try {
+        refresh();
+      } finally {
+        refreshing.set(false);
+      }
+    }
+  };
+
+  private CachingPropertyAccessor(Class<?> clazz,
+      BatchPropertySource source, long ttlMillis, Executor executor)
+      throws IOException {
+    this.clazz = clazz;
+    this.source = source;
+    this.executor = executor;
+    final Set<String> keys = new TreeSet<String>();
+    for (Method method : Resources.propertyMethods(clazz)) {
+      keys.add(Resources.MethodInfo.of(method).key);
+    }
+    this.keys = Collections.unmodifiableSet(keys);
+    this.snapshot = load();
+    this.timer = Resources.schedule("CachingPropertyAccessor", ttlMillis,
+        new Runnable() {
+          public void run() {
+            expire();
+          }
+        });
+  }
+
+  /** Called by the timer every {@code ttlMillis} milliseconds. */
+  private void expire() {
+    if (executor == null) {
+      refresh();
+    } else if (refreshing.compareAndSet(false, true)) {
+      // Do not queue another refresh while one is waiting or running.
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        refreshing.set(false);
+      }
+    }
+  }
+
+  /** Creates an accessor that fetches the properties declared in an
+   * interface, and refreshes them in a daemon thread.
+   *
+   * @param clazz Interface that declares properties
+   * @param source Source of property values
+   * @param ttlMillis How long, in milliseconds, values are used before
+   * they are fetched again
+   * @return Accessor
+   * @throws IOException if the values cannot be fetched
+   * @throws IllegalArgumentException if a value is not valid for its
+   * property's type
+   */
+  public static CachingPropertyAccessor of(Class<?> clazz,
+      BatchPropertySource source, long ttlMillis) throws IOException {
+    return new CachingPropertyAccessor(clazz, source, ttlMillis, null);
+  }
+
+  /** Creates an accessor that fetches the properties declared in an
+   * interface, and refreshes them using a given executor. A daemon thread
+   * gives the executor a refresh every {@code ttlMillis} milliseconds,
+   * unless the previous one has not finished.
+   *
+   * @param clazz Interface that declares properties
+   * @param source Source of property values
+   * @param ttlMillis How long, in milliseconds, values are used before
+   * they are fetched again
+   * @param executor Executor that fetches values after they expire
+   * @return Accessor
+   * @throws IOException if the values cannot be fetched
+   * @throws IllegalArgumentException if a value is not valid for its
+   * property's type
+   */
+  public static CachingPropertyAccessor of(Class<?> clazz,
+      BatchPropertySource source, long ttlMillis, Executor executor)
+      throws IOException {
+    return new CachingPropertyAccessor(clazz, source, ttlMillis,
+        executor);
+  }
+
+  private Resources.SnapshotPropertyAccessor load() throws IOException {
+    final Map<String, String> values = source.fetch(keys);
+    return Resources.SnapshotPropertyAccessor.of(values, clazz);
+  }
+
+  /** Fetches the values now, in the current thread.
+   *
+   * @return whether a new snapshot was published; false if no value has
+   * changed, or if the fetch failed
+   */
+  public synchronized boolean refresh() {
+    try {
+      final Resources.SnapshotPropertyAccessor newSnapshot = load();
+      lastError = null;
+      final Resources.SnapshotPropertyAccessor previous = snapshot;
+      if (newSnapshot.values.equals(previous.values)) {
+        return false;
+      }
+      snapshot = newSnapshot;
+      subscribers.fire(previous.values, newSnapshot.values);
+      return true;
+    } catch (IOException e) {
+      lastError = e;
+    } catch (RuntimeException e) {
+      lastError = e;
+    }
+    return false;
+  }
+
+  /** Subscribes to changes in the values of properties. Listeners are
+   * called after each refresh that changes a value that they are
+   * interested in. */
+  public Resources.Subscription subscribe(Resources.PropertyListener listener,
+      Executor executor, Resources.Prop... props) {
+    return subscribers.subscribe(listener, executor, props);
+  }
+
+  /** Returns the keys that are fetched from the source: the keys of the
+   * properties declared in the interface. */
+  public Set<String> keys() {
+    return keys;
+  }
+
+  /** Returns the error from the most recent fetch, or null if it
+   * succeeded. */
+  public Throwable lastError() {
+    return lastError;
+  }
+
+  /** Returns the current snapshot. */
+  public Resources.SnapshotPropertyAccessor snapshot() {
+    return snapshot;
+  }
+
+  /** Stops the background thread. Values are no longer refreshed,
+   * unless you call {@link #refresh()}. */
+  public void close() {
+    timer.shutdownNow();
+  }
+
+  /** Returns the current snapshot, which is replaced when a refresh
+   * changes a value. */
+  public Object version() {
+    return snapshot;
+  }
+
+  public boolean isSet(Resources.Prop p) {
+    return snapshot.isSet(p);
+  }
+
+  public int intValue(Resources.IntProp p) {
+    return snapshot.intValue(p);
+  }
+
+  public int intValue(Resources.IntProp p, int defaultValue) {
+    return snapshot.intValue(p, defaultValue);
+  }
+
+  public String stringValue(Resources.StringProp p) {
+    return snapshot.stringValue(p);
+  }
+
+  public String stringValue(Resources.StringProp p, String defaultValue) {
+    return snapshot.stringValue(p, defaultValue);
+  }
+
+  public boolean booleanValue(Resources.BooleanProp p) {
+    return snapshot.booleanValue(p);
+  }
+
+  public boolean booleanValue(Resources.BooleanProp p, boolean defaultValue) {
+    return snapshot.booleanValue(p, defaultValue);
+  }
+
+  public double doubleValue(Resources.DoubleProp p) {
+    return snapshot.doubleValue(p);
+  }
+
+  public double doubleValue(Resources.DoubleProp p, double defaultValue) {
+    return snapshot.doubleValue(p, defaultValue);
+  }
+
+  public long longValue(Resources.LongProp p) {
+    return snapshot.longValue(p);
+  }
+
+  public long longValue(Resources.LongProp p, long defaultValue) {
+    return snapshot.longValue(p, defaultValue);
+  }
+
+  public <T> T objectValue(Resources.ObjectProp<T> p) {
+    return snapshot.objectValue(p);
+  }
+
+  public <T> T objectValue(Resources.ObjectProp<T> p, T defaultValue) {
+    return snapshot.objectValue(p, defaultValue);
+  }
+}
+
+// End CachingPropertyAccessor.java
@@ -0,0 +1,221 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Finds the binary catalogs of bundles, written by the "compile-catalogs"
+ * goal of hydromatic-resource-maven-plugin.
+ *
+ * <p>A catalog is a {@link StringTable} in a resource whose name is given
+ * by {@link #catalogName}. If the resource is a file, it is mapped into
+ * memory; otherwise (for example, if it is in a JAR file) it is read into a
+ * direct buffer. Either way, a message is decoded only when it is used.
+ *
+ * <p>If a bundle is huge, its catalog may be split into shards, which are
+ * in resources whose names are given by {@link #shardName}; the
+ * {@link ShardIndex} in the resource named by {@link #shardIndexName} says
+ * which shard holds each key. Each shard is loaded the first time one of
+ * its messages is used.
+ *
+ * <p>{@link Resources.MessageTable} uses this class, unless told otherwise,
+ * if it is in the same package as {@link Resources}.
+ *
+ * @see Resources.MessageTable#setCatalogFinder */
+public class Catalogs implements Resources.CatalogFinder {
+  public Resources.Catalog find(String base, List<Locale> locales,
+      ClassLoader loader) {
+    for (Locale locale : locales) {
+      final URL url = loader.getResource(catalogName(base, locale));
+      if (url != null) {
+        return read(url);
+      }
+    }
+    return Shards.find(base, locales, loader);
+  }
+
+  public List<String> resourceNames(String base, List<Locale> locales,
+      ClassLoader loader) {
+    final List<String> names = new ArrayList<String>();
+    names.add(shardIndexName(base));
+    for (Locale locale : locales) {
+      names.add(catalogName(base, locale));
+      for (int shard = 0;; shard++) {
+        final String name = shardName(base, locale, shard);
+        if (loader.getResource(name) == null) {
+          break;
+        }
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  /** Returns the name of the resource that holds the catalog of a
+   * bundle for a given locale; for example,
+   * "com/example/MyResource_fr_FR.catalog".
+   *
+   * @param base Base name of the bundle
+   * @param locale Locale
+   * @return Resource name
+   */
+  public static String catalogName(String base, Locale locale) {
+    final String suffix = locale.toString();
+    return base.replace('.', '/')
+        + (suffix.length() == 0 ? "" : "_" + suffix)
+        + ".catalog";
+  }
+
+  /** Returns the name of the resource that holds the index of a sharded
+   * bundle; for example, "com/example/MyResource.shards".
+   *
+   * @param base Base name of the bundle
+   * @return Resource name
+   *
+   * @see ShardIndex
+   */
+  public static String shardIndexName(String base) {
+    return base.replace('.', '/') + ".shards";
+  }
+
+  /** Returns the name of the resource that holds a shard of the catalog
+   * of a bundle for a given locale; for example,
+   * "com/example/MyResource_fr_FR.3.catalog".
+   *
+   * @param base Base name of the bundle
+   * @param locale Locale
+   * @param shard Shard number
+   * @return Resource name
+   */
+  public static String shardName(String base, Locale locale, int shard) {
+    final String suffix = locale.toString();
+    return base.replace('.', '/')
+        + (suffix.length() == 0 ? "" : "_" + suffix)
+        + "." + shard + ".catalog";
+  }
+
+  /** Reads a catalog. If it is a file, maps it into memory; otherwise reads
+   * it into a direct buffer. */
+  static StringTable read(URL url) {
+    try {
+      if (url.getProtocol().equals("file")) {
+        return StringTable.map(new File(url.toURI()));
+      }
+      final InputStream in = url.openStream();
+      try {
+        return StringTable.read(in, url.toString());
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("could not read catalog " + url, e);
+    } catch (URISyntaxException e) {
+      throw new RuntimeException("could not read catalog " + url, e);
+    }
+  }
+
+  /** Catalog of a bundle that is split into shards. A shard is loaded the
+   * first time one of its messages is requested. */
+  public static class Shards implements Resources.Catalog {
+    private final String base;
+    private final Locale locale;
+    private final ShardIndex index;
+    private final WeakReference<ClassLoader> loader;
+    private final AtomicReferenceArray<StringTable> tables;
+
+    private Shards(String base, Locale locale, ShardIndex index,
+        ClassLoader loader) {
+      this.base = base;
+      this.locale = locale;
+      this.index = index;
+      this.loader = new WeakReference<ClassLoader>(loader);
+      this.tables = new AtomicReferenceArray<StringTable>(index.count());
+    }
+
+    /** Reads the index of a sharded bundle, and finds the first of a list
+     * of locales that has shards; returns null if the bundle is not
+     * sharded. */
+    static Shards find(String base, List<Locale> candidates,
+        ClassLoader loader) {
+      final URL url = loader.getResource(shardIndexName(base));
+      if (url == null) {
+        return null;
+      }
+      final ShardIndex index;
+      try {
+        final InputStream in = url.openStream();
+        try {
+          index = ShardIndex.read(in, url.toString());
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("could not read shard index " + url, e);
+      }
+      for (Locale candidate : candidates) {
+        if (loader.getResource(shardName(base, candidate, 0)) != null) {
+          return new Shards(base, candidate, index, loader);
+        }
+      }
+      return null;
+    }
+
+    public String get(String key) {
+      final int shard = index.shard(key);
+      StringTable table = tables.get(shard);
+      if (table == null) {
+        final String name = shardName(base, locale, shard);
+        final ClassLoader loader = this.loader.get();
+        if (loader == null) {
+          throw new IllegalStateException("class loader of bundle " + base
+              + " has been unloaded");
+        }
+        final URL url = loader.getResource(name);
+        if (url == null) {
+          throw new RuntimeException("missing shard " + name);
+        }
+        table = read(url);
+        if (!tables.compareAndSet(shard, null, table)) {
+          table = tables.get(shard);
+        }
+      }
+      return table.get(key);
+    }
+
+    /** Returns the number of shards that have been loaded. */
+    public int loadedCount() {
+      int n = 0;
+      for (int i = 0; i < tables.length(); i++) {
+        if (tables.get(i) != null) {
+          ++n;
+        }
+      }
+      return n;
+    }
+  }
+}
+
+// End Catalogs.java
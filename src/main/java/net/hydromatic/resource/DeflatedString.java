@@ -0,0 +1,123 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Sequence of characters held compressed.
+ *
+ * <p>The characters are encoded in ISO-8859-1, if possible, otherwise in
+ * UTF-8, and then compressed. {@link #toString()} inflates and decodes them
+ * each time it is called.
+ *
+ * <p>To make message tables compress long messages, call
+ *
+ * <blockquote><pre>MessageTable.setCompaction(512, DeflatedString.COMPACTOR);
+ * </pre></blockquote>
+ *
+ * @see Resources.MessageTable#setCompaction(int, Resources.Compactor) */
+public final class DeflatedString {
+  /** Compactor that compresses a message, if that reduces its size. */
+  public static final Resources.Compactor COMPACTOR =
+      new Resources.Compactor() {
+        public Object compact(String message) {
+          final Object o = of(message);
+          return o != null ? o : Resources.CompactString.of(message);
+        }
+      };
+
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final byte[] bytes;
+  private final boolean latin1;
+  /** Number of bytes before compression. */
+  private final int rawLength;
+  /** Hash code of the string. */
+  private final int hash;
+
+  private DeflatedString(byte[] bytes, boolean latin1, int rawLength,
+      int hash) {
+    this.bytes = bytes;
+    this.latin1 = latin1;
+    this.rawLength = rawLength;
+    this.hash = hash;
+  }
+
+  /** Compresses a string, or returns null if compression does not reduce
+   * its size.
+   *
+   * @param s String
+   * @return Compressed string, or null
+   */
+  public static DeflatedString of(String s) {
+    final boolean latin1 = Resources.CompactString.isLatin1(s);
+    final byte[] raw = s.getBytes(latin1 ? ISO_8859_1 : UTF_8);
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+      final byte[] buf = new byte[raw.length];
+      final int n = deflater.deflate(buf);
+      if (deflater.finished() && n < raw.length) {
+        return new DeflatedString(Arrays.copyOf(buf, n), latin1, raw.length,
+            s.hashCode());
+      }
+      return null;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Returns the number of bytes used to hold the characters. */
+  public int byteCount() {
+    return bytes.length;
+  }
+
+  @Override public String toString() {
+    final byte[] raw = new byte[rawLength];
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(bytes);
+      inflater.inflate(raw);
+    } catch (DataFormatException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      inflater.end();
+    }
+    return new String(raw, latin1 ? ISO_8859_1 : UTF_8);
+  }
+
+  @Override public int hashCode() {
+    return hash;
+  }
+
+  @Override public boolean equals(Object obj) {
+    return this == obj
+        || obj instanceof DeflatedString
+        && hash == ((DeflatedString) obj).hash
+        && latin1 == ((DeflatedString) obj).latin1
+        && rawLength == ((DeflatedString) obj).rawLength
+        && Arrays.equals(bytes, ((DeflatedString) obj).bytes);
+  }
+}
+
+// End DeflatedString.java
@@ -0,0 +1,223 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+/** Property accessor that reads from a memory-mapped configuration file.
+ *
+ * <p>Several processes on the same host can share one configuration file;
+ * each maps the file read-only, so the operating system keeps one copy of
+ * it in memory, and a process reads only the pages that contain the
+ * properties it uses. Use {@link #publish(File, Map)} to write a new
+ * version of the file; it writes a temporary file and renames it over
+ * the old file, so that readers see either the old or the new version.
+ * Readers that have mapped the old file continue to use it until they
+ * call {@link #refresh()}, or until their background thread (see
+ * {@link #start(long)}) notices the new version. A refresh looks at the
+ * file's modification time and length, and if they have changed, reads
+ * the version in its header; it maps the file only if the version has
+ * changed.
+ *
+ * <p>The file is a {@link StringTable}, whose version is incremented each
+ * time the file is published.
+ *
+ * <p>A value is decoded each time it is read, unless the property caches
+ * it, which properties do while the {@link #version()} is unchanged. */
+public class MappedPropertyAccessor extends Resources.StringPropertyAccessor
+    implements Resources.ObservablePropertyAccessor, Closeable {
+  private final File file;
+  private volatile StringTable table;
+  /** Modification time and length of the file when it was last checked;
+   * guarded by {@code this}. */
+  private long lastModified;
+  private long length;
+  private int mapCount;
+  private volatile Throwable lastError;
+  private ScheduledExecutorService executor;
+  private final Resources.Subscribers subscribers = new Resources.Subscribers();
+
+  private MappedPropertyAccessor(File file) throws IOException {
+    this.file = file;
+    this.lastModified = file.lastModified();
+    this.length = file.length();
+    this.table = StringTable.map(file);
+    this.mapCount = 1;
+  }
+
+  /** Creates an accessor that reads from a configuration file.
+   *
+   * @param file Configuration file, written by {@link #publish}
+   * @return Accessor
+   * @throws IOException if the file cannot be read or is not a
+   * configuration file
+   */
+  public static MappedPropertyAccessor of(File file) throws IOException {
+    return new MappedPropertyAccessor(file);
+  }
+
+  /** Writes a new version of a configuration file.
+   *
+   * <p>Writes the contents to a temporary file in the same directory,
+   * and renames it to {@code file}. On file systems where renaming over
+   * an existing file is not possible, deletes the existing file first;
+   * then readers that start in the meantime will not find the file.
+   *
+   * @param file Configuration file
+   * @param values Property values
+   * @return Version of the new file
+   */
+  public static long publish(File file, Map<String, String> values)
+      throws IOException {
+    long version = 1;
+    if (file.exists()) {
+      try {
+        version = StringTable.readVersion(file) + 1;
+      } catch (IOException e) {
+        // Existing file is not valid; start again at version 1.
+      }
+    }
+    final File dir = file.getAbsoluteFile().getParentFile();
+    final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+    try {
+      final FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        final OutputStream out = new BufferedOutputStream(fos);
+        StringTable.write(out, version, values);
+        out.flush();
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+      if (!tmp.renameTo(file)) {
+        if (!file.delete() || !tmp.renameTo(file)) {
+          throw new IOException("could not rename " + tmp + " to " + file);
+        }
+      }
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      tmp.delete();
+    }
+    return version;
+  }
+
+  /** Maps the file again if it has been replaced by a new version.
+   *
+   * @return whether a new version was mapped
+   */
+  public synchronized boolean refresh() {
+    final long newLastModified = file.lastModified();
+    final long newLength = file.length();
+    if (newLastModified == lastModified && newLength == length) {
+      return false;
+    }
+    try {
+      final StringTable current = table;
+      if (StringTable.readVersion(file) == current.version()) {
+        // The file was touched or copied, but it is the same version.
+        // Remember its new time and length, so that the next refresh
+        // does not read it again.
+        lastModified = newLastModified;
+        length = newLength;
+        lastError = null;
+        return false;
+      }
+      final StringTable newTable = StringTable.map(file);
+      ++mapCount;
+      lastModified = newLastModified;
+      length = newLength;
+      lastError = null;
+      if (newTable.version() == current.version()) {
+        return false;
+      }
+      table = newTable;
+      if (!subscribers.isEmpty()) {
+        subscribers.fire(current.toMap(), newTable.toMap());
+      }
+      return true;
+    } catch (IOException e) {
+      lastError = e;
+      return false;
+    }
+  }
+
+  /** Returns the number of times that the file has been mapped. */
+  public synchronized int mapCount() {
+    return mapCount;
+  }
+
+  /** Returns the error from the most recent refresh, or null if it
+   * succeeded. */
+  public Throwable lastError() {
+    return lastError;
+  }
+
+  /** Returns the version of the file that is currently mapped. */
+  public long fileVersion() {
+    return table.version();
+  }
+
+  /** Subscribes to changes in the values of properties. Listeners are
+   * called after each {@link #refresh()} that maps a new version of the
+   * file in which a value that they are interested in has changed. */
+  public Resources.Subscription subscribe(Resources.PropertyListener listener,
+      Executor executor, Resources.Prop... props) {
+    return subscribers.subscribe(listener, executor, props);
+  }
+
+  /** Starts a daemon thread that calls {@link #refresh()} every
+   * {@code periodMillis} milliseconds. */
+  public synchronized void start(long periodMillis) {
+    if (executor != null) {
+      throw new IllegalStateException("already started");
+    }
+    executor = Resources.schedule("MappedPropertyAccessor", periodMillis,
+        new Runnable() {
+          public void run() {
+            refresh();
+          }
+        });
+  }
+
+  /** Stops the background thread, if any. */
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /** Returns the current table, which is replaced when a new version of
+   * the file is mapped. */
+  public Object version() {
+    return table;
+  }
+
+  protected String get(String key) {
+    return table.get(key);
+  }
+}
+
+// End MappedPropertyAccessor.java
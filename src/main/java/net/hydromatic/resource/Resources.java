@@ -16,17 +16,36 @@
  */
 package net.hydromatic.resource;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
 import java.text.*;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Defining wrapper classes around resources that allow the compiler to check
@@ -43,6 +62,8 @@ public class Resources {
   private static final ThreadLocal<Locale> MAP_THREAD_TO_LOCALE =
       new ThreadLocal<Locale>();
 
+  private static final Object[] NO_ARGS = {};
+
   private Resources() {}
 
   /** Returns the preferred locale of the current thread, or
@@ -94,7 +115,10 @@ public static <T> T create(Class<T> clazz) {
    * {@link ExInst} values. Each of those methods is basically a factory method.
    *
    * <p>This method creates an instance of that interface backed by a resource
-   * bundle, using a dynamic proxy ({@link Proxy}).
+   * bundle. If the annotation processor
+   * ({@code net.hydromatic.resource.processor.ResourceProcessor}) has
+   * generated an implementation of the interface, uses that; otherwise uses a
+   * dynamic proxy ({@link Proxy}).
    *
    * <p>Suppose that base = "com.example.MyResource" and the current locale is
    * "en_US". A method
@@ -129,66 +153,60 @@ public static <T> T create(PropertyAccessor accessor, Class<T> clazz) {
   }
 
   /** Creates an instance of the resource object that can access properties
-   * but not resources. */
+   * but not resources.
+   *
+   * <p>The properties may change at any time, so each call to a property's
+   * {@code get()} method looks up and parses the value again; the accessor is
+   * not a {@link VersionedPropertyAccessor}, and property values are not
+   * cached. For values that are parsed once, and cached until they change,
+   * use {@link SnapshotPropertyAccessor} or
+   * {@link ReloadingPropertyAccessor}. */
   public static <T> T create(final Properties properties, Class<T> clazz) {
     return create(null, new PropertiesAccessor(properties), clazz);
   }
 
   private static <T> T create(final String base,
       final PropertyAccessor accessor, Class<T> clazz) {
+    final T t = createGenerated(base, accessor, clazz);
+    if (t != null) {
+      return t;
+    }
     //noinspection unchecked
     return (T) Proxy.newProxyInstance(clazz.getClassLoader(),
-        new Class[] {clazz},
-        new InvocationHandler() {
-          final Map<String, Object> cache =
-              new ConcurrentHashMap<String, Object>();
-
-          public Object invoke(Object proxy, Method method, Object[] args)
-              throws Throwable {
-            if (args == null || args.length == 0) {
-              Object o = cache.get(method.getName());
-              if (o == null) {
-                o = create(method, args);
-                cache.put(method.getName(), o);
-              }
-              return o;
-            }
-            return create(method, args);
-          }
+        new Class[] {clazz}, new Handler(base, accessor, clazz));
+  }
 
-          private Object create(Method method, Object[] args)
-              throws NoSuchMethodException, InstantiationException,
-              IllegalAccessException, InvocationTargetException {
-            if (method.equals(BuiltinMethod.OBJECT_TO_STRING.method)) {
-              return toString();
-            }
-            final Class<?> returnType = method.getReturnType();
-            try {
-              if (Inst.class.isAssignableFrom(returnType)) {
-                final Constructor<?> constructor =
-                    returnType.getConstructor(String.class, Locale.class,
-                        Method.class, Object[].class);
-                final Locale locale = Resources.getThreadOrDefaultLocale();
-                return constructor.newInstance(base, locale, method,
-                    args != null ? args : new Object[0]);
-              } else {
-                final Constructor<?> constructor =
-                    returnType.getConstructor(PropertyAccessor.class,
-                        Method.class);
-                return constructor.newInstance(accessor, method);
-              }
-            } catch (InvocationTargetException e) {
-              final Throwable e2 = e.getTargetException();
-              if (e2 instanceof RuntimeException) {
-                throw (RuntimeException) e2;
-              }
-              if (e2 instanceof Error) {
-                throw (Error) e2;
-              }
-              throw e;
-            }
-          }
-        });
+  /** Creates an instance of the class generated for a resource interface by
+   * the annotation processor, or returns null if there is no such class.
+   *
+   * <p>For interface {@code com.example.Outer.MyResource}, the generated
+   * class is {@code com.example.Outer_MyResourceImpl}. */
+  private static <T> T createGenerated(String base, PropertyAccessor accessor,
+      Class<T> clazz) {
+    final Class<?> implClass;
+    try {
+      implClass = Class.forName(clazz.getName().replace('$', '_') + "Impl",
+          true, clazz.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+    if (!clazz.isAssignableFrom(implClass)) {
+      return null;
+    }
+    try {
+      final Constructor<?> constructor =
+          implClass.getConstructor(String.class, PropertyAccessor.class);
+      return clazz.cast(constructor.newInstance(base, accessor));
+    } catch (NoSuchMethodException e) {
+      // Generated for a different copy of Resources; use a proxy.
+      return null;
+    } catch (InstantiationException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (InvocationTargetException e) {
+      throw new RuntimeException(e.getCause());
+    }
   }
 
   /** Applies all validations to all resource methods in the given
@@ -254,20 +272,689 @@ private static boolean equal(Object o0, Object o1) {
   /** Element in a resource (either a resource or a property). */
   public static class Element {
     protected final Method method;
+    protected final MethodInfo info;
     protected final String key;
 
     public Element(Method method) {
-      this.method = method;
+      this(MethodInfo.of(method));
+    }
+
+    public Element(MethodInfo info) {
+      this.method = info.method;
+      this.info = info;
       this.key = deriveKey();
     }
 
     protected String deriveKey() {
+      return info.key;
+    }
+
+    /** Returns the information about the method that created this
+     * element; all elements created by the same resource object for the same
+     * method share it. */
+    public MethodInfo info() {
+      return info;
+    }
+  }
+
+  /** Information about a resource or property method that is derived from
+   * its name, annotations and signature.
+   *
+   * <p>A resource proxy, or a class generated by
+   * {@code net.hydromatic.resource.processor.ResourceProcessor}, computes it
+   * once for each method of its interface, keeps it, and passes it to the
+   * constructor of each {@link Inst} or {@link Prop}, so that constructing
+   * one does not need to read annotations, parse default values, or look
+   * anything up.
+   *
+   * <p>The constructors that take a {@link Method} call {@link #of(Method)},
+   * which looks the information up in a table for the method's declaring
+   * class. The table does not prevent the class, or its class loader, from
+   * being garbage-collected. */
+  public static class MethodInfo {
+    /** Table of information about the methods of each class. Keys are
+     * weak, so that a class can be unloaded; values are soft, because each
+     * MethodInfo references its method, and so its class, and a strong
+     * value would keep the key alive. Guarded by itself. */
+    private static final Map<Class<?>,
+        SoftReference<ConcurrentMap<Method, MethodInfo>>> TABLES =
+        new WeakHashMap<Class<?>,
+            SoftReference<ConcurrentMap<Method, MethodInfo>>>();
+
+    /** Key of the resource or property; the value of the {@link Resource}
+     * annotation, or derived from the method name. Interned. */
+    public final String key;
+
+    /** Value of the {@link BaseMessage} annotation, or null. */
+    public final String baseMessage;
+
+    /** Properties from the {@link Property} annotation; immutable. */
+    public final Map<String, String> properties;
+
+    /** Whether there is a {@link Default} annotation. */
+    public final boolean hasDefault;
+
+    /** Value of the {@link Default} annotation, converted to the type of the
+     * property; null if there is no default. */
+    public final Object defaultValue;
+
+    /** Maximum depth of the stack trace of exceptions created by this
+     * method, from the {@link Stackless} annotation; -1 if unlimited. */
+    public final int stackDepth;
+
+    /** Throttle for exceptions created by this method, from the
+     * {@link Throttle} annotation; null if there is no annotation. */
+    public final ExceptionThrottle throttle;
+
+    private final Class<?>[] parameterTypes;
+
+    /** Enum class, if this method returns an {@link EnumProp}. */
+    private final Class<?> elementClass;
+
+    /** Return type of the method. */
+    final Class<?> returnType;
+
+    /** Generic return type of the method. */
+    final Type genericReturnType;
+
+    private final Method method;
+    private volatile ExceptionFactory<?> exceptionFactory;
+
+    private MethodInfo(Method method) {
+      this.method = method;
       final Resource resource = method.getAnnotation(Resource.class);
       if (resource != null) {
-        return resource.value();
+        this.key = resource.value().intern();
       } else {
         final String name = method.getName();
-        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        this.key =
+            (Character.toUpperCase(name.charAt(0)) + name.substring(1))
+                .intern();
+      }
+      final BaseMessage baseMessage = method.getAnnotation(BaseMessage.class);
+      this.baseMessage = baseMessage == null ? null : baseMessage.value();
+      // At present, annotations allow at most one property per resource. We
+      // could design new annotations if any resource needed more.
+      final Property property = method.getAnnotation(Property.class);
+      this.properties = property == null
+          ? Collections.<String, String>emptyMap()
+          : Collections.singletonMap(property.name(), property.value());
+      final Default default_ = method.getAnnotation(Default.class);
+      this.hasDefault = default_ != null;
+      this.parameterTypes = method.getParameterTypes();
+      this.returnType = method.getReturnType();
+      this.genericReturnType = method.getGenericReturnType();
+      this.elementClass = elementClass(method);
+      this.defaultValue = default_ == null
+          ? null
+          : parse(default_.value());
+      Stackless stackless = method.getAnnotation(Stackless.class);
+      if (stackless == null) {
+        stackless = method.getDeclaringClass().getAnnotation(Stackless.class);
+      }
+      this.stackDepth = stackless == null ? -1 : Math.max(stackless.depth(), 0);
+      Throttle throttle = method.getAnnotation(Throttle.class);
+      if (throttle == null) {
+        throttle = method.getDeclaringClass().getAnnotation(Throttle.class);
+      }
+      this.throttle = throttle == null
+          ? null
+          : new ExceptionThrottle(throttle.windowMillis(), throttle.sample());
+    }
+
+    /** Returns the information about a method, computing it if it is not
+     * in the table of the method's declaring class.
+     *
+     * @param method Method
+     * @return Information about method
+     * @throws NumberFormatException if the method's default value is not
+     * valid for its type
+     */
+    public static MethodInfo of(Method method) {
+      final ConcurrentMap<Method, MethodInfo> table =
+          table(method.getDeclaringClass());
+      MethodInfo info = table.get(method);
+      if (info == null) {
+        info = new MethodInfo(method);
+        final MethodInfo info2 = table.putIfAbsent(method, info);
+        if (info2 != null) {
+          info = info2;
+        }
+      }
+      return info;
+    }
+
+    /** Returns the table of information about the methods of a class,
+     * creating it if necessary. */
+    private static ConcurrentMap<Method, MethodInfo> table(Class<?> clazz) {
+      synchronized (TABLES) {
+        final SoftReference<ConcurrentMap<Method, MethodInfo>> ref =
+            TABLES.get(clazz);
+        ConcurrentMap<Method, MethodInfo> table =
+            ref == null ? null : ref.get();
+        if (table == null) {
+          table = new ConcurrentHashMap<Method, MethodInfo>();
+          TABLES.put(clazz,
+              new SoftReference<ConcurrentMap<Method, MethodInfo>>(table));
+        }
+        return table;
+      }
+    }
+
+    /** Returns the method. */
+    public Method method() {
+      return method;
+    }
+
+    /** Returns the enum class of an {@link EnumProp} method, or null. */
+    private static Class<?> elementClass(Method method) {
+      if (!EnumProp.class.isAssignableFrom(method.getReturnType())) {
+        return null;
+      }
+      Type type = method.getGenericReturnType();
+      for (;;) {
+        if (type instanceof ParameterizedType) {
+          final ParameterizedType p = (ParameterizedType) type;
+          if (p.getRawType() == EnumProp.class) {
+            final Type arg = p.getActualTypeArguments()[0];
+            if (arg instanceof Class) {
+              return (Class<?>) arg;
+            }
+            break;
+          }
+          type = ((Class) p.getRawType()).getGenericSuperclass();
+        } else if (type instanceof Class && type != Object.class) {
+          type = ((Class) type).getGenericSuperclass();
+        } else {
+          break;
+        }
+      }
+      throw new IllegalStateException("Unable to find enum class for "
+          + method);
+    }
+
+    /** Converts a string to the type of value of this method's property:
+     * {@link Integer} for an {@link IntProp}, {@link Long} for a
+     * {@link LongProp}, and so forth. Returns the string for a
+     * {@link StringProp} or for a method that is not a property.
+     *
+     * @throws IllegalArgumentException if the string is not valid
+     */
+    public Object parse(String s) {
+      final Class<?> type = returnType;
+      if (IntProp.class.isAssignableFrom(type)) {
+        return Integer.parseInt(s, 10);
+      } else if (DoubleProp.class.isAssignableFrom(type)) {
+        return Double.parseDouble(s);
+      } else if (BooleanProp.class.isAssignableFrom(type)) {
+        return Boolean.parseBoolean(s);
+      } else if (DurationProp.class.isAssignableFrom(type)) {
+        return parseDuration(s);
+      } else if (ByteSizeProp.class.isAssignableFrom(type)) {
+        return parseByteSize(s);
+      } else if (LongProp.class.isAssignableFrom(type)) {
+        return Long.parseLong(s, 10);
+      } else if (EnumProp.class.isAssignableFrom(type)) {
+        return parseEnum(elementClass, s);
+      } else if (ListProp.class.isAssignableFrom(type)) {
+        return parseList(s);
+      } else {
+        return s;
+      }
+    }
+
+    /** Parses a duration such as "30s", "500ms", "2m", "1h" or "1d", and
+     * returns it in milliseconds. A number without units is milliseconds. */
+    static long parseDuration(String s) {
+      final String t = s.trim();
+      int i = t.length();
+      while (i > 0 && Character.isLetter(t.charAt(i - 1))) {
+        --i;
+      }
+      final String unit = t.substring(i).toLowerCase(Locale.ROOT);
+      final long multiplier;
+      if (unit.equals("") || unit.equals("ms")) {
+        multiplier = 1L;
+      } else if (unit.equals("s")) {
+        multiplier = 1000L;
+      } else if (unit.equals("m") || unit.equals("min")) {
+        multiplier = 60L * 1000L;
+      } else if (unit.equals("h")) {
+        multiplier = 60L * 60L * 1000L;
+      } else if (unit.equals("d")) {
+        multiplier = 24L * 60L * 60L * 1000L;
+      } else {
+        throw new NumberFormatException("Invalid duration: \"" + s + "\"");
+      }
+      return multiply(t.substring(0, i).trim(), multiplier, "duration", s);
+    }
+
+    /** Parses a size such as "64MiB", "512k" or "1g", and returns it in
+     * bytes. Units are powers of 1024, whether or not they contain "i". A
+     * number without units, or followed by "b", is bytes. */
+    static long parseByteSize(String s) {
+      final String t = s.trim();
+      int i = t.length();
+      while (i > 0 && Character.isLetter(t.charAt(i - 1))) {
+        --i;
+      }
+      final String number = t.substring(0, i).trim();
+      final String unit = t.substring(i).toLowerCase(Locale.ROOT);
+      final long multiplier;
+      if (unit.equals("") || unit.equals("b")) {
+        multiplier = 1L;
+      } else {
+        // "k", "kb" or "kib"; likewise "m", "g", "t" and "p"
+        final int shift = "kmgtp".indexOf(unit.charAt(0));
+        final String suffix = unit.substring(1);
+        if (shift < 0
+            || !(suffix.equals("") || suffix.equals("b")
+                || suffix.equals("ib"))) {
+          throw new NumberFormatException("Invalid byte size: \"" + s + "\"");
+        }
+        multiplier = 1L << (10 * shift + 10);
+      }
+      if (number.length() == 0) {
+        throw new NumberFormatException("Invalid byte size: \"" + s + "\"");
+      }
+      return multiply(number, multiplier, "byte size", s);
+    }
+
+    private static long multiply(String number, long multiplier, String kind,
+        String s) {
+      try {
+        final long n = Long.parseLong(number, 10);
+        if (n > Long.MAX_VALUE / multiplier
+            || n < Long.MIN_VALUE / multiplier) {
+          throw new NumberFormatException("Invalid " + kind + ": \"" + s
+              + "\"");
+        }
+        return n * multiplier;
+      } catch (NumberFormatException e) {
+        throw new NumberFormatException("Invalid " + kind + ": \"" + s
+            + "\"");
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object parseEnum(Class enumClass, String s) {
+      final String t = s.trim();
+      try {
+        return Enum.valueOf(enumClass, t);
+      } catch (IllegalArgumentException e) {
+        for (Object o : enumClass.getEnumConstants()) {
+          if (((Enum) o).name().equalsIgnoreCase(t)) {
+            return o;
+          }
+        }
+        throw new IllegalArgumentException("No enum constant "
+            + enumClass.getName() + "." + t);
+      }
+    }
+
+    /** Splits a comma-separated string into an immutable list of trimmed
+     * strings. An empty or blank string gives an empty list. */
+    static List<String> parseList(String s) {
+      if (s.trim().isEmpty()) {
+        return Collections.emptyList();
+      }
+      final String[] strings = s.split(",", -1);
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = strings[i].trim();
+      }
+      return Collections.unmodifiableList(Arrays.asList(strings));
+    }
+
+    /** Returns the parameter types of the method. */
+    public Class<?>[] parameterTypes() {
+      return parameterTypes.clone();
+    }
+
+    int parameterCount() {
+      return parameterTypes.length;
+    }
+
+    /** Returns the factory for the exceptions thrown by this method, which
+     * must return an {@link ExInstWithCause}. */
+    public ExceptionFactory<?> exceptionFactory() {
+      ExceptionFactory<?> factory = exceptionFactory;
+      if (factory == null) {
+        //noinspection unchecked
+        factory = new ExceptionFactory<Exception>(
+            ExInstWithCause.getExceptionClass(method.getGenericReturnType()),
+            stackDepth);
+        exceptionFactory = factory;
+      }
+      return factory;
+    }
+  }
+
+  /** Creates exceptions of a given class.
+   *
+   * <p>The constructor is resolved once, preferring a {@code (String,
+   * Throwable)} constructor over a {@code (String)} constructor, so that
+   * creating an exception is a single constructor call.
+   *
+   * <p>If {@code stackDepth} is 0 and the class declares a
+   * {@code (String, Throwable, boolean, boolean)} constructor, the factory
+   * calls it to create the exception without filling in its stack trace at
+   * all. It does so only if the constructor is public, which is how an
+   * exception class opts in, or if the class is in a {@code java.} package,
+   * such as {@link RuntimeException}, whose constructor is protected; it
+   * never makes a constructor of an application's class accessible.
+   * Otherwise, if {@code stackDepth} is not -1, the stack trace is filled
+   * in as usual and then truncated to at most that many frames (none if
+   * {@code stackDepth} is 0), not counting the frames of the exception's
+   * constructors, of reflection and of this class; that makes the
+   * exception smaller, but no cheaper to create.
+   *
+   * @param <T> Exception type */
+  public static class ExceptionFactory<T extends Exception> {
+    private static final StackTraceElement[] EMPTY_STACK =
+        new StackTraceElement[0];
+
+    private final Class<T> exceptionClass;
+    private final int stackDepth;
+    /** Names of the exception class and its superclasses, whose frames are
+     * removed from stack traces. */
+    private final Set<String> hierarchy = new HashSet<String>();
+    private final Constructor<T> constructor;
+    private final boolean causeInConstructor;
+    private final boolean writableInConstructor;
+    private final NoSuchMethodException noSuchMethod;
+
+    public ExceptionFactory(Class<T> exceptionClass) {
+      this(exceptionClass, -1);
+    }
+
+    public ExceptionFactory(Class<T> exceptionClass, int stackDepth) {
+      this.exceptionClass = exceptionClass;
+      this.stackDepth = stackDepth;
+      Constructor<T> constructor = null;
+      boolean causeInConstructor = false;
+      boolean writableInConstructor = false;
+      NoSuchMethodException noSuchMethod = null;
+      if (stackDepth == 0) {
+        try {
+          constructor = exceptionClass.getDeclaredConstructor(String.class,
+              Throwable.class, boolean.class, boolean.class);
+          if (Modifier.isPublic(constructor.getModifiers())) {
+            causeInConstructor = true;
+            writableInConstructor = true;
+          } else if (exceptionClass.getName().startsWith("java.")) {
+            constructor.setAccessible(true);
+            causeInConstructor = true;
+            writableInConstructor = true;
+          } else {
+            constructor = null;
+          }
+        } catch (NoSuchMethodException e) {
+          // Fall back to a (String, Throwable) or (String) constructor, and
+          // discard the stack trace afterwards. A constructor inherited from
+          // a superclass is no use; it would create the superclass.
+        } catch (RuntimeException e) {
+          // The constructor cannot be made accessible; for example, in a
+          // JDK that does not open java.lang. Fall back, as above.
+          constructor = null;
+        }
+      }
+      for (Class<?> c = exceptionClass; c != null; c = c.getSuperclass()) {
+        hierarchy.add(c.getName());
+      }
+      if (constructor == null) {
+        try {
+          constructor = exceptionClass.getConstructor(String.class,
+              Throwable.class);
+          causeInConstructor = true;
+        } catch (NoSuchMethodException nsmStringThrowable) {
+          try {
+            constructor = exceptionClass.getConstructor(String.class);
+          } catch (NoSuchMethodException nsmString) {
+            // Ignore nsmString to encourage users to have (String,
+            // Throwable) constructors.
+            noSuchMethod = nsmStringThrowable;
+          }
+        }
+      }
+      this.constructor = constructor;
+      this.causeInConstructor = causeInConstructor;
+      this.writableInConstructor = writableInConstructor;
+      this.noSuchMethod = noSuchMethod;
+    }
+
+    /** Returns the class of exception created by this factory. */
+    public Class<T> exceptionClass() {
+      return exceptionClass;
+    }
+
+    /** Returns the maximum depth of stack traces of exceptions created by
+     * this factory, or -1 if unlimited. */
+    public int stackDepth() {
+      return stackDepth;
+    }
+
+    /** Creates an exception.
+     *
+     * @param message Message
+     * @param cause Cause, or null
+     * @return New exception
+     */
+    public T create(String message, Throwable cause) {
+      if (noSuchMethod != null) {
+        throw new RuntimeException(noSuchMethod);
+      }
+      try {
+        if (writableInConstructor) {
+          return constructor.newInstance(message, cause, true, false);
+        }
+        final T ex;
+        if (causeInConstructor) {
+          ex = constructor.newInstance(message, cause);
+        } else {
+          ex = constructor.newInstance(message);
+          if (cause != null) {
+            try {
+              ex.initCause(cause);
+            } catch (IllegalStateException iae) {
+              // Sorry, unable to add cause via constructor and via initCause
+            }
+          }
+        }
+        if (stackDepth >= 0) {
+          ex.setStackTrace(trim(ex.getStackTrace()));
+        }
+        return ex;
+      } catch (InstantiationException e) {
+        throw new RuntimeException(e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      } catch (InvocationTargetException e) {
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        } else if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        } else {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    /** Removes the frames of the exception's constructors, of reflection,
+     * and of this class, and truncates the remainder to
+     * {@link #stackDepth} frames. */
+    private StackTraceElement[] trim(StackTraceElement[] stack) {
+      if (stackDepth == 0) {
+        return EMPTY_STACK;
+      }
+      int start = 0;
+      while (start < stack.length && isInternal(stack[start])) {
+        ++start;
+      }
+      final int end = Math.min(stack.length, start + stackDepth);
+      final StackTraceElement[] trimmed = new StackTraceElement[end - start];
+      System.arraycopy(stack, start, trimmed, 0, trimmed.length);
+      return trimmed;
+    }
+
+    private boolean isInternal(StackTraceElement element) {
+      final String className = element.getClassName();
+      return hierarchy.contains(className)
+          || className.equals(Resources.class.getName())
+          || className.startsWith(Resources.class.getName() + "$")
+          || className.startsWith("sun.reflect.")
+          || className.startsWith("jdk.internal.reflect.")
+          || className.startsWith("java.lang.reflect.");
+    }
+  }
+
+  /** Limits the cost of creating the same exception many times in a short
+   * period.
+   *
+   * <p>The first time that a resource instance (the same method, locale and
+   * arguments) creates an exception, the throttle opens a window. Until the
+   * window expires, exceptions for that instance reuse the message formatted
+   * for the first exception, and only one in {@code sample} has a stack
+   * trace; the others are counted as suppressed.
+   *
+   * <p>Windows are keyed by the method, the locale and the hash code of the
+   * arguments, so the throttle does not hold on to the arguments; arguments
+   * whose hash codes collide share a window, and its message. At most
+   * {@link #MAX_WINDOWS} windows are kept; beyond that, the least recently
+   * used window is discarded. */
+  public static class ExceptionThrottle {
+    /** Maximum number of windows; the least recently used window is
+     * discarded to make room for a new one. */
+    public static final int MAX_WINDOWS = 1024;
+
+    private final long windowNanos;
+    private final int sample;
+    /** Windows, in access order. Guarded by itself. */
+    private final Map<Key, Window> windows =
+        new LinkedHashMap<Key, Window>(16, 0.75f, true) {
+          @Override protected boolean removeEldestEntry(
+              Map.Entry<Key, Window> eldest) {
+            return size() > MAX_WINDOWS;
+          }
+        };
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private volatile ExceptionFactory<?> stacklessFactory;
+
+    public ExceptionThrottle(long windowMillis, int sample) {
+      this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+      this.sample = Math.max(sample, 1);
+    }
+
+    /** Returns the number of exceptions that have been created without a
+     * stack trace because they were in a window. */
+    public long suppressedCount() {
+      return suppressedCount.get();
+    }
+
+    /** Returns the number of exceptions created for an instance in its
+     * current window, or 0 if it has no current window. */
+    public long count(Inst inst) {
+      final Window window;
+      synchronized (windows) {
+        window = windows.get(new Key(inst));
+      }
+      return window == null || window.expired(System.nanoTime(), windowNanos)
+          ? 0
+          : window.count.get();
+    }
+
+    /** Creates an exception for a resource instance.
+     *
+     * @param factory Factory for exceptions of the method
+     * @param inst Resource instance
+     * @param cause Cause, or null
+     * @return New exception
+     */
+    public <T extends Exception> T create(ExceptionFactory<T> factory,
+        Inst inst, Throwable cause) {
+      final long now = System.nanoTime();
+      final Key key = new Key(inst);
+      Window window;
+      synchronized (windows) {
+        window = windows.get(key);
+      }
+      if (window == null || window.expired(now, windowNanos)) {
+        // Format the message outside the lock.
+        final String message = inst.str();
+        synchronized (windows) {
+          final Window current = windows.get(key);
+          if (current == null || current == window) {
+            windows.put(key, new Window(now, message));
+            window = null;
+          } else {
+            // Another thread opened a window meanwhile; use it.
+            window = current;
+          }
+        }
+        if (window == null) {
+          // This call opened the window; create a full exception.
+          return factory.create(message, cause);
+        }
+      }
+      final long count = window.count.incrementAndGet();
+      if (count % sample == 0) {
+        return factory.create(window.message, cause);
+      }
+      suppressedCount.incrementAndGet();
+      return stacklessFactory(factory).create(window.message, cause);
+    }
+
+    private <T extends Exception> ExceptionFactory<T> stacklessFactory(
+        ExceptionFactory<T> factory) {
+      ExceptionFactory<?> stackless = stacklessFactory;
+      if (stackless == null) {
+        stackless = factory.stackDepth() == 0
+            ? factory
+            : new ExceptionFactory<T>(factory.exceptionClass(), 0);
+        stacklessFactory = stackless;
+      }
+      //noinspection unchecked
+      return (ExceptionFactory<T>) stackless;
+    }
+
+    /** Identifies the window of a resource instance without referencing
+     * the instance or its arguments. */
+    private static class Key {
+      final Method method;
+      final Locale locale;
+      final int argsHash;
+
+      Key(Inst inst) {
+        this.method = inst.method;
+        this.locale = inst.locale;
+        this.argsHash = Arrays.hashCode(inst.args);
+      }
+
+      @Override public boolean equals(Object obj) {
+        return obj == this
+            || obj instanceof Key
+            && method.equals(((Key) obj).method)
+            && locale.equals(((Key) obj).locale)
+            && argsHash == ((Key) obj).argsHash;
+      }
+
+      @Override public int hashCode() {
+        return (method.hashCode() * 31 + locale.hashCode()) * 31 + argsHash;
+      }
+    }
+
+    /** Period in which exceptions for a resource instance are throttled. */
+    private static class Window {
+      final long start;
+      final String message;
+      final AtomicLong count = new AtomicLong(1);
+
+      Window(long start, String message) {
+        this.start = start;
+        this.message = message;
+      }
+
+      boolean expired(long now, long windowNanos) {
+        return now - start >= windowNanos;
       }
     }
   }
@@ -276,12 +963,22 @@ protected String deriveKey() {
    * serves to identify the resource), the locale with which we
    * expect to render the resource, and any arguments. */
   public static class Inst extends Element {
+    /** Sub-classes of {@code Inst}, and whether each overrides
+     * {@link #raw()}. Guarded by itself. */
+    private static final Map<Class<?>, Boolean> OVERRIDES_RAW =
+        new WeakHashMap<Class<?>, Boolean>();
+
     private final Locale locale;
     protected final String base;
     protected final Object[] args;
 
     public Inst(String base, Locale locale, Method method, Object... args) {
-      super(method);
+      this(base, locale, MethodInfo.of(method), args);
+    }
+
+    public Inst(String base, Locale locale, MethodInfo info,
+        Object... args) {
+      super(info);
       this.base = base;
       this.locale = locale;
       this.args = args;
@@ -304,8 +1001,24 @@ public ResourceBundle bundle() {
       return ResourceBundle.getBundle(base, locale);
     }
 
+    /** Returns the table of messages for this resource's bundle and
+     * locale.
+     *
+     * <p>The bundle is looked up in the class loader of the interface that
+     * declares the resource method, and the table is cached for that class
+     * loader. The bundle is therefore found wherever the interface is, even
+     * if the thread's context class loader differs, and is not found in
+     * the context class loader if the interface's class loader cannot see
+     * it. Only if the interface was loaded by the bootstrap class loader is
+     * the thread's context class loader used. (By contrast,
+     * {@link #bundle()} uses the class loader of {@code Resources}.) */
+    public MessageTable table() {
+      return MessageTable.of(base, locale,
+          method.getDeclaringClass().getClassLoader());
+    }
+
     public Inst localize(Locale locale) {
-      return new Inst(base, locale, method, args);
+      return new Inst(base, locale, info, args);
     }
 
     public void validate(EnumSet<Validation> validations) {
@@ -320,25 +1033,21 @@ public void validate(EnumSet<Validation> validations) {
           }
           break;
         case MESSAGE_SPECIFIED:
-          final BaseMessage annotation1 =
-              method.getAnnotation(BaseMessage.class);
-          if (annotation1 == null) {
+          if (info.baseMessage == null) {
             throw new AssertionError("resource '" + method.getName()
                 + "' must specify BaseMessage");
           }
           break;
         case EVEN_QUOTES:
-          String message = method.getAnnotation(BaseMessage.class).value();
+          String message = info.baseMessage;
           if (countQuotesIn(message) % 2 == 1) {
             throw new AssertionError("resource '" + method.getName()
                 + "' should have even number of quotes");
           }
           break;
         case MESSAGE_MATCH:
-          final BaseMessage annotation2 =
-              method.getAnnotation(BaseMessage.class);
-          if (annotation2 != null) {
-            final String value = annotation2.value();
+          if (info.baseMessage != null) {
+            final String value = info.baseMessage;
             final String value2 = bundle.containsKey(key)
                 ? bundle.getString(key)
                 : null;
@@ -354,7 +1063,7 @@ public void validate(EnumSet<Validation> validations) {
           MessageFormat format = new MessageFormat(raw);
           final Format[] formats = format.getFormatsByArgumentIndex();
           final List<Class> types = new ArrayList<Class>();
-          final Class<?>[] parameterTypes = method.getParameterTypes();
+          final Class<?>[] parameterTypes = info.parameterTypes;
           for (int i = 0; i < formats.length; i++) {
             Format format1 = formats[i];
             Class parameterType = parameterTypes[i];
@@ -397,32 +1106,68 @@ private int countQuotesIn(String message) {
       return count;
     }
 
+    /** Formats the message with this instance's arguments.
+     *
+     * <p>The message is the one returned by {@link #raw()}. Unless a
+     * sub-class overrides {@code raw()}, the message's compiled template is
+     * cached in the {@link MessageTable}, so the message is parsed only
+     * once; if it does, the message returned by {@code raw()} is parsed
+     * each time. */
     public String str() {
-      String message = raw();
-      MessageFormat format = new MessageFormat(message);
-      format.setLocale(locale);
-      return format.format(args);
+      final MessageTable table = table();
+      if (overridesRaw(getClass())) {
+        return MessageTemplate.compile(raw(), locale, table.subformatLocale)
+            .format(args);
+      }
+      return table.template(key, info.baseMessage).format(args);
+    }
+
+    /** Returns whether a sub-class of {@code Inst} overrides
+     * {@link #raw()}. */
+    private static boolean overridesRaw(Class<?> clazz) {
+      if (clazz == Inst.class
+          || clazz == ExInstWithCause.class
+          || clazz == ExInst.class) {
+        return false;
+      }
+      synchronized (OVERRIDES_RAW) {
+        Boolean overrides = OVERRIDES_RAW.get(clazz);
+        if (overrides == null) {
+          try {
+            overrides =
+                clazz.getMethod("raw").getDeclaringClass() != Inst.class;
+          } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+          }
+          OVERRIDES_RAW.put(clazz, overrides);
+        }
+        return overrides;
+      }
     }
 
     public String raw() {
-      try {
-        return bundle().getString(key);
-      } catch (MissingResourceException e) {
-        // Resource is not in the bundle. (It is probably missing from the
-        // .properties file.) Fall back to the base message.
-        return method.getAnnotation(BaseMessage.class).value();
+      return raw(table());
+    }
+
+    private String raw(MessageTable table) {
+      String message = table.get(key);
+      if (message != null) {
+        return message;
       }
+      message = table.getMissing(key);
+      if (message != null) {
+        return message;
+      }
+      // Resource is not in the bundle. (It is probably missing from the
+      // .properties file.) Fall back to the base message, and remember to do
+      // so next time.
+      message = info.baseMessage;
+      table.putMissing(key, message);
+      return message;
     }
 
     public Map<String, String> getProperties() {
-      // At present, annotations allow at most one property per resource. We
-      // could design new annotations if any resource needed more.
-      final Property property = method.getAnnotation(Property.class);
-      if (property == null) {
-        return Collections.emptyMap();
-      } else {
-        return Collections.singletonMap(property.name(), property.value());
-      }
+      return info.properties;
     }
   }
 
@@ -431,61 +1176,26 @@ public Map<String, String> getProperties() {
   public static class ExInstWithCause<T extends Exception> extends Inst {
     public ExInstWithCause(String base, Locale locale, Method method,
         Object... args) {
-      super(base, locale, method, args);
+      this(base, locale, MethodInfo.of(method), args);
+    }
+
+    public ExInstWithCause(String base, Locale locale, MethodInfo info,
+        Object... args) {
+      super(base, locale, info, args);
     }
 
     @Override public Inst localize(Locale locale) {
-      return new ExInstWithCause<T>(base, locale, method, args);
+      return new ExInstWithCause<T>(base, locale, info, args);
     }
 
     public T ex(Throwable cause) {
-      try {
-        //noinspection unchecked
-        final Class<T> exceptionClass =
-            getExceptionClass(method.getGenericReturnType());
-        Constructor<T> constructor;
-        final String str = str();
-        boolean causeInConstructor = false;
-        try {
-          constructor = exceptionClass.getConstructor(String.class,
-              Throwable.class);
-          causeInConstructor = true;
-        } catch (NoSuchMethodException nsmStringThrowable) {
-          try {
-            constructor = exceptionClass.getConstructor(String.class);
-          } catch (NoSuchMethodException nsmString) {
-            // Ignore nsmString to encourage users to have (String,
-            // Throwable) constructors.
-            throw nsmStringThrowable;
-          }
-        }
-        if (causeInConstructor) {
-          return constructor.newInstance(str, cause);
-        }
-        T ex = constructor.newInstance(str);
-        if (cause != null) {
-          try {
-            ex.initCause(cause);
-          } catch (IllegalStateException iae) {
-            // Sorry, unable to add cause via constructor and via initCause
-          }
-        }
-        return ex;
-      } catch (InstantiationException e) {
-        throw new RuntimeException(e);
-      } catch (IllegalAccessException e) {
-        throw new RuntimeException(e);
-      } catch (NoSuchMethodException e) {
-        throw new RuntimeException(e);
-      } catch (InvocationTargetException e) {
-        if (e.getCause() instanceof Error) {
-          throw (Error) e.getCause();
-        } else if (e.getCause() instanceof RuntimeException) {
-          throw (RuntimeException) e.getCause();
-        } else {
-          throw new RuntimeException(e);
-        }
+      //noinspection unchecked
+      final ExceptionFactory<T> factory =
+          (ExceptionFactory<T>) info.exceptionFactory();
+      if (info.throttle != null) {
+        return info.throttle.create(factory, this, cause);
       }
+      return factory.create(str(), cause);
     }
 
     public static Class getExceptionClass(Type type) {
@@ -565,7 +1275,12 @@ public Exception call() throws Exception {
    * by. */
   public static class ExInst<T extends Exception> extends ExInstWithCause<T> {
     public ExInst(String base, Locale locale, Method method, Object... args) {
-      super(base, locale, method, args);
+      this(base, locale, MethodInfo.of(method), args);
+    }
+
+    public ExInst(String base, Locale locale, MethodInfo info,
+        Object... args) {
+      super(base, locale, info, args);
     }
 
     public T ex() {
@@ -589,12 +1304,72 @@ public Exception call() throws Exception {
   public abstract static class Prop extends Element {
     protected final PropertyAccessor accessor;
     protected final boolean hasDefault;
+    /** The accessor, if it is a {@link VersionedPropertyAccessor}; otherwise
+     * null. */
+    private final VersionedPropertyAccessor versioned;
+    /** The accessor, if it is a {@link TypedPropertyAccessor}; otherwise
+     * null. */
+    final TypedPropertyAccessor typed;
+    /** Property with the same key, for reading the value as a string if the
+     * accessor is not typed; created on first use. */
+    private StringProp stringProp;
+    /** Value returned by the most recent call to {@code get()}, and the
+     * version of the accessor that it came from; or null. Not volatile,
+     * because {@link Cached} is immutable. */
+    private Cached cached;
 
     public Prop(PropertyAccessor accessor, Method method) {
-      super(method);
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public Prop(PropertyAccessor accessor, MethodInfo info) {
+      super(info);
       this.accessor = accessor;
-      final Default resource = method.getAnnotation(Default.class);
-      this.hasDefault = resource != null;
+      this.hasDefault = info.hasDefault;
+      this.versioned = accessor instanceof VersionedPropertyAccessor
+          ? (VersionedPropertyAccessor) accessor
+          : null;
+      this.typed = accessor instanceof TypedPropertyAccessor
+          ? (TypedPropertyAccessor) accessor
+          : null;
+    }
+
+    /** Returns the value of this property as a string, or null if it is not
+     * set; for a property that the accessor cannot read as its own type. */
+    String stringValue() {
+      StringProp p = stringProp;
+      if (p == null) {
+        stringProp = p = new StringProp(accessor, info, null);
+      }
+      return accessor.stringValue(p, null);
+    }
+
+    /** Returns the cached value of this property, or null if the accessor
+     * is not versioned, or its version has changed since the value was
+     * cached. */
+    Cached cached() {
+      if (versioned == null) {
+        return null;
+      }
+      final Cached c = cached;
+      if (c != null && c.version == versioned.version()) {
+        return c;
+      }
+      return null;
+    }
+
+    /** Returns the current version of the accessor, to be passed to
+     * {@link #cache}, or null if the accessor is not versioned. Must be
+     * called before reading the value, so that a value read during a
+     * change is tagged with the older version, and is read again. */
+    Object version() {
+      return versioned == null ? null : versioned.version();
+    }
+
+    void cache(Object version, long n, double d, Object o) {
+      if (version != null) {
+        cached = new Cached(version, n, d, o);
+      }
     }
 
     public boolean isSet() {
@@ -625,18 +1400,24 @@ public static class IntProp extends Prop {
     private final int defaultValue;
 
     public IntProp(PropertyAccessor accessor, Method method) {
-      super(accessor, method);
-      if (hasDefault) {
-        final Default resource = method.getAnnotation(Default.class);
-        defaultValue = Integer.parseInt(resource.value(), 10);
-      } else {
-        defaultValue = 0;
-      }
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public IntProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+      defaultValue = hasDefault ? (Integer) info.defaultValue : 0;
     }
 
     /** Returns the value of this integer property. */
     public int get() {
-      return accessor.intValue(this);
+      final Cached c = cached();
+      if (c != null) {
+        return (int) c.n;
+      }
+      final Object version = version();
+      final int value = accessor.intValue(this);
+      cache(version, value, 0d, null);
+      return value;
     }
 
     /** Returns the value of this integer property, returning the given default
@@ -656,18 +1437,24 @@ public static class BooleanProp extends Prop {
     private final boolean defaultValue;
 
     public BooleanProp(PropertyAccessor accessor, Method method) {
-      super(accessor, method);
-      if (hasDefault) {
-        final Default resource = method.getAnnotation(Default.class);
-        defaultValue = Boolean.parseBoolean(resource.value());
-      } else {
-        defaultValue = false;
-      }
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public BooleanProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+      defaultValue = hasDefault ? (Boolean) info.defaultValue : false;
     }
 
     /** Returns the value of this boolean property. */
     public boolean get() {
-      return accessor.booleanValue(this);
+      final Cached c = cached();
+      if (c != null) {
+        return c.n != 0;
+      }
+      final Object version = version();
+      final boolean value = accessor.booleanValue(this);
+      cache(version, value ? 1 : 0, 0d, null);
+      return value;
     }
 
     /** Returns the value of this boolean property, returning the given default
@@ -687,18 +1474,24 @@ public static class DoubleProp extends Prop {
     private final double defaultValue;
 
     public DoubleProp(PropertyAccessor accessor, Method method) {
-      super(accessor, method);
-      if (hasDefault) {
-        final Default resource = method.getAnnotation(Default.class);
-        defaultValue = Double.parseDouble(resource.value());
-      } else {
-        defaultValue = 0d;
-      }
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public DoubleProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+      defaultValue = hasDefault ? (Double) info.defaultValue : 0d;
     }
 
     /** Returns the value of this double property. */
     public double get() {
-      return accessor.doubleValue(this);
+      final Cached c = cached();
+      if (c != null) {
+        return c.d;
+      }
+      final Object version = version();
+      final double value = accessor.doubleValue(this);
+      cache(version, 0, value, null);
+      return value;
     }
 
     /** Returns the value of this double property, returning the given default
@@ -718,18 +1511,32 @@ public static class StringProp extends Prop {
     private final String defaultValue;
 
     public StringProp(PropertyAccessor accessor, Method method) {
-      super(accessor, method);
-      if (hasDefault) {
-        final Default resource = method.getAnnotation(Default.class);
-        defaultValue = resource.value();
-      } else {
-        defaultValue = null;
-      }
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public StringProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+      defaultValue = hasDefault ? (String) info.defaultValue : null;
+    }
+
+    /** Creates a string property with the same key as a property of another
+     * type, so that its value can be read as a string. */
+    StringProp(PropertyAccessor accessor, MethodInfo info,
+        String defaultValue) {
+      super(accessor, info);
+      this.defaultValue = defaultValue;
     }
 
     /** Returns the value of this String property. */
     public String get() {
-      return accessor.stringValue(this);
+      final Cached c = cached();
+      if (c != null) {
+        return (String) c.o;
+      }
+      final Object version = version();
+      final String value = accessor.stringValue(this);
+      cache(version, 0, 0d, value);
+      return value;
     }
 
     /** Returns the value of this String property, returning the given default
@@ -744,6 +1551,200 @@ public String defaultValue() {
     }
   }
 
+  /** Long property instance. */
+  public static class LongProp extends Prop {
+    private final long defaultValue;
+
+    public LongProp(PropertyAccessor accessor, Method method) {
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public LongProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+      defaultValue = hasDefault ? (Long) info.defaultValue : 0L;
+    }
+
+    /** Returns the value of this long property. */
+    public long get() {
+      final Cached c = cached();
+      if (c != null) {
+        return c.n;
+      }
+      final Object version = version();
+      final long value;
+      if (typed != null) {
+        value = typed.longValue(this);
+      } else {
+        final String s = stringValue();
+        if (s != null) {
+          value = parse(s);
+        } else {
+          checkDefault2();
+          value = defaultValue;
+        }
+      }
+      cache(version, value, 0d, null);
+      return value;
+    }
+
+    /** Returns the value of this long property, returning the given default
+     * value if the property is not set. */
+    public long get(long defaultValue) {
+      if (typed != null) {
+        return typed.longValue(this, defaultValue);
+      }
+      final String s = stringValue();
+      return s == null ? defaultValue : parse(s);
+    }
+
+    public long defaultValue() {
+      checkDefault();
+      return defaultValue;
+    }
+
+    /** Converts a string to a value of this property. */
+    public long parse(String s) {
+      return (Long) info.parse(s);
+    }
+  }
+
+  /** Duration property instance. Values such as "30s", "500ms", "2m", "1h"
+   * and "1d" are converted to milliseconds; a number without units is
+   * milliseconds. */
+  public static class DurationProp extends LongProp {
+    public DurationProp(PropertyAccessor accessor, Method method) {
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public DurationProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+    }
+
+    /** Returns the value of this duration property in the given unit. */
+    public long get(TimeUnit unit) {
+      return unit.convert(get(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Byte size property instance. Values such as "64MiB", "512k" and "1g"
+   * are converted to bytes; units are powers of 1024. */
+  public static class ByteSizeProp extends LongProp {
+    public ByteSizeProp(PropertyAccessor accessor, Method method) {
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public ByteSizeProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+    }
+  }
+
+  /** Property whose value is an object, converted from a string once per
+   * snapshot.
+   *
+   * @param <T> Value type */
+  public abstract static class ObjectProp<T> extends Prop {
+    private final T defaultValue;
+
+    public ObjectProp(PropertyAccessor accessor, Method method) {
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public ObjectProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+      //noinspection unchecked
+      defaultValue = hasDefault ? (T) info.defaultValue : null;
+    }
+
+    /** Returns the value of this property. */
+    public T get() {
+      final Cached c = cached();
+      if (c != null) {
+        //noinspection unchecked
+        return (T) c.o;
+      }
+      final Object version = version();
+      final T value;
+      if (typed != null) {
+        value = typed.objectValue(this);
+      } else {
+        final String s = stringValue();
+        if (s != null) {
+          value = parse(s);
+        } else {
+          checkDefault2();
+          value = defaultValue;
+        }
+      }
+      cache(version, 0, 0d, value);
+      return value;
+    }
+
+    /** Returns the value of this property, returning the given default
+     * value if the property is not set. */
+    public T get(T defaultValue) {
+      if (typed != null) {
+        return typed.objectValue(this, defaultValue);
+      }
+      final String s = stringValue();
+      return s == null ? defaultValue : parse(s);
+    }
+
+    public T defaultValue() {
+      checkDefault();
+      return defaultValue;
+    }
+
+    /** Converts a string to a value of this property. */
+    public T parse(String s) {
+      //noinspection unchecked
+      return (T) info.parse(s);
+    }
+  }
+
+  /** Enum property instance. Values are the names of constants of the enum,
+   * ignoring case.
+   *
+   * @param <E> Enum type */
+  public static class EnumProp<E extends Enum<E>> extends ObjectProp<E> {
+    public EnumProp(PropertyAccessor accessor, Method method) {
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public EnumProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+    }
+  }
+
+  /** List property instance. Values are comma-separated lists of strings;
+   * each is trimmed, and the list is immutable. */
+  public static class ListProp extends ObjectProp<List<String>> {
+    public ListProp(PropertyAccessor accessor, Method method) {
+      this(accessor, MethodInfo.of(method));
+    }
+
+    public ListProp(PropertyAccessor accessor, MethodInfo info) {
+      super(accessor, info);
+    }
+  }
+
+  /** Value of a property, and the version of the
+   * {@link VersionedPropertyAccessor} that it was read from. */
+  static class Cached {
+    final Object version;
+    /** Value of an integer, long or boolean (1 or 0) property. */
+    final long n;
+    final double d;
+    /** Value of a string or other object property. */
+    final Object o;
+
+    Cached(Object version, long n, double d, Object o) {
+      this.version = version;
+      this.n = n;
+      this.d = d;
+      this.o = o;
+    }
+  }
+
   /** Thrown when a default value is needed but a property does not have
    * one. */
   public static class NoDefaultValueException extends RuntimeException {
@@ -766,7 +1767,65 @@ public interface PropertyAccessor {
     double doubleValue(DoubleProp p, double defaultValue);
   }
 
-  enum EmptyPropertyAccessor implements PropertyAccessor {
+  /** Property accessor that can also read {@link LongProp} and
+   * {@link ObjectProp} properties (durations, byte sizes, enums, lists),
+   * for example from values it has already parsed.
+   *
+   * <p>Those properties also work with an accessor that implements only
+   * {@link PropertyAccessor}: they read their value as a string, using
+   * {@link PropertyAccessor#stringValue(StringProp, String)}, and parse it
+   * each time. */
+  public interface TypedPropertyAccessor extends PropertyAccessor {
+    long longValue(LongProp p);
+    long longValue(LongProp p, long defaultValue);
+    <T> T objectValue(ObjectProp<T> p);
+    <T> T objectValue(ObjectProp<T> p, T defaultValue);
+  }
+
+  /** Property accessor whose values change only when its version changes.
+   *
+   * <p>A {@link Prop} whose accessor implements this interface caches the
+   * value returned by {@code get()}, and reads it again only after the
+   * version has changed. Reading an unchanged property is then a
+   * comparison of two references, with no lookup or parsing.
+   *
+   * <p>The accessor created by {@link Resources#create(Properties, Class)}
+   * does not implement this interface, because a {@link Properties} object
+   * does not tell anyone when it changes; its properties are read and parsed
+   * on every call. */
+  public interface VersionedPropertyAccessor extends PropertyAccessor {
+    /** Returns an object that is replaced by a different object (compared
+     * using {@code ==}) whenever the value of any property may have
+     * changed. */
+    Object version();
+  }
+
+  /** Versioned property accessor that tells listeners when the values of
+   * properties change; that is, each time it publishes a new version in
+   * which some values are different.
+   *
+   * @see PropertyListener */
+  public interface ObservablePropertyAccessor
+      extends VersionedPropertyAccessor {
+    /** Subscribes to changes in the values of properties.
+     *
+     * <p>After each new version that changes the value of at least one of
+     * {@code props} (or of any property, if {@code props} is empty), calls
+     * the listener using {@code executor}. If the listener has not yet been
+     * called for an earlier change, the changes are merged into a single
+     * notification, so a slow listener does not accumulate a backlog and
+     * does not delay the accessor.
+     *
+     * @param listener Listener
+     * @param executor Executor that calls the listener
+     * @param props Properties of interest; if empty, all properties
+     * @return Subscription; close it to stop receiving notifications
+     */
+    Subscription subscribe(PropertyListener listener, Executor executor,
+        Prop... props);
+  }
+
+  enum EmptyPropertyAccessor implements TypedPropertyAccessor {
     INSTANCE;
 
     public boolean isSet(Prop p) {
@@ -804,6 +1863,22 @@ public double doubleValue(DoubleProp p) {
     public double doubleValue(DoubleProp p, double defaultValue) {
       return defaultValue;
     }
+
+    public long longValue(LongProp p) {
+      return p.defaultValue();
+    }
+
+    public long longValue(LongProp p, long defaultValue) {
+      return defaultValue;
+    }
+
+    public <T> T objectValue(ObjectProp<T> p) {
+      return p.defaultValue();
+    }
+
+    public <T> T objectValue(ObjectProp<T> p, T defaultValue) {
+      return defaultValue;
+    }
   }
 
   /** Types of validation that can be performed on a resource. */
@@ -861,262 +1936,3534 @@ public enum Validation {
     String value();
   }
 
-  /**
-   * <code>ShadowResourceBundle</code> is an abstract base class for
-   * {@link ResourceBundle} classes which are backed by a properties file. When
-   * the class is created, it loads a properties file with the same name as the
-   * class.
+  /** Exceptions created by a resource have no stack trace, or a stack trace
+   * of at most {@link #depth()} frames. Applies to a method, or to all
+   * methods declared in an interface.
    *
-   * <p> In the standard scheme (see {@link ResourceBundle}), if
-   * you call <code>{@link ResourceBundle#getBundle}("foo.MyResource")</code>,
-   * it first looks for a class called <code>foo.MyResource</code>, then
-   * looks for a file called <code>foo/MyResource.properties</code>. If it finds
-   * the file, it creates a {@link PropertyResourceBundle} and loads the class.
-   * The problem is if you want to load the <code>.properties</code> file
-   * into a dedicated class; <code>ShadowResourceBundle</code> helps with this
-   * case.
+   * <p>With depth 0 (the default), if the exception class declares a
+   * public {@code (String, Throwable, boolean, boolean)} constructor, or is
+   * a JDK class that declares one (as {@link RuntimeException} and
+   * {@link Exception} do), the stack trace is never filled in, which makes
+   * the exception much cheaper to create. Other exceptions get an empty
+   * stack trace after it has been filled in. A
+   * depth greater than 0 only makes the stack trace shorter; it is filled
+   * in and then truncated, so the exception is no cheaper to create.
    *
-   * <p> You should create a class as follows:<blockquote>
+   * <p>Use it for exceptions that are caught near where they are thrown,
+   * such as validation errors. */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target({ElementType.METHOD, ElementType.TYPE })
+  public @interface Stackless {
+    int depth() default 0;
+  }
+
+  /** Throttles exceptions created by a resource: within a window of
+   * {@link #windowMillis()} milliseconds, repeated exceptions for the same
+   * arguments and locale reuse a formatted message, and only one in
+   * {@link #sample()} has a stack trace. Applies to a method, or to all
+   * methods declared in an interface.
    *
-   * <pre>package foo;
-   *class MyResource extends ShadowResourceBundle {
-   *    public MyResource() throws java.io.IOException {
-   *    }
-   *}</pre>
+   * @see ExceptionThrottle */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target({ElementType.METHOD, ElementType.TYPE })
+  public @interface Throttle {
+    long windowMillis() default 1000;
+    int sample() default 100;
+  }
+
+  /** Messages of a resource bundle in a particular locale, with the messages
+   * inherited from parent locales already merged in.
    *
-   * </blockquote>
+   * <p>Tables are cached, by class loader, base name and locale, so that
+   * rendering a resource does not need to call
+   * {@link ResourceBundle#getBundle} or walk the chain of parent bundles.
+   * The cache does not prevent a class loader from being garbage-collected.
+   * For each class loader and base name, the cache holds at most
+   * {@link #setCapacity(int) capacity} locales; when it is full, it evicts a
+   * table that has not been used recently.
    *
-   * Then when you call
-   * {@link ResourceBundle#getBundle ResourceBundle.getBundle("foo.MyResource")},
-   * it will find the class before the properties file, but still automatically
-   * load the properties file based upon the name of the class.
-   */
-  public abstract static class ShadowResourceBundle extends ResourceBundle {
-    private PropertyResourceBundle bundle;
+   * <p>A table also caches the compiled templates of its messages, by key,
+   * and
+   * records the keys of resources that were not found in the bundle (and
+   * which therefore used their base message).
+   *
+   * <p>If the bundle has been compiled at build time (see
+   * {@link CompiledBundle}), the table is loaded from the compiled class,
+   * with its templates already parsed, and the bundle's properties files are
+   * not read.
+   *
+   * <p>Otherwise, if the {@link CatalogFinder} finds a {@link Catalog} for
+   * the bundle, the table reads each message from the catalog the first
+   * time it is used.
+   *
+   * <p>Otherwise the table reads the bundle using
+   * {@link ResourceBundle#getBundle(String, Locale, ClassLoader,
+   * ResourceBundle.Control)},
+   * telling it not to cache the bundle, so that the table holds the only
+   * copy of the messages. Keys and messages are de-duplicated, so a message
+   * that occurs in several locales or bundles is held once. A long message
+   * is held as a {@link CompactString} until it is first used; see
+   * {@link #setCompaction(int, Compactor)}.
+   *
+   * <p>A table remembers the files on disk from which it was loaded, so
+   * that {@link #reload()} can replace it if they change.
+   *
+   * @see MessageReloader */
+  public static class MessageTable {
+    /** Tables of each class loader, by base name and locale. An array
+     * rather than a map, because there are usually only one or two class
+     * loaders, and it can be searched without locking. */
+    private static volatile LoaderTables[] loaderTables = new LoaderTables[0];
 
-    /**
-     * Creates a <code>ShadowResourceBundle</code>, and reads resources from
-     * a <code>.properties</code> file with the same name as the current class.
-     * For example, if the class is called <code>foo.MyResource_en_US</code>,
-     * reads from <code>foo/MyResource_en_US.properties</code>, then
-     * <code>foo/MyResource_en.properties</code>, then
-     * <code>foo/MyResource.properties</code>.
+    private static volatile int capacity = 64;
+
+    /** Messages at least this long are held as {@link CompactString}. */
+    private static volatile int compactLength = 512;
+
+    /** Converts long messages to compact form, or null to use
+     * {@link CompactString}. */
+    private static volatile Compactor compactor = null;
+
+    /** Whether explicit formats in messages use the table's locale. */
+    private static volatile boolean localizeSubformats = false;
+
+    private static volatile CatalogFinder catalogFinder =
+        defaultCatalogFinder();
+
+    /** Keys and messages that are held by tables. */
+    private static final Interner<Object> INTERNER = new Interner<Object>();
+
+    /** Loads bundles, but does not cache them; the tables are the cache.
+     * Reads properties files with {@link PropertiesParser}, as the
+     * "compile-bundles" and "compile-catalogs" goals do, so that a file in
+     * UTF-8 gives the same messages on every JDK. */
+    private static final ResourceBundle.Control CONTROL =
+        new ResourceBundle.Control() {
+          @Override public long getTimeToLive(String baseName,
+              Locale locale) {
+            return TTL_DONT_CACHE;
+          }
+
+          @Override public ResourceBundle newBundle(String baseName,
+              Locale locale, String format, ClassLoader loader,
+              boolean reload) throws IllegalAccessException,
+              InstantiationException, IOException {
+            if (!format.equals("java.properties")) {
+              return super.newBundle(baseName, locale, format, loader,
+                  reload);
+            }
+            final InputStream in = loader.getResourceAsStream(
+                toResourceName(toBundleName(baseName, locale), "properties"));
+            if (in == null) {
+              return null;
+            }
+            try {
+              return new MyPropertyResourceBundle(PropertiesParser.parse(in));
+            } finally {
+              in.close();
+            }
+          }
+        };
+
+    private final String base;
+    private final Locale locale;
+    /** Locale of explicit formats in templates, or null for the default
+     * locale. */
+    private final Locale subformatLocale;
+    /** Class loader from which the table was loaded. Weak, so that the
+     * cache does not prevent an application from being unloaded. */
+    private final WeakReference<ClassLoader> loader;
+    /** Files from which the table was loaded. */
+    private final File[] files;
+    /** Modification time and length of each file, before it was read. */
+    private final long[] stamps;
+    /** Messages, each a {@link String} or in compact form. */
+    private final Map<String, Object> messages;
+    /** Catalog from which messages are read on first use, or null. */
+    private final Catalog catalog;
+    private final ConcurrentMap<String, MessageTemplate> templates =
+        new ConcurrentHashMap<String, MessageTemplate>();
+    /** Base messages of resources that are not in the bundle, by key. */
+    private final ConcurrentMap<String, String> missing =
+        new ConcurrentHashMap<String, String>();
+
+    /** Whether this table has been used since the evictor last looked. Not
+     * volatile; an occasional lost update only makes eviction less
+     * accurate. */
+    private boolean referenced = true;
+
+    private MessageTable(String base, Locale locale, ClassLoader loader,
+        File[] files, long[] stamps, Map<String, Object> messages,
+        Catalog catalog) {
+      this.base = base;
+      this.locale = locale;
+      this.subformatLocale = localizeSubformats ? locale : null;
+      this.loader = new WeakReference<ClassLoader>(loader);
+      this.files = files;
+      this.stamps = stamps;
+      this.messages = messages;
+      this.catalog = catalog;
+    }
+
+    /** Returns the table for a given bundle and locale, as seen by the
+     * current thread's context class loader, loading it if it is not
+     * cached.
      *
-     * @throws IOException on error
+     * @param base Base name of the bundle
+     * @param locale Locale
+     * @return Table of messages
      */
-    protected ShadowResourceBundle() throws IOException {
-      super();
-      Class clazz = getClass();
-      InputStream stream = openPropertiesFile(clazz);
-      if (stream == null) {
-        throw new IOException("could not open properties file for "
-            + getClass());
+    public static MessageTable of(String base, Locale locale) {
+      return of(base, locale, null);
+    }
+
+    /** Returns the table for a given bundle and locale, as seen by a given
+     * class loader, loading it if it is not cached. Each class loader has
+     * its own tables, so applications that have bundles with the same name
+     * do not see each other's messages.
+     *
+     * @param base Base name of the bundle
+     * @param locale Locale
+     * @param loader Class loader in which to look for the bundle; if null,
+     *               the current thread's context class loader
+     * @return Table of messages
+     */
+    public static MessageTable of(String base, Locale locale,
+        ClassLoader loader) {
+      if (loader == null) {
+        loader = classLoader();
       }
-      MyPropertyResourceBundle previousBundle =
-          new MyPropertyResourceBundle(stream);
-      bundle = previousBundle;
-      stream.close();
-      // Now load properties files for parent locales, which we deduce from
-      // the names of our super-class, and its super-class.
-      while (true) {
-        clazz = clazz.getSuperclass();
-        if (clazz == null
-            || clazz == ShadowResourceBundle.class
+      final ConcurrentMap<String, ConcurrentMap<Locale, MessageTable>> tables =
+          tables(loader);
+      ConcurrentMap<Locale, MessageTable> map = tables.get(base);
+      if (map == null) {
+        map = new ConcurrentHashMap<Locale, MessageTable>();
+        final ConcurrentMap<Locale, MessageTable> map2 =
+            tables.putIfAbsent(base, map);
+        if (map2 != null) {
+          map = map2;
+        }
+      }
+      MessageTable table = map.get(locale);
+      if (table == null) {
+        table = load(base, locale, loader, false);
+        final MessageTable table2 = map.putIfAbsent(locale, table);
+        if (table2 != null) {
+          table = table2;
+        } else if (map.size() > capacity) {
+          evict(map, locale);
+        }
+      } else {
+        table.referenced = true;
+      }
+      return table;
+    }
+
+    /** Sets the maximum number of locales for which to cache the tables of
+     * each bundle. The default is 64.
+     *
+     * @param capacity Maximum number of locales per bundle
+     */
+    public static void setCapacity(int capacity) {
+      if (capacity < 1) {
+        throw new IllegalArgumentException("capacity must be positive");
+      }
+      MessageTable.capacity = capacity;
+    }
+
+    /** Sets how tables hold long messages. Applies to tables loaded after
+     * the call.
+     *
+     * <p>A message that has at least {@code minLength} characters is held in
+     * compact form; by default, as a {@link CompactString}, in ISO-8859-1 if
+     * it contains only characters from that character set, otherwise in
+     * UTF-8. The first time the message is used, it is converted to a
+     * string, and the table holds that string from then on. So compaction
+     * saves memory for the messages that are never used, which in a large
+     * bundle are usually most of them, and a message is decoded at most
+     * once per table. The default is 512 characters.
+     *
+     * @param minLength Minimum length of a message to be held in compact
+     *                  form; {@link Integer#MAX_VALUE} to hold all
+     *                  messages as strings
+     * @param compactor Converts messages to compact form, or null to use
+     *                  {@link CompactString}
+     */
+    public static void setCompaction(int minLength, Compactor compactor) {
+      if (minLength < 0) {
+        throw new IllegalArgumentException("minLength must not be negative");
+      }
+      MessageTable.compactLength = minLength;
+      MessageTable.compactor = compactor;
+    }
+
+    /** Sets whether explicit formats in messages, such as {@code {0,number}}
+     * and {@code {0,date}}, use the locale of the table. Applies to tables
+     * loaded after the call.
+     *
+     * <p>By default they do not: they use the default locale, and only
+     * arguments without an explicit format use the table's locale. That is
+     * what {@link Inst#str()} has always done, by creating a
+     * {@link MessageFormat} from the message and then setting its locale.
+     *
+     * @param localize Whether explicit formats use the table's locale
+     */
+    public static void setLocalizeSubformats(boolean localize) {
+      MessageTable.localizeSubformats = localize;
+    }
+
+    /** Sets how tables find the catalogs of bundles. Applies to tables
+     * loaded after the call.
+     *
+     * <p>The default is an instance of the class called "Catalogs" in the
+     * same package as this class, if there is one, which finds the catalogs
+     * written by the "compile-catalogs" goal of
+     * hydromatic-resource-maven-plugin; otherwise null.
+     *
+     * @param finder Catalog finder, or null to not look for catalogs
+     */
+    public static void setCatalogFinder(CatalogFinder finder) {
+      MessageTable.catalogFinder = finder;
+    }
+
+    /** Creates an instance of the class called "Catalogs" in the same
+     * package as this class, or returns null if there is no such class. */
+    private static CatalogFinder defaultCatalogFinder() {
+      final String name = Resources.class.getName();
+      final Class<?> clazz;
+      try {
+        clazz = Class.forName(
+            name.substring(0, name.lastIndexOf('.') + 1) + "Catalogs");
+      } catch (ClassNotFoundException e) {
+        return null;
+      }
+      if (!CatalogFinder.class.isAssignableFrom(clazz)) {
+        return null;
+      }
+      try {
+        return (CatalogFinder) clazz.newInstance();
+      } catch (InstantiationException e) {
+        throw new RuntimeException(e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /** Returns the tables of a class loader, by base name and locale. */
+    private static ConcurrentMap<String, ConcurrentMap<Locale, MessageTable>>
+    tables(ClassLoader loader) {
+      for (LoaderTables t : loaderTables) {
+        if (t.loader.get() == loader) {
+          return t.tables;
+        }
+      }
+      synchronized (MessageTable.class) {
+        final List<LoaderTables> list = new ArrayList<LoaderTables>();
+        for (LoaderTables t : loaderTables) {
+          final ClassLoader l = t.loader.get();
+          if (l == loader) {
+            return t.tables;
+          }
+          if (l != null) {
+            list.add(t);
+          }
+        }
+        final LoaderTables t = new LoaderTables(loader);
+        list.add(t);
+        loaderTables = list.toArray(new LoaderTables[list.size()]);
+        return t.tables;
+      }
+    }
+
+    /** Removes all tables from the cache. */
+    public static void clearCache() {
+      synchronized (MessageTable.class) {
+        loaderTables = new LoaderTables[0];
+      }
+    }
+
+    /** Replaces the cached tables whose files have changed since they were
+     * loaded.
+     *
+     * <p>For each table that was loaded from properties files, catalogs or
+     * shards on disk, checks whether any of those files has been modified,
+     * and if so loads a new table and puts it in the cache in place of the
+     * old one. The new table is fully loaded before it is put in the cache,
+     * so a resource that is being formatted uses either the old table or
+     * the new one, never a mixture. Templates and missing keys are held by
+     * the table, so are discarded with it. If any table is replaced, also
+     * clears {@link ResourceBundle}'s cache, so that {@link Inst#bundle()}
+     * reads the new files.
+     *
+     * <p>Tables loaded from compiled bundles are never replaced. A
+     * properties file added for a locale that had none when the table was
+     * loaded is not noticed; call {@link #clearCache()} in that case.
+     *
+     * @return Number of tables replaced
+     * @throws RuntimeException if a new table cannot be loaded; the old
+     * table remains in the cache, and other tables are still replaced
+     */
+    public static int reload() {
+      int count = 0;
+      RuntimeException error = null;
+      for (LoaderTables t : loaderTables) {
+        final ClassLoader loader = t.loader.get();
+        if (loader == null) {
+          continue;
+        }
+        int loaderCount = 0;
+        for (ConcurrentMap<Locale, MessageTable> map : t.tables.values()) {
+          for (MessageTable table : map.values()) {
+            if (!table.changed()) {
+              continue;
+            }
+            final MessageTable newTable;
+            try {
+              newTable = load(table.base, table.locale, loader, true);
+            } catch (RuntimeException e) {
+              if (error == null) {
+                error = e;
+              }
+              continue;
+            }
+            if (map.replace(table.locale, table, newTable)) {
+              ++loaderCount;
+            }
+          }
+        }
+        if (loaderCount > 0) {
+          ResourceBundle.clearCache(loader);
+          count += loaderCount;
+        }
+      }
+      if (count > 0) {
+        ResourceBundle.clearCache(Resources.class.getClassLoader());
+      }
+      if (error != null) {
+        throw error;
+      }
+      return count;
+    }
+
+    private boolean changed() {
+      for (int i = 0; i < files.length; i++) {
+        if (files[i].lastModified() != stamps[i * 2]
+            || files[i].length() != stamps[i * 2 + 1]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Removes tables from a full cache, using the "clock" algorithm: skips,
+     * and clears the reference bit of, tables that have been used recently.
+     * Never removes the table that has just been added. */
+    private static void evict(ConcurrentMap<Locale, MessageTable> map,
+        Locale added) {
+      for (int pass = 0; pass < 2 && map.size() > capacity; pass++) {
+        for (Map.Entry<Locale, MessageTable> entry : map.entrySet()) {
+          if (map.size() <= capacity) {
+            return;
+          }
+          final MessageTable table = entry.getValue();
+          if (entry.getKey().equals(added)) {
+            continue;
+          }
+          if (table.referenced && pass == 0) {
+            table.referenced = false;
+          } else {
+            map.remove(entry.getKey(), table);
+          }
+        }
+      }
+    }
+
+    /** Loads a table.
+     *
+     * @param base Base name of the bundle
+     * @param locale Locale
+     * @param loader Class loader in which to look for compiled bundles,
+     *               catalogs and shards
+     * @param strict Whether to throw if the bundle's properties files exist
+     *               but cannot be read; otherwise every resource uses its
+     *               base message
+     * @return Table
+     */
+    private static MessageTable load(String base, Locale locale,
+        ClassLoader loader, boolean strict) {
+      final Map<String, Object> messages =
+          new ConcurrentHashMap<String, Object>();
+      final List<Locale> candidates = candidateLocales(base, locale);
+      final CompiledBundle compiled = compiledBundle(base, candidates, loader);
+      if (compiled != null) {
+        final Map<String, MessageTemplate> templates =
+            new HashMap<String, MessageTemplate>();
+        compiled.templates(locale, templates);
+        final MessageTable table = new MessageTable(base, locale, loader,
+            new File[0], new long[0], messages, null);
+        for (Map.Entry<String, MessageTemplate> entry : templates.entrySet()) {
+          final MessageTemplate template = entry.getValue();
+          messages.put(entry.getKey(), template.pattern());
+          table.templates.put(entry.getKey(),
+              template.withSubformatLocale(table.subformatLocale));
+        }
+        return table;
+      }
+      final CatalogFinder finder = catalogFinder;
+      // Stamp the files before reading them, so that a change made while
+      // they are being read is noticed by the next reload.
+      final File[] files = sourceFiles(base, candidates, loader, finder);
+      final long[] stamps = new long[files.length * 2];
+      for (int i = 0; i < files.length; i++) {
+        stamps[i * 2] = files[i].lastModified();
+        stamps[i * 2 + 1] = files[i].length();
+      }
+      final Catalog catalog =
+          finder == null ? null : finder.find(base, candidates, loader);
+      if (catalog != null) {
+        return new MessageTable(base, locale, loader, files, stamps,
+            new ConcurrentHashMap<String, Object>(), catalog);
+      }
+      try {
+        ResourceBundle bundle;
+        try {
+          bundle = ResourceBundle.getBundle(base, locale, loader, CONTROL);
+        } catch (UnsupportedOperationException e) {
+          // In a named module (Java 9 and later), a Control is not allowed.
+          bundle = ResourceBundle.getBundle(base, locale, loader);
+        }
+        final int compactLength = MessageTable.compactLength;
+        final Compactor compactor = MessageTable.compactor;
+        for (Enumeration<String> keys = bundle.getKeys();
+             keys.hasMoreElements();) {
+          final String key = keys.nextElement();
+          final Object value = bundle.getObject(key);
+          if (value instanceof String) {
+            final String message = (String) value;
+            messages.put((String) INTERNER.intern(key),
+                INTERNER.intern(message.length() >= compactLength
+                    ? compactor == null
+                        ? CompactString.of(message)
+                        : compactor.compact(message)
+                    : message));
+          }
+        }
+      } catch (MissingResourceException e) {
+        if (strict && files.length > 0) {
+          throw e;
+        }
+        // There is no bundle. Every resource will use its base message.
+      }
+      return new MessageTable(base, locale, loader, files, stamps, messages,
+          null);
+    }
+
+    /** Returns the files on disk that a table would be loaded from:
+     * catalogs, shards and properties files for each candidate locale. */
+    private static File[] sourceFiles(String base, List<Locale> candidates,
+        ClassLoader loader, CatalogFinder finder) {
+      final List<URL> urls = new ArrayList<URL>();
+      if (finder != null) {
+        for (String name : finder.resourceNames(base, candidates, loader)) {
+          addResource(urls, loader, name);
+        }
+      }
+      for (Locale candidate : candidates) {
+        addResource(urls, loader,
+            CONTROL.toResourceName(CONTROL.toBundleName(base, candidate),
+                "properties"));
+      }
+      final List<File> files = new ArrayList<File>();
+      for (URL url : urls) {
+        if (url.getProtocol().equals("file")) {
+          try {
+            final File file = new File(url.toURI());
+            if (!files.contains(file)) {
+              files.add(file);
+            }
+          } catch (URISyntaxException e) {
+            // Not a file we can watch.
+          }
+        }
+      }
+      return files.toArray(new File[files.size()]);
+    }
+
+    private static void addResource(List<URL> urls, ClassLoader loader,
+        String name) {
+      final URL url = loader.getResource(name);
+      if (url != null) {
+        urls.add(url);
+      }
+    }
+
+    /** Returns the name of the class that holds a bundle compiled for a
+     * given locale; for example, "com.example.MyResourceCompiled_fr_FR".
+     *
+     * @param base Base name of the bundle
+     * @param locale Locale
+     * @return Class name
+     */
+    public static String compiledBundleName(String base, Locale locale) {
+      final String suffix = locale.toString();
+      return suffix.length() == 0
+          ? base + "Compiled"
+          : base + "Compiled_" + suffix;
+    }
+
+    /** Returns the locales in which to look for a bundle, in the same order
+     * as {@link ResourceBundle#getBundle(String, Locale)}: the locale and its
+     * parents, then the default locale and its parents, then the root
+     * locale. Each locale occurs once. */
+    private static List<Locale> candidateLocales(String base, Locale locale) {
+      final ResourceBundle.Control control =
+          ResourceBundle.Control.getControl(
+              ResourceBundle.Control.FORMAT_DEFAULT);
+      final List<Locale> candidates =
+          new ArrayList<Locale>(control.getCandidateLocales(base, locale));
+      final Locale defaultLocale = Locale.getDefault();
+      if (!locale.equals(defaultLocale)) {
+        // Both lists end with the root locale; keep the one at the end
+        int i = candidates.size() - 1;
+        for (Locale candidate
+            : control.getCandidateLocales(base, defaultLocale)) {
+          if (!candidates.contains(candidate)) {
+            candidates.add(i++, candidate);
+          }
+        }
+      }
+      return candidates;
+    }
+
+    private static ClassLoader classLoader() {
+      final ClassLoader loader =
+          Thread.currentThread().getContextClassLoader();
+      return loader != null ? loader : Resources.class.getClassLoader();
+    }
+
+    /** Finds the compiled bundle for the first of a list of locales that
+     * has one, or returns null if the bundle has not been compiled. */
+    private static CompiledBundle compiledBundle(String base,
+        List<Locale> candidates, ClassLoader loader) {
+      for (Locale candidate : candidates) {
+        final CompiledBundle compiled =
+            loadCompiledBundle(base, candidate, loader);
+        if (compiled != null) {
+          return compiled;
+        }
+      }
+      return null;
+    }
+
+    private static CompiledBundle loadCompiledBundle(String base,
+        Locale locale, ClassLoader loader) {
+      final Class<?> clazz;
+      try {
+        clazz = Class.forName(compiledBundleName(base, locale), true, loader);
+      } catch (ClassNotFoundException e) {
+        return null;
+      }
+      if (!CompiledBundle.class.isAssignableFrom(clazz)) {
+        // Compiled for a different copy of Resources.
+        return null;
+      }
+      try {
+        return (CompiledBundle) clazz.newInstance();
+      } catch (InstantiationException e) {
+        throw new RuntimeException(e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /** Returns the base name of the bundle. */
+    public String base() {
+      return base;
+    }
+
+    /** Returns the locale. */
+    public Locale locale() {
+      return locale;
+    }
+
+    /** Returns the message with a given key, or null if there is none.
+     *
+     * @param key Key
+     * @return Message pattern, or null
+     */
+    public String get(String key) {
+      final Object o = messages.get(key);
+      if (o instanceof String) {
+        return (String) o;
+      }
+      if (o != null) {
+        // A compact message is decoded the first time it is used, and the
+        // table holds the decoded string from then on.
+        final String message = (String) INTERNER.intern(o.toString());
+        messages.replace(key, o, message);
+        return message;
+      }
+      if (catalog != null) {
+        final String message = catalog.get(key);
+        if (message != null) {
+          messages.put(key, message);
+        }
+        return message;
+      }
+      return null;
+    }
+
+    /** Returns the catalog from which messages are read, or null if the
+     * table was not loaded from a catalog.
+     *
+     * @return Catalog, or null
+     */
+    public Catalog catalog() {
+      return catalog;
+    }
+
+    /** Returns the message to use for a key that is not in the bundle, or
+     * null if the key has not been recorded as missing.
+     *
+     * @param key Key
+     * @return Base message, or null
+     */
+    public String getMissing(String key) {
+      return missing.get(key);
+    }
+
+    /** Records that a key is not in the bundle, and the message to use
+     * instead.
+     *
+     * @param key Key
+     * @param baseMessage Message to use instead
+     */
+    public void putMissing(String key, String baseMessage) {
+      missing.putIfAbsent(key, baseMessage);
+    }
+
+    /** Returns the keys of resources that have been requested from this
+     * table but were not in the bundle. If the table has been evicted from
+     * the cache, the set only contains keys requested since it was
+     * reloaded.
+     *
+     * @return Sorted set of missing keys
+     */
+    public SortedSet<String> missingKeys() {
+      return Collections.unmodifiableSortedSet(
+          new TreeSet<String>(missing.keySet()));
+    }
+
+    /** Returns the compiled template of the message with a given key.
+     *
+     * <p>If the bundle has no message with that key, uses the message
+     * recorded by {@link #putMissing}, or else records and uses
+     * {@code baseMessage}, as {@link Inst#raw()} does. Templates are cached
+     * by key, so after the first call the message is not hashed or compared.
+     *
+     * @param key Key
+     * @param baseMessage Message to use if the bundle has no message with
+     *                    the key
+     * @return Template
+     */
+    public MessageTemplate template(String key, String baseMessage) {
+      MessageTemplate template = templates.get(key);
+      if (template == null) {
+        String pattern = get(key);
+        if (pattern == null) {
+          pattern = getMissing(key);
+          if (pattern == null) {
+            pattern = baseMessage;
+            putMissing(key, pattern);
+          }
+        }
+        template = MessageTemplate.compile(pattern, locale, subformatLocale);
+        final MessageTemplate template2 =
+            templates.putIfAbsent(key, template);
+        if (template2 != null) {
+          template = template2;
+        }
+      }
+      return template;
+    }
+
+    /** Tables of a class loader, by base name and locale. */
+    private static class LoaderTables {
+      final WeakReference<ClassLoader> loader;
+      final ConcurrentMap<String, ConcurrentMap<Locale, MessageTable>> tables =
+          new ConcurrentHashMap<String,
+              ConcurrentMap<Locale, MessageTable>>();
+
+      LoaderTables(ClassLoader loader) {
+        this.loader = new WeakReference<ClassLoader>(loader);
+      }
+    }
+  }
+
+  /** Reloads message tables in the background when the files they were
+   * loaded from change, so that corrected messages are used without
+   * restarting the JVM.
+   *
+   * <p>For example,
+   *
+   * <blockquote><pre>MessageReloader reloader = MessageReloader.start(5000);
+   * ...
+   * reloader.close();</pre></blockquote>
+   *
+   * @see MessageTable#reload() */
+  public static class MessageReloader implements Closeable {
+    private final AtomicLong reloadCount = new AtomicLong();
+    private volatile Throwable lastError;
+    private ScheduledExecutorService executor;
+
+    private MessageReloader() {
+    }
+
+    /** Starts a daemon thread that checks the files of cached message
+     * tables every {@code periodMillis} milliseconds, and replaces the
+     * tables whose files have changed.
+     *
+     * @param periodMillis Period between checks, in milliseconds
+     * @return Reloader
+     */
+    public static MessageReloader start(long periodMillis) {
+      final MessageReloader reloader = new MessageReloader();
+      reloader.executor = schedule("MessageReloader", periodMillis,
+          new Runnable() {
+            public void run() {
+              reloader.reload();
+            }
+          });
+      return reloader;
+    }
+
+    /** Replaces the tables whose files have changed, and records the
+     * outcome.
+     *
+     * @return Number of tables replaced
+     */
+    public int reload() {
+      try {
+        final int count = MessageTable.reload();
+        reloadCount.addAndGet(count);
+        lastError = null;
+        return count;
+      } catch (RuntimeException e) {
+        lastError = e;
+        return 0;
+      }
+    }
+
+    /** Returns the number of tables that this reloader has replaced. */
+    public long reloadCount() {
+      return reloadCount.get();
+    }
+
+    /** Returns the error from the most recent check, or null if it
+     * succeeded. */
+    public Throwable lastError() {
+      return lastError;
+    }
+
+    /** Stops the background thread. */
+    public synchronized void close() {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+    }
+  }
+
+  /** Converts messages to a compact form that uses less memory than a
+   * {@link String}.
+   *
+   * @see MessageTable#setCompaction(int, Compactor) */
+  public interface Compactor {
+    /** Converts a message to compact form. The result's
+     * {@link Object#toString()} method must return the message, and equal
+     * messages must give equal results, so that tables can share them.
+     *
+     * @param message Message
+     * @return Message in compact form
+     */
+    Object compact(String message);
+  }
+
+  /** Sequence of characters held in fewer bytes than a {@link String}.
+   *
+   * <p>The characters are encoded in ISO-8859-1, if possible, which takes
+   * one byte per character, otherwise in UTF-8. {@link #toString()} decodes
+   * them each time it is called.
+   *
+   * @see MessageTable#setCompaction(int, Compactor) */
+  static final class CompactString {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] bytes;
+    private final boolean latin1;
+    /** Hash code of the string. */
+    private final int hash;
+
+    private CompactString(byte[] bytes, boolean latin1, int hash) {
+      this.bytes = bytes;
+      this.latin1 = latin1;
+      this.hash = hash;
+    }
+
+    /** Creates a compact string.
+     *
+     * @param s String
+     * @return Compact string
+     */
+    static CompactString of(String s) {
+      final boolean latin1 = isLatin1(s);
+      return new CompactString(s.getBytes(latin1 ? ISO_8859_1 : UTF_8),
+          latin1, s.hashCode());
+    }
+
+    /** Returns whether every character of a string is in ISO-8859-1. */
+    static boolean isLatin1(String s) {
+      for (int i = 0; i < s.length(); i++) {
+        if (s.charAt(i) > 0xff) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns the number of bytes used to hold the characters. */
+    int byteCount() {
+      return bytes.length;
+    }
+
+    @Override public String toString() {
+      return new String(bytes, latin1 ? ISO_8859_1 : UTF_8);
+    }
+
+    @Override public int hashCode() {
+      return hash;
+    }
+
+    @Override public boolean equals(Object obj) {
+      return this == obj
+          || obj instanceof CompactString
+          && hash == ((CompactString) obj).hash
+          && latin1 == ((CompactString) obj).latin1
+          && Arrays.equals(bytes, ((CompactString) obj).bytes);
+    }
+  }
+
+  /** Pool of immutable objects, so that equal objects can share one
+   * instance. Holds objects weakly, so an object is removed from the pool
+   * when nothing else refers to it. */
+  static class Interner<T> {
+    private final Map<T, WeakReference<T>> map =
+        new WeakHashMap<T, WeakReference<T>>();
+
+    /** Returns the pooled object equal to a given object, adding the object
+     * to the pool if there is none. */
+    synchronized T intern(T t) {
+      final WeakReference<T> ref = map.get(t);
+      if (ref != null) {
+        final T t2 = ref.get();
+        if (t2 != null) {
+          return t2;
+        }
+      }
+      map.put(t, new WeakReference<T>(t));
+      return t;
+    }
+  }
+
+  /** Messages of a bundle that a {@link MessageTable} reads when they are
+   * first used, rather than when the table is loaded.
+   *
+   * @see CatalogFinder */
+  public interface Catalog {
+    /** Returns the message with a given key, or null if there is none.
+     *
+     * @param key Key
+     * @return Message pattern, or null
+     */
+    String get(String key);
+  }
+
+  /** Finds the catalogs of bundles.
+   *
+   * <p>If a bundle has not been compiled (see {@link CompiledBundle}),
+   * {@link MessageTable} asks its finder for a catalog, and reads the
+   * bundle's properties files only if there is none.
+   *
+   * @see MessageTable#setCatalogFinder(CatalogFinder) */
+  public interface CatalogFinder {
+    /** Returns the catalog of a bundle for the first of a list of locales
+     * that has one, or null if there is none.
+     *
+     * @param base Base name of the bundle
+     * @param locales Locales, most specific first
+     * @param loader Class loader in which to look for the catalog
+     * @return Catalog, or null
+     */
+    Catalog find(String base, List<Locale> locales, ClassLoader loader);
+
+    /** Returns the names of the resources from which {@link #find} reads
+     * catalogs, so that {@link MessageTable#reload()} can notice when they
+     * change. The resources need not exist.
+     *
+     * @param base Base name of the bundle
+     * @param locales Locales, most specific first
+     * @param loader Class loader in which to look for the catalog
+     * @return Resource names
+     */
+    List<String> resourceNames(String base, List<Locale> locales,
+        ClassLoader loader);
+  }
+
+  /** Resource bundle whose properties files have been compiled into a Java
+   * class at build time, by the "compile-bundles" goal of
+   * hydromatic-resource-maven-plugin.
+   *
+   * <p>There is a class for each locale that has a properties file. Its
+   * name is given by {@link MessageTable#compiledBundleName}, it has a
+   * public constructor with no arguments, and it holds the messages of its
+   * locale with the messages of parent locales merged in. Each message has
+   * been parsed, and is turned into a {@link MessageTemplate} without
+   * parsing.
+   *
+   * @see MessageTable */
+  public interface CompiledBundle {
+    /** Adds a template for each message to a map, keyed by the message's
+     * key.
+     *
+     * @param locale Locale with which templates will format arguments
+     * @param templates Map to which to add templates
+     */
+    void templates(Locale locale, Map<String, MessageTemplate> templates);
+  }
+
+  /** Message pattern that has been parsed into literal text and argument
+   * slots, ready to be formatted many times.
+   *
+   * <p>Formatting produces the same result as
+   * {@link MessageFormat#format(Object)} for a {@link MessageFormat} created
+   * with the same pattern and locale, but the pattern is parsed only once.
+   * Instances are immutable and thread-safe. {@link Format} objects are not
+   * thread-safe, so each thread gets its own copies of those.
+   *
+   * <p>The explicit formats in a pattern, such as {@code {0,number}} and
+   * {@code {0,date}}, may have a different locale from the template; see
+   * {@link #compile(String, Locale, Locale)}. */
+  public static class MessageTemplate {
+    private static final String[] TYPE_KEYWORDS = {
+      "", "number", "date", "time", "choice"
+    };
+
+    private static final String[] NUMBER_MODIFIER_KEYWORDS = {
+      "", "currency", "percent", "integer"
+    };
+
+    private static final String[] DATE_TIME_MODIFIER_KEYWORDS = {
+      "", "short", "medium", "long", "full"
+    };
+
+    private static final int[] DATE_TIME_MODIFIERS = {
+      DateFormat.DEFAULT, DateFormat.SHORT, DateFormat.MEDIUM,
+      DateFormat.LONG, DateFormat.FULL,
+    };
+
+    /** Longest buffer that a thread keeps for re-use. */
+    private static final int MAX_BUFFER = 1024;
+
+    /** {@code Locale.getDefault(Locale.Category)}, or null if this JDK does
+     * not have it (before Java 7). */
+    private static final Method GET_DEFAULT_LOCALE;
+
+    /** {@code Locale.Category.FORMAT}, or null. */
+    private static final Object FORMAT_CATEGORY;
+
+    static {
+      Method method = null;
+      Object category = null;
+      try {
+        final Class<?> categoryClass =
+            Class.forName("java.util.Locale$Category");
+        method = Locale.class.getMethod("getDefault", categoryClass);
+        category = categoryClass.getField("FORMAT").get(null);
+      } catch (Exception e) {
+        // Java 6; use Locale.getDefault()
+        method = null;
+        category = null;
+      }
+      GET_DEFAULT_LOCALE = method;
+      FORMAT_CATEGORY = category;
+    }
+
+    /** Per-thread buffer, or null while the thread is using it. */
+    private static final ThreadLocal<StringBuilder[]> BUFFER =
+        new ThreadLocal<StringBuilder[]>() {
+          @Override protected StringBuilder[] initialValue() {
+            return new StringBuilder[] {new StringBuilder()};
+          }
+        };
+
+    /** Per-thread copies of the formats of each template; see
+     * {@link #threadFormats()}. All templates share one {@code ThreadLocal},
+     * rather than each having its own, which would add an entry to the
+     * {@code ThreadLocalMap} of every thread that used it. Keys are weak, so
+     * that templates that are no longer used, for example after a table is
+     * reloaded, can be garbage-collected. */
+    private static final ThreadLocal<Map<MessageTemplate, Format[]>> FORMATS =
+        new ThreadLocal<Map<MessageTemplate, Format[]>>() {
+          @Override protected Map<MessageTemplate, Format[]> initialValue() {
+            return new WeakHashMap<MessageTemplate, Format[]>();
+          }
+        };
+
+    private final String pattern;
+    private final Locale locale;
+    /** Locale of the explicit formats, or null to use the default locale at
+     * the time of formatting. */
+    private final Locale subformatLocale;
+    /** Locale with which {@link #formats} were created. */
+    private final Locale formatsLocale;
+    /** Literal text; one more element than {@link #argumentNumbers}. */
+    private final String[] literals;
+    private final int[] argumentNumbers;
+    /** Format type and style of each argument slot, as they appear in the
+     * pattern. */
+    private final String[] types;
+    private final String[] styles;
+    /** Format for each argument slot, or null; not to be used directly,
+     * because {@code Format} is not thread-safe. */
+    private final Format[] formats;
+    /** Whether any element of {@link #formats} is not null. */
+    private final boolean hasFormats;
+    /** Templates for the patterns returned by choice formats. Created
+     * lazily. */
+    private volatile ConcurrentMap<String, MessageTemplate> choiceTemplates;
+    /** Copy of this template whose formats use the default locale, if it
+     * has changed since this template was created. Created lazily. */
+    private volatile MessageTemplate defaultTemplate;
+
+    private MessageTemplate(String pattern, Locale locale,
+        Locale subformatLocale, String[] literals, int[] argumentNumbers,
+        String[] types, String[] styles) {
+      assert literals.length == argumentNumbers.length + 1;
+      assert types.length == argumentNumbers.length;
+      assert styles.length == argumentNumbers.length;
+      this.pattern = pattern;
+      this.locale = locale;
+      this.subformatLocale = subformatLocale;
+      this.formatsLocale =
+          subformatLocale != null ? subformatLocale : defaultFormatLocale();
+      this.literals = literals;
+      this.argumentNumbers = argumentNumbers;
+      this.types = types;
+      this.styles = styles;
+      this.formats = new Format[argumentNumbers.length];
+      boolean hasFormats = false;
+      for (int i = 0; i < formats.length; i++) {
+        formats[i] = makeFormat(types[i], styles[i], formatsLocale);
+        hasFormats |= formats[i] != null;
+      }
+      this.hasFormats = hasFormats;
+    }
+
+    /** Creates a template from a pattern that has already been parsed; for
+     * example, by a bundle compiled at build time.
+     *
+     * @param pattern Original pattern
+     * @param locale Locale
+     * @param literals Literal text before each argument, and after the last
+     * @param argumentNumbers Argument number of each argument slot
+     * @param types Format type of each argument slot ("number", "date",
+     *              "time", "choice", or "" for none)
+     * @param styles Format style of each argument slot
+     * @return Template
+     */
+    public static MessageTemplate of(String pattern, Locale locale,
+        String[] literals, int[] argumentNumbers, String[] types,
+        String[] styles) {
+      return new MessageTemplate(pattern, locale, locale, literals.clone(),
+          argumentNumbers.clone(), types.clone(), styles.clone());
+    }
+
+    /** Parses a pattern, in {@link MessageFormat} syntax, into a template.
+     *
+     * @param pattern Pattern
+     * @param locale Locale
+     * @return Template
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public static MessageTemplate compile(String pattern, Locale locale) {
+      return compile(pattern, locale, locale);
+    }
+
+    /** Parses a pattern, in {@link MessageFormat} syntax, into a template
+     * whose explicit formats, such as {@code {0,number}}, have a different
+     * locale from the template.
+     *
+     * <p>If {@code subformatLocale} is null, the explicit formats use the
+     * default locale at the time of formatting, and the template produces
+     * the same result as a {@link MessageFormat} created by
+     * {@code new MessageFormat(pattern)} followed by
+     * {@code setLocale(locale)}. That is how {@link Inst#str()} formats, by
+     * default; see {@link MessageTable#setLocalizeSubformats(boolean)}.
+     *
+     * @param pattern Pattern
+     * @param locale Locale of arguments without an explicit format, and of
+     *               the patterns produced by choice formats
+     * @param subformatLocale Locale of explicit formats, or null
+     * @return Template
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public static MessageTemplate compile(String pattern, Locale locale,
+        Locale subformatLocale) {
+      final List<String> literals = new ArrayList<String>();
+      final List<Integer> argumentNumbers = new ArrayList<Integer>();
+      final List<String> types = new ArrayList<String>();
+      final List<String> styles = new ArrayList<String>();
+      final StringBuilder literal = new StringBuilder();
+      final StringBuilder[] segments = new StringBuilder[3];
+      int part = -1; // -1: literal; 0: index; 1: type; 2: style
+      boolean inQuote = false;
+      int braceStack = 0;
+      for (int i = 0; i < pattern.length(); ++i) {
+        final char c = pattern.charAt(i);
+        if (part < 0) {
+          if (c == '\'') {
+            if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+              literal.append(c);
+              ++i;
+            } else {
+              inQuote = !inQuote;
+            }
+          } else if (c == '{' && !inQuote) {
+            part = 0;
+            for (int j = 0; j < segments.length; j++) {
+              segments[j] = new StringBuilder();
+            }
+          } else {
+            literal.append(c);
+          }
+        } else if (inQuote) {
+          segments[part].append(c);
+          if (c == '\'') {
+            inQuote = false;
+          }
+        } else {
+          switch (c) {
+          case ',':
+            if (part < 2) {
+              ++part;
+            } else {
+              segments[part].append(c);
+            }
+            break;
+          case '{':
+            ++braceStack;
+            segments[part].append(c);
+            break;
+          case '}':
+            if (braceStack == 0) {
+              part = -1;
+              literals.add(literal.toString());
+              literal.setLength(0);
+              argumentNumbers.add(argumentNumber(segments[0].toString()));
+              types.add(segments[1].toString());
+              styles.add(segments[2].toString());
+            } else {
+              --braceStack;
+              segments[part].append(c);
+            }
+            break;
+          case ' ':
+            // Skip spaces at the start of the type
+            if (part != 1 || segments[1].length() > 0) {
+              segments[part].append(c);
+            }
+            break;
+          case '\'':
+            inQuote = true;
+            segments[part].append(c);
+            break;
+          default:
+            segments[part].append(c);
+            break;
+          }
+        }
+      }
+      if (braceStack == 0 && part >= 0) {
+        throw new IllegalArgumentException(
+            "Unmatched braces in the pattern.");
+      }
+      literals.add(literal.toString());
+      final int[] numbers = new int[argumentNumbers.size()];
+      for (int i = 0; i < numbers.length; i++) {
+        numbers[i] = argumentNumbers.get(i);
+      }
+      return new MessageTemplate(pattern, locale, subformatLocale,
+          literals.toArray(new String[literals.size()]), numbers,
+          types.toArray(new String[types.size()]),
+          styles.toArray(new String[styles.size()]));
+    }
+
+    /** Returns a template with the same pattern and locale as this, whose
+     * explicit formats have a given locale.
+     *
+     * @param subformatLocale Locale of explicit formats, or null to use the
+     *                        default locale at the time of formatting
+     * @return Template
+     * @see #compile(String, Locale, Locale)
+     */
+    public MessageTemplate withSubformatLocale(Locale subformatLocale) {
+      if (equal(subformatLocale, this.subformatLocale)) {
+        return this;
+      }
+      return new MessageTemplate(pattern, locale, subformatLocale, literals,
+          argumentNumbers, types, styles);
+    }
+
+    private static int argumentNumber(String s) {
+      final int n;
+      try {
+        n = Integer.parseInt(s);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("can't parse argument number: "
+            + s, e);
+      }
+      if (n < 0) {
+        throw new IllegalArgumentException("negative argument number: " + n);
+      }
+      return n;
+    }
+
+    /** Creates the format for an argument slot, the same way as
+     * {@link MessageFormat#applyPattern(String)}. */
+    private static Format makeFormat(String type, String style,
+        Locale locale) {
+      switch (findKeyword(type, TYPE_KEYWORDS)) {
+      case 0:
+        return null;
+      case 1: // number
+        switch (findKeyword(style, NUMBER_MODIFIER_KEYWORDS)) {
+        case 0:
+          return NumberFormat.getInstance(locale);
+        case 1:
+          return NumberFormat.getCurrencyInstance(locale);
+        case 2:
+          return NumberFormat.getPercentInstance(locale);
+        case 3:
+          return NumberFormat.getIntegerInstance(locale);
+        default:
+          return new DecimalFormat(style,
+              DecimalFormatSymbols.getInstance(locale));
+        }
+      case 2: // date
+      case 3: // time
+        final int i = findKeyword(style, DATE_TIME_MODIFIER_KEYWORDS);
+        if (i >= 0) {
+          return type.trim().equalsIgnoreCase("date")
+              ? DateFormat.getDateInstance(DATE_TIME_MODIFIERS[i], locale)
+              : DateFormat.getTimeInstance(DATE_TIME_MODIFIERS[i], locale);
+        }
+        return new SimpleDateFormat(style, locale);
+      case 4: // choice
+        try {
+          return new ChoiceFormat(style);
+        } catch (Exception e) {
+          throw new IllegalArgumentException("Choice Pattern incorrect: "
+              + style, e);
+        }
+      default:
+        throw new IllegalArgumentException("unknown format type: " + type);
+      }
+    }
+
+    private static int findKeyword(String s, String[] keywords) {
+      for (int i = 0; i < keywords.length; i++) {
+        if (s.equals(keywords[i])) {
+          return i;
+        }
+      }
+      final String s2 = s.trim().toLowerCase(Locale.ROOT);
+      if (!s2.equals(s)) {
+        for (int i = 0; i < keywords.length; i++) {
+          if (s2.equals(keywords[i])) {
+            return i;
+          }
+        }
+      }
+      return -1;
+    }
+
+    /** Returns the pattern from which this template was compiled. */
+    public String pattern() {
+      return pattern;
+    }
+
+    /** Returns the locale with which this template formats arguments. */
+    public Locale locale() {
+      return locale;
+    }
+
+    /** Returns the locale of the explicit formats in this template, or null
+     * if they use the default locale. */
+    public Locale subformatLocale() {
+      return subformatLocale;
+    }
+
+    /** Returns the literal text before each argument slot, and after the
+     * last. Together with {@link #argumentNumbers()}, {@link #types()} and
+     * {@link #styles()}, allows the template to be re-created, without
+     * parsing, by {@link #of}. */
+    public String[] literals() {
+      return literals.clone();
+    }
+
+    /** Returns the argument number of each argument slot. */
+    public int[] argumentNumbers() {
+      return argumentNumbers.clone();
+    }
+
+    /** Returns the format type of each argument slot. */
+    public String[] types() {
+      return types.clone();
+    }
+
+    /** Returns the format style of each argument slot. */
+    public String[] styles() {
+      return styles.clone();
+    }
+
+    /** Formats a list of arguments.
+     *
+     * @param args Arguments
+     * @return Formatted message
+     */
+    public String format(Object[] args) {
+      if (literals.length == 1) {
+        return literals[0];
+      }
+      final StringBuilder[] holder = BUFFER.get();
+      StringBuilder buf = holder[0];
+      if (buf == null) {
+        // This thread is already formatting a message; perhaps an argument's
+        // toString method formats a message.
+        buf = new StringBuilder();
+      } else {
+        holder[0] = null;
+      }
+      try {
+        return format(buf, args).toString();
+      } finally {
+        if (buf.capacity() <= MAX_BUFFER) {
+          buf.setLength(0);
+          holder[0] = buf;
+        }
+      }
+    }
+
+    /** Formats a list of arguments, appending to a buffer.
+     *
+     * @param buf Buffer
+     * @param args Arguments
+     * @return The buffer
+     */
+    public StringBuilder format(StringBuilder buf, Object[] args) {
+      if (subformatLocale == null && hasFormats) {
+        final Locale defaultLocale = defaultFormatLocale();
+        if (!formatsLocale.equals(defaultLocale)) {
+          return forDefaultLocale(defaultLocale).format(buf, args);
+        }
+      }
+      Format[] threadFormats = null;
+      for (int i = 0; i < argumentNumbers.length; i++) {
+        buf.append(literals[i]);
+        final int argumentNumber = argumentNumbers[i];
+        if (args == null || argumentNumber >= args.length) {
+          buf.append('{').append(argumentNumber).append('}');
+          continue;
+        }
+        final Object o = args[argumentNumber];
+        if (o == null) {
+          buf.append("null");
+          continue;
+        }
+        final Format format;
+        if (formats[i] != null) {
+          if (threadFormats == null) {
+            threadFormats = threadFormats();
+          }
+          format = threadFormats[i];
+          if (format instanceof ChoiceFormat) {
+            final String s = format.format(o);
+            if (s.indexOf('{') >= 0) {
+              choiceTemplate(s).format(buf, args);
+            } else {
+              buf.append(s);
+            }
+            continue;
+          }
+        } else if (o instanceof Number) {
+          if (threadFormats == null) {
+            threadFormats = threadFormats();
+          }
+          format = defaultFormat(threadFormats, formats.length);
+        } else if (o instanceof Date) {
+          if (threadFormats == null) {
+            threadFormats = threadFormats();
+          }
+          format = defaultFormat(threadFormats, formats.length + 1);
+        } else {
+          buf.append(o.toString());
+          continue;
+        }
+        buf.append(format.format(o));
+      }
+      return buf.append(literals[argumentNumbers.length]);
+    }
+
+    /** Returns the default locale for formatting, which is what
+     * {@link MessageFormat#MessageFormat(String)} uses:
+     * {@code Locale.getDefault(Locale.Category.FORMAT)} in Java 7 and later,
+     * and {@link Locale#getDefault()} before. */
+    static Locale defaultFormatLocale() {
+      if (GET_DEFAULT_LOCALE != null) {
+        try {
+          return (Locale) GET_DEFAULT_LOCALE.invoke(null, FORMAT_CATEGORY);
+        } catch (IllegalAccessException e) {
+          throw new AssertionError(e);
+        } catch (InvocationTargetException e) {
+          throw new AssertionError(e);
+        }
+      }
+      return Locale.getDefault();
+    }
+
+    /** Returns a copy of this template whose formats use the current default
+     * locale. */
+    private MessageTemplate forDefaultLocale(Locale defaultLocale) {
+      MessageTemplate template = defaultTemplate;
+      if (template == null || !template.formatsLocale.equals(defaultLocale)) {
+        defaultTemplate = template =
+            new MessageTemplate(pattern, locale, defaultLocale, literals,
+                argumentNumbers, types, styles);
+      }
+      return template;
+    }
+
+    private MessageTemplate choiceTemplate(String pattern) {
+      ConcurrentMap<String, MessageTemplate> map = choiceTemplates;
+      if (map == null) {
+        choiceTemplates = map =
+            new ConcurrentHashMap<String, MessageTemplate>();
+      }
+      MessageTemplate template = map.get(pattern);
+      if (template == null) {
+        template = compile(pattern, locale);
+        map.put(pattern, template);
+      }
+      return template;
+    }
+
+    /** Returns copies of {@link #formats}, followed by a default number
+     * format and a default date format, for the current thread, creating
+     * them if necessary. */
+    private Format[] threadFormats() {
+      final Map<MessageTemplate, Format[]> map = FORMATS.get();
+      Format[] f = map.get(this);
+      if (f == null) {
+        f = new Format[formats.length + 2];
+        for (int i = 0; i < formats.length; i++) {
+          if (formats[i] != null) {
+            f[i] = (Format) formats[i].clone();
+          }
+        }
+        map.put(this, f);
+      }
+      return f;
+    }
+
+    private Format defaultFormat(Format[] f, int i) {
+      if (f[i] == null) {
+        f[i] = i == formats.length
+            ? NumberFormat.getInstance(locale)
+            : DateFormat.getDateTimeInstance(DateFormat.SHORT,
+                DateFormat.SHORT, locale);
+      }
+      return f[i];
+    }
+
+    @Override public String toString() {
+      return pattern;
+    }
+  }
+
+  /**
+   * <code>ShadowResourceBundle</code> is an abstract base class for
+   * {@link ResourceBundle} classes which are backed by a properties file. When
+   * the class is created, it loads a properties file with the same name as the
+   * class.
+   *
+   * <p> In the standard scheme (see {@link ResourceBundle}), if
+   * you call <code>{@link ResourceBundle#getBundle}("foo.MyResource")</code>,
+   * it first looks for a class called <code>foo.MyResource</code>, then
+   * looks for a file called <code>foo/MyResource.properties</code>. If it finds
+   * the file, it creates a {@link PropertyResourceBundle} and loads the class.
+   * The problem is if you want to load the <code>.properties</code> file
+   * into a dedicated class; <code>ShadowResourceBundle</code> helps with this
+   * case.
+   *
+   * <p> You should create a class as follows:<blockquote>
+   *
+   * <pre>package foo;
+   *class MyResource extends ShadowResourceBundle {
+   *    public MyResource() throws java.io.IOException {
+   *    }
+   *}</pre>
+   *
+   * </blockquote>
+   *
+   * Then when you call
+   * {@link ResourceBundle#getBundle ResourceBundle.getBundle("foo.MyResource")},
+   * it will find the class before the properties file, but still automatically
+   * load the properties file based upon the name of the class.
+   */
+  public abstract static class ShadowResourceBundle extends ResourceBundle {
+    private MyPropertyResourceBundle bundle;
+
+    /**
+     * Creates a <code>ShadowResourceBundle</code>, and reads resources from
+     * a <code>.properties</code> file with the same name as the current class.
+     * For example, if the class is called <code>foo.MyResource_en_US</code>,
+     * reads from <code>foo/MyResource_en_US.properties</code>, then
+     * <code>foo/MyResource_en.properties</code>, then
+     * <code>foo/MyResource.properties</code>.
+     *
+     * <p>Files are parsed using {@link PropertiesParser}.
+     *
+     * @throws IOException on error
+     */
+    protected ShadowResourceBundle() throws IOException {
+      super();
+      Class clazz = getClass();
+      final Map<String, String> map = loadPropertiesFile(clazz);
+      if (map == null) {
+        throw new IOException("could not open properties file for "
+            + getClass());
+      }
+      MyPropertyResourceBundle previousBundle =
+          new MyPropertyResourceBundle(map);
+      bundle = previousBundle;
+      // Now load properties files for parent locales, which we deduce from
+      // the names of our super-class, and its super-class.
+      while (true) {
+        clazz = clazz.getSuperclass();
+        if (clazz == null
+            || clazz == ShadowResourceBundle.class
             || !ResourceBundle.class.isAssignableFrom(clazz)) {
           break;
         }
-        stream = openPropertiesFile(clazz);
-        if (stream == null) {
-          continue;
+        final Map<String, String> parentMap = loadPropertiesFile(clazz);
+        if (parentMap == null) {
+          continue;
+        }
+        final MyPropertyResourceBundle newBundle =
+            new MyPropertyResourceBundle(parentMap);
+        previousBundle.setParentTrojan(newBundle);
+        previousBundle = newBundle;
+      }
+    }
+
+    /** Reads and parses the properties file corresponding to a given class,
+     * or returns null if there is no such file. */
+    private static Map<String, String> loadPropertiesFile(Class clazz)
+        throws IOException {
+      final InputStream stream = openPropertiesFile(clazz);
+      if (stream == null) {
+        return null;
+      }
+      try {
+        return PropertiesParser.parse(stream);
+      } finally {
+        stream.close();
+      }
+    }
+
+    /**
+     * Opens the properties file corresponding to a given class. The code is
+     * copied from {@link ResourceBundle}.
+     */
+    private static InputStream openPropertiesFile(Class clazz) {
+      final ClassLoader loader = clazz.getClassLoader();
+      final String resName = clazz.getName().replace('.', '/') + ".properties";
+      return (InputStream) java.security.AccessController.doPrivileged(
+          new java.security.PrivilegedAction() {
+            public Object run() {
+              if (loader != null) {
+                return loader.getResourceAsStream(resName);
+              } else {
+                return ClassLoader.getSystemResourceAsStream(resName);
+              }
+            }
+          });
+    }
+
+    public Enumeration<String> getKeys() {
+      return bundle.getKeys();
+    }
+
+    protected Object handleGetObject(String key) {
+      return bundle.getObject(key);
+    }
+
+    /**
+     * Returns the instance of the <code>baseName</code> resource bundle
+     * for the given locale.
+     *
+     * <p> This method should be called from a derived class, with the proper
+     * casting:<blockquote>
+     *
+     * <pre>class MyResource extends ShadowResourceBundle {
+     *    ...
+     *
+     *    /&#42;&#42;
+     *      &#42; Retrieves the instance of {&#64;link MyResource} appropriate
+     *      &#42; to the given locale.
+     *      &#42;&#42;/
+     *    public static MyResource instance(Locale locale) {
+     *       return (MyResource) instance(
+     *           MyResource.class.getName(), locale,
+     *           ResourceBundle.getBundle(MyResource.class.getName(), locale));
+     *    }
+     *    ...
+     * }</pre></blockquote>
+     *
+     * @param baseName Base name
+     * @param locale Locale
+     * @param bundle Resource bundle
+     * @return Resource bundle
+     */
+    protected static ShadowResourceBundle instance(
+        String baseName, Locale locale, ResourceBundle bundle) {
+      if (bundle instanceof PropertyResourceBundle) {
+        throw new ClassCastException(
+            "ShadowResourceBundle.instance('" + baseName + "','"
+            + locale + "') found "
+            + baseName + "_" + locale + ".properties but not "
+            + baseName + "_" + locale + ".class");
+      }
+      return (ShadowResourceBundle) bundle;
+    }
+  }
+
+  /** Resource bundle based on properties. Like
+   * {@link PropertyResourceBundle}, but its properties have already been
+   * parsed, and it can be given a parent. */
+  static class MyPropertyResourceBundle extends ResourceBundle {
+    private final Map<String, String> map;
+
+    MyPropertyResourceBundle(Map<String, String> map) {
+      this.map = map;
+    }
+
+    void setParentTrojan(ResourceBundle parent) {
+      super.setParent(parent);
+    }
+
+    protected Object handleGetObject(String key) {
+      if (key == null) {
+        throw new NullPointerException();
+      }
+      return map.get(key);
+    }
+
+    public Enumeration<String> getKeys() {
+      if (parent == null) {
+        return Collections.enumeration(map.keySet());
+      }
+      final Set<String> keys = new HashSet<String>(map.keySet());
+      for (Enumeration<String> e = parent.getKeys(); e.hasMoreElements();) {
+        keys.add(e.nextElement());
+      }
+      return Collections.enumeration(keys);
+    }
+
+    @Override protected Set<String> handleKeySet() {
+      return map.keySet();
+    }
+  }
+
+  /** Parser for files in the format read by
+   * {@link Properties#load(InputStream)}.
+   *
+   * <p>Decodes characters directly from a byte buffer as it parses, without
+   * first converting the whole file to characters, and appends escaped
+   * characters and continuation lines straight into the key or value.
+   *
+   * <p>Reads the file as UTF-8; if the file is not valid UTF-8, reads it as
+   * ISO-8859-1, the encoding of {@link Properties#load(InputStream)}. (This
+   * is what {@link PropertyResourceBundle} does in Java 9 and later.) */
+  public static class PropertiesParser {
+    private final ByteBuffer buffer;
+    private final boolean utf8;
+    private final int limit;
+    private int pos;
+    /** Low surrogate of a supplementary character whose high surrogate has
+     * just been returned by {@link #read()}, or -1. */
+    private int pending = -1;
+    private final StringBuilder key = new StringBuilder();
+    private final StringBuilder value = new StringBuilder();
+
+    private PropertiesParser(ByteBuffer buffer, boolean utf8) {
+      this.buffer = buffer;
+      this.utf8 = utf8;
+      this.pos = buffer.position();
+      this.limit = buffer.limit();
+    }
+
+    /** Parses properties from a buffer, between its position and limit.
+     * Does not change the buffer's position.
+     *
+     * @param buffer Buffer
+     * @return Properties, in the order that they occur in the file
+     * @throws IllegalArgumentException if the input contains a malformed
+     * "&#92;uxxxx" escape
+     */
+    public static Map<String, String> parse(ByteBuffer buffer) {
+      try {
+        return new PropertiesParser(buffer, true).parse();
+      } catch (CharacterCodingException e) {
+        try {
+          return new PropertiesParser(buffer, false).parse();
+        } catch (CharacterCodingException e2) {
+          throw new AssertionError(e2); // ISO-8859-1 is never malformed
+        }
+      }
+    }
+
+    /** Parses properties from a stream. Does not close the stream.
+     *
+     * @param in Input stream
+     * @return Properties, in the order that they occur in the file
+     * @throws IOException if the stream cannot be read
+     * @throws IllegalArgumentException if the input contains a malformed
+     * "&#92;uxxxx" escape
+     */
+    public static Map<String, String> parse(InputStream in)
+        throws IOException {
+      byte[] bytes = new byte[Math.max(in.available(), 8192)];
+      int n = 0;
+      for (int r; (r = in.read(bytes, n, bytes.length - n)) >= 0;) {
+        n += r;
+        if (n == bytes.length) {
+          bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+      }
+      return parse(ByteBuffer.wrap(bytes, 0, n));
+    }
+
+    private Map<String, String> parse() throws CharacterCodingException {
+      final Map<String, String> map = new LinkedHashMap<String, String>();
+      int c = read();
+      while (c >= 0) {
+        switch (c) {
+        case ' ':
+        case '\t':
+        case '\f':
+        case '\n':
+        case '\r':
+          // Blank line, or white space at the start of a line
+          c = read();
+          continue;
+        case '#':
+        case '!':
+          // Comment; a comment line is never continued
+          do {
+            c = read();
+          } while (c >= 0 && c != '\n' && c != '\r');
+          continue;
+        default:
+          break;
+        }
+        // The key ends at the first unescaped '=', ':' or white space. White
+        // space is followed by an optional '=' or ':'.
+        key.setLength(0);
+        boolean separator = false;
+        while (c >= 0 && c != '\n' && c != '\r') {
+          if (c == '\\') {
+            c = escape(key);
+          } else if (c == '=' || c == ':') {
+            separator = true;
+            c = read();
+            break;
+          } else if (c == ' ' || c == '\t' || c == '\f') {
+            c = read();
+            break;
+          } else {
+            key.append((char) c);
+            c = read();
+          }
+        }
+        c = skipWhiteSpace(c);
+        if (!separator && (c == '=' || c == ':')) {
+          c = skipWhiteSpace(read());
+        }
+        value.setLength(0);
+        while (c >= 0 && c != '\n' && c != '\r') {
+          if (c == '\\') {
+            c = escape(value);
+          } else {
+            value.append((char) c);
+            c = read();
+          }
+        }
+        map.put(key.toString(), value.toString());
+      }
+      return map;
+    }
+
+    private int skipWhiteSpace(int c) throws CharacterCodingException {
+      while (c == ' ' || c == '\t' || c == '\f') {
+        c = read();
+      }
+      return c;
+    }
+
+    /** Handles the character after a backslash. Appends the escaped
+     * character to a buffer; or, if the backslash ends a line, skips the
+     * line break and the white space at the start of the next line.
+     * Returns the next character. */
+    private int escape(StringBuilder buf) throws CharacterCodingException {
+      int c = read();
+      switch (c) {
+      case -1:
+        return c;
+      case '\r':
+        c = read();
+        if (c == '\n') {
+          c = read();
+        }
+        return skipWhiteSpace(c);
+      case '\n':
+        return skipWhiteSpace(read());
+      case 't':
+        buf.append('\t');
+        break;
+      case 'n':
+        buf.append('\n');
+        break;
+      case 'r':
+        buf.append('\r');
+        break;
+      case 'f':
+        buf.append('\f');
+        break;
+      case 'u':
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+          c = read();
+          final int digit = c < 0 ? -1 : Character.digit(c, 16);
+          if (digit < 0) {
+            throw new IllegalArgumentException(
+                "Malformed \\uxxxx encoding.");
+          }
+          v = (v << 4) + digit;
+        }
+        buf.append((char) v);
+        break;
+      default:
+        buf.append((char) c);
+        break;
+      }
+      return read();
+    }
+
+    /** Returns the next character, or -1 at the end of the input. A
+     * supplementary character is returned as two surrogates. */
+    private int read() throws CharacterCodingException {
+      if (pending >= 0) {
+        final int c = pending;
+        pending = -1;
+        return c;
+      }
+      if (pos >= limit) {
+        return -1;
+      }
+      final int b = buffer.get(pos++) & 0xff;
+      if (b < 0x80 || !utf8) {
+        return b;
+      }
+      final int n;
+      int c;
+      if ((b & 0xe0) == 0xc0) {
+        n = 1;
+        c = b & 0x1f;
+      } else if ((b & 0xf0) == 0xe0) {
+        n = 2;
+        c = b & 0x0f;
+      } else if ((b & 0xf8) == 0xf0) {
+        n = 3;
+        c = b & 0x07;
+      } else {
+        throw new MalformedInputException(1);
+      }
+      if (pos + n > limit) {
+        throw new MalformedInputException(1);
+      }
+      for (int i = 0; i < n; i++) {
+        final int b2 = buffer.get(pos++) & 0xff;
+        if ((b2 & 0xc0) != 0x80) {
+          throw new MalformedInputException(i + 1);
+        }
+        c = (c << 6) | (b2 & 0x3f);
+      }
+      switch (n) {
+      case 1:
+        if (c < 0x80) {
+          throw new MalformedInputException(2);
+        }
+        return c;
+      case 2:
+        if (c < 0x800 || c >= 0xd800 && c <= 0xdfff) {
+          throw new MalformedInputException(3);
+        }
+        return c;
+      default:
+        if (c < 0x10000 || c > 0x10ffff) {
+          throw new MalformedInputException(4);
+        }
+        c -= 0x10000;
+        pending = 0xdc00 + (c & 0x3ff);
+        return 0xd800 + (c >> 10);
+      }
+    }
+  }
+
+  /** Handler for a resource proxy.
+   *
+   * <p>Methods are dispatched using a table, built when the proxy is created,
+   * that contains a {@link Slot} for each method of the interface. The proxy
+   * passes the same {@link Method} object each time a given method is called,
+   * so after the first call, dispatch is a lookup in an identity map. */
+  private static class Handler implements InvocationHandler {
+    private final String base;
+    private final PropertyAccessor accessor;
+
+    /** Slots, keyed by method, compared using {@link Method#equals}. */
+    private final Map<Method, Slot> slots = new HashMap<Method, Slot>();
+
+    /** Slots, keyed by the method objects that the proxy has passed to
+     * {@link #invoke}. Copy-on-write; never modified after it is
+     * published. */
+    private volatile Map<Method, Slot> identitySlots =
+        new IdentityHashMap<Method, Slot>();
+
+    Handler(String base, PropertyAccessor accessor, Class<?> clazz) {
+      this.base = base;
+      this.accessor = accessor;
+      for (Method method : clazz.getMethods()) {
+        slots.put(method, new Slot(method));
+      }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      Slot slot = identitySlots.get(method);
+      if (slot == null) {
+        slot = register(method);
+      }
+      return slot.invoke(this, args);
+    }
+
+    /** Finds or creates the slot for a method, and adds it to the identity
+     * map. */
+    private synchronized Slot register(Method method) {
+      Slot slot = identitySlots.get(method);
+      if (slot != null) {
+        return slot;
+      }
+      slot = slots.get(method);
+      if (slot == null) {
+        // A method not in the interface, such as Object.toString().
+        slot = new Slot(method);
+        slots.put(method, slot);
+      }
+      final Map<Method, Slot> map =
+          new IdentityHashMap<Method, Slot>(identitySlots);
+      map.put(method, slot);
+      identitySlots = map;
+      return slot;
+    }
+  }
+
+  /** Entry in the dispatch table of a resource proxy. Holds everything about
+   * a method that can be computed before it is called, and caches the
+   * instances created by methods that have no arguments. */
+  private static class Slot {
+    private final Method method;
+    private final boolean inst;
+    private final Constructor<?> constructor;
+
+    /** Argument that identifies the method to the constructor: the
+     * {@link MethodInfo}, computed once for this slot, or the {@link Method}
+     * if the return type has no constructor that accepts a MethodInfo. */
+    private final Object target;
+    private final NoSuchMethodException noSuchMethod;
+
+    /** Instances of a resource without arguments, one per locale. */
+    private final ConcurrentHashMap<Locale, Object> instances;
+
+    /** Instance of a property without arguments, created on first use. */
+    private volatile Object prop;
+
+    Slot(Method method) {
+      this.method = method;
+      final Class<?> returnType = method.getReturnType();
+      this.inst = Inst.class.isAssignableFrom(returnType);
+      Constructor<?> constructor = null;
+      Object target = method;
+      NoSuchMethodException noSuchMethod = null;
+      if (!method.equals(BuiltinMethod.OBJECT_TO_STRING.method)) {
+        try {
+          // If the method is invalid (say its default value does not parse),
+          // use the Method constructor, which throws on each invocation.
+          constructor = constructor(returnType, MethodInfo.class);
+          target = MethodInfo.of(method);
+        } catch (NoSuchMethodException e) {
+          constructor = null;
+        } catch (RuntimeException e) {
+          constructor = null;
+        }
+        if (constructor == null) {
+          try {
+            constructor = constructor(returnType, Method.class);
+          } catch (NoSuchMethodException e) {
+            noSuchMethod = e;
+          }
+        }
+      }
+      this.constructor = constructor;
+      this.target = target;
+      this.noSuchMethod = noSuchMethod;
+      this.instances = inst && method.getParameterTypes().length == 0
+          ? new ConcurrentHashMap<Locale, Object>()
+          : null;
+    }
+
+    private Constructor<?> constructor(Class<?> returnType, Class<?> type)
+        throws NoSuchMethodException {
+      return inst
+          ? returnType.getConstructor(String.class, Locale.class, type,
+              Object[].class)
+          : returnType.getConstructor(PropertyAccessor.class, type);
+    }
+
+    Object invoke(Handler handler, Object[] args) throws Throwable {
+      if (constructor == null) {
+        if (noSuchMethod != null) {
+          throw noSuchMethod;
+        }
+        return handler.toString();
+      }
+      if (inst) {
+        final Locale locale = Resources.getThreadOrDefaultLocale();
+        if (instances == null) {
+          return newInstance(handler.base, locale, target, args);
+        }
+        Object o = instances.get(locale);
+        if (o == null) {
+          o = newInstance(handler.base, locale, target, NO_ARGS);
+          final Object o2 = instances.putIfAbsent(locale, o);
+          if (o2 != null) {
+            o = o2;
+          }
+        }
+        return o;
+      }
+      if (args != null && args.length > 0) {
+        return newInstance(handler.accessor, target);
+      }
+      Object o = prop;
+      if (o == null) {
+        prop = o = newInstance(handler.accessor, target);
+      }
+      return o;
+    }
+
+    private Object newInstance(Object... args) throws Throwable {
+      try {
+        return constructor.newInstance(args);
+      } catch (InvocationTargetException e) {
+        final Throwable e2 = e.getTargetException();
+        if (e2 instanceof RuntimeException) {
+          throw e2;
+        }
+        if (e2 instanceof Error) {
+          throw e2;
+        }
+        throw e;
+      }
+    }
+  }
+
+  enum BuiltinMethod {
+    OBJECT_TO_STRING(Object.class, "toString");
+
+    public final Method method;
+
+    BuiltinMethod(Class clazz, String methodName, Class... argumentTypes) {
+      this.method = lookupMethod(clazz, methodName, argumentTypes);
+    }
+
+    /**
+     * Finds a method of a given name that accepts a given set of arguments.
+     * Includes in its search inherited methods and methods with wider argument
+     * types.
+     *
+     * @param clazz Class against which method is invoked
+     * @param methodName Name of method
+     * @param argumentTypes Types of arguments
+     *
+     * @return A method with the given name that matches the arguments given
+     * @throws RuntimeException if method not found
+     */
+    public static Method lookupMethod(Class clazz, String methodName,
+        Class... argumentTypes) {
+      try {
+        //noinspection unchecked
+        return clazz.getMethod(methodName, argumentTypes);
+      } catch (NoSuchMethodException e) {
+        throw new RuntimeException(
+            "while resolving method '" + methodName
+                + Arrays.toString(argumentTypes)
+                + "' in class " + clazz, e);
+      }
+    }
+  }
+
+  /** Implementation of {@link PropertyAccessor} that gets the value of each
+   * property as a string, and converts it to the property's type each time
+   * it is read. */
+  public abstract static class StringPropertyAccessor
+      implements TypedPropertyAccessor {
+    /** Returns the value of a property, or null if it is not set. */
+    protected abstract String get(String key);
+
+    public boolean isSet(Prop p) {
+      return get(p.key) != null;
+    }
+
+    public int intValue(IntProp p) {
+      final String s = get(p.key);
+      if (s != null) {
+        return Integer.parseInt(s, 10);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public int intValue(IntProp p, int defaultValue) {
+      final String s = get(p.key);
+      return s == null ? defaultValue : Integer.parseInt(s, 10);
+    }
+
+    public String stringValue(StringProp p) {
+      final String s = get(p.key);
+      if (s != null) {
+        return s;
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public String stringValue(StringProp p, String defaultValue) {
+      final String s = get(p.key);
+      return s == null ? defaultValue : s;
+    }
+
+    public boolean booleanValue(BooleanProp p) {
+      final String s = get(p.key);
+      if (s != null) {
+        return Boolean.parseBoolean(s);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public boolean booleanValue(BooleanProp p, boolean defaultValue) {
+      final String s = get(p.key);
+      return s == null ? defaultValue : Boolean.parseBoolean(s);
+    }
+
+    public double doubleValue(DoubleProp p) {
+      final String s = get(p.key);
+      if (s != null) {
+        return Double.parseDouble(s);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public double doubleValue(DoubleProp p, double defaultValue) {
+      final String s = get(p.key);
+      return s == null ? defaultValue : Double.parseDouble(s);
+    }
+
+    public long longValue(LongProp p) {
+      final String s = get(p.key);
+      if (s != null) {
+        return p.parse(s);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public long longValue(LongProp p, long defaultValue) {
+      final String s = get(p.key);
+      return s == null ? defaultValue : p.parse(s);
+    }
+
+    public <T> T objectValue(ObjectProp<T> p) {
+      final String s = get(p.key);
+      if (s != null) {
+        return p.parse(s);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public <T> T objectValue(ObjectProp<T> p, T defaultValue) {
+      final String s = get(p.key);
+      return s == null ? defaultValue : p.parse(s);
+    }
+  }
+
+  /** Implementation of {@link PropertyAccessor} that reads from a
+   * {@link Properties}. */
+  private static class PropertiesAccessor extends StringPropertyAccessor {
+    private final Properties properties;
+
+    PropertiesAccessor(Properties properties) {
+      this.properties = properties;
+    }
+
+    protected String get(String key) {
+      return properties.getProperty(key);
+    }
+
+    @Override public boolean isSet(Prop p) {
+      return properties.containsKey(p.key);
+    }
+  }
+
+  /** Creates a factory for daemon threads with a given name. */
+  static ThreadFactory daemonThreadFactory(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /** Creates an executor with one daemon thread that runs a task
+   * periodically. */
+  static ScheduledExecutorService schedule(String name, long periodMillis,
+      Runnable task) {
+    final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(daemonThreadFactory(name));
+    executor.scheduleWithFixedDelay(task, periodMillis, periodMillis,
+        TimeUnit.MILLISECONDS);
+    return executor;
+  }
+
+  /** Returns the methods of an interface that return properties. */
+  static List<Method> propertyMethods(Class<?> clazz) {
+    final List<Method> methods = new ArrayList<Method>();
+    for (Method method : clazz.getMethods()) {
+      if (!Modifier.isStatic(method.getModifiers())
+          && Prop.class.isAssignableFrom(method.getReturnType())) {
+        methods.add(method);
+      }
+    }
+    return methods;
+  }
+
+  /** Property accessor that reads from an immutable snapshot of a
+   * {@link Properties}.
+   *
+   * <p>When the snapshot is created, it parses the value of every property
+   * declared in an interface and stores it in a slot of the right primitive
+   * type, so reading a property takes no lock and does no parsing. If a
+   * value is not valid for its property's type, creating the snapshot
+   * fails.
+   *
+   * <p>Properties that are not declared in the interface are parsed each
+   * time they are read, as in {@link Resources#create(Properties, Class)}.
+   * Changes to the {@code Properties} after the snapshot is created are not
+   * seen. */
+  public static class SnapshotPropertyAccessor
+      implements VersionedPropertyAccessor, TypedPropertyAccessor {
+    /** Values by key; not private, so that CachingPropertyAccessor can
+     * compare snapshots. */
+    final Map<String, String> values;
+    private final Map<String, Slot> slots;
+
+    private SnapshotPropertyAccessor(Map<String, String> values,
+        Map<String, Slot> slots) {
+      this.values = values;
+      this.slots = slots;
+    }
+
+    /** Creates a snapshot of the properties declared in an interface.
+     *
+     * @param properties Properties
+     * @param clazz Interface that declares properties
+     * @return Snapshot
+     * @throws IllegalArgumentException if a property's value is not valid
+     * for its type
+     */
+    public static SnapshotPropertyAccessor of(Properties properties,
+        Class<?> clazz) {
+      return of(toMap(properties), clazz);
+    }
+
+    /** Creates a snapshot of the properties declared in an interface, and
+     * expands references such as "${key}" in their values; see
+     * {@link Interpolator}.
+     *
+     * @param properties Properties
+     * @param clazz Interface that declares properties
+     * @return Snapshot
+     * @throws IllegalArgumentException if a property's value is not valid
+     * for its type, or if references form a cycle
+     */
+    public static SnapshotPropertyAccessor interpolated(Properties properties,
+        Class<?> clazz) {
+      return interpolated(toMap(properties), clazz);
+    }
+
+    /** Creates a snapshot of the properties declared in an interface, with
+     * values from a map, and expands references such as "${key}" in their
+     * values; see {@link Interpolator}.
+     *
+     * @param map Property values
+     * @param clazz Interface that declares properties
+     * @return Snapshot
+     * @throws IllegalArgumentException if a property's value is not valid
+     * for its type, or if references form a cycle
+     */
+    public static SnapshotPropertyAccessor interpolated(
+        Map<String, String> map, Class<?> clazz) {
+      return of(Interpolator.of(map).values(), clazz);
+    }
+
+    private static Map<String, String> toMap(Properties properties) {
+      final Map<String, String> values = new HashMap<String, String>();
+      for (String name : properties.stringPropertyNames()) {
+        values.put(name, properties.getProperty(name));
+      }
+      return values;
+    }
+
+    /** Creates a snapshot of the properties declared in an interface, with
+     * values from a map.
+     *
+     * @param map Property values
+     * @param clazz Interface that declares properties
+     * @return Snapshot
+     * @throws IllegalArgumentException if a property's value is not valid
+     * for its type
+     */
+    public static SnapshotPropertyAccessor of(Map<String, String> map,
+        Class<?> clazz) {
+      final Map<String, String> values = new HashMap<String, String>(map);
+      final Map<String, Slot> slots = new HashMap<String, Slot>();
+      for (Method method : propertyMethods(clazz)) {
+        final Class<?> returnType = method.getReturnType();
+        final MethodInfo info = MethodInfo.of(method);
+        final String key = info.key;
+        final String s = values.get(key);
+        if (s == null) {
+          continue;
+        }
+        Slot slot = slots.get(key);
+        if (slot == null) {
+          slot = new Slot(s);
+          slots.put(key, slot);
+        }
+        try {
+          slot.parse(info);
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("invalid value '" + s
+              + "' for property '" + key + "' of type "
+              + returnType.getSimpleName(), e);
+        }
+      }
+      return new SnapshotPropertyAccessor(values, slots);
+    }
+
+    /** Returns this snapshot; it never changes. */
+    public Object version() {
+      return this;
+    }
+
+    public boolean isSet(Prop p) {
+      return values.containsKey(p.key);
+    }
+
+    public int intValue(IntProp p) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && slot.isInt) {
+        return slot.intValue;
+      }
+      final String s = values.get(p.key);
+      if (s != null) {
+        return Integer.parseInt(s, 10);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public int intValue(IntProp p, int defaultValue) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && slot.isInt) {
+        return slot.intValue;
+      }
+      final String s = values.get(p.key);
+      return s == null ? defaultValue : Integer.parseInt(s, 10);
+    }
+
+    public String stringValue(StringProp p) {
+      final String s = values.get(p.key);
+      if (s != null) {
+        return s;
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public String stringValue(StringProp p, String defaultValue) {
+      final String s = values.get(p.key);
+      return s == null ? defaultValue : s;
+    }
+
+    public boolean booleanValue(BooleanProp p) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && slot.isBoolean) {
+        return slot.booleanValue;
+      }
+      final String s = values.get(p.key);
+      if (s != null) {
+        return Boolean.parseBoolean(s);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public boolean booleanValue(BooleanProp p, boolean defaultValue) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && slot.isBoolean) {
+        return slot.booleanValue;
+      }
+      final String s = values.get(p.key);
+      return s == null ? defaultValue : Boolean.parseBoolean(s);
+    }
+
+    public double doubleValue(DoubleProp p) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && slot.isDouble) {
+        return slot.doubleValue;
+      }
+      final String s = values.get(p.key);
+      if (s != null) {
+        return Double.parseDouble(s);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public double doubleValue(DoubleProp p, double defaultValue) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && slot.isDouble) {
+        return slot.doubleValue;
+      }
+      final String s = values.get(p.key);
+      return s == null ? defaultValue : Double.parseDouble(s);
+    }
+
+    public long longValue(LongProp p) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && slot.longType == p.info.returnType) {
+        return slot.longValue;
+      }
+      final String s = values.get(p.key);
+      if (s != null) {
+        return p.parse(s);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public long longValue(LongProp p, long defaultValue) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && slot.longType == p.info.returnType) {
+        return slot.longValue;
+      }
+      final String s = values.get(p.key);
+      return s == null ? defaultValue : p.parse(s);
+    }
+
+    public <T> T objectValue(ObjectProp<T> p) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && p.info.genericReturnType.equals(slot.objectType)) {
+        //noinspection unchecked
+        return (T) slot.objectValue;
+      }
+      final String s = values.get(p.key);
+      if (s != null) {
+        return p.parse(s);
+      }
+      p.checkDefault2();
+      return p.defaultValue;
+    }
+
+    public <T> T objectValue(ObjectProp<T> p, T defaultValue) {
+      final Slot slot = slots.get(p.key);
+      if (slot != null && p.info.genericReturnType.equals(slot.objectType)) {
+        //noinspection unchecked
+        return (T) slot.objectValue;
+      }
+      final String s = values.get(p.key);
+      return s == null ? defaultValue : p.parse(s);
+    }
+
+    /** Parsed value of a property. A property may be declared with more
+     * than one type, so a slot has a field for each type. If a property is
+     * declared with more than one long or object type, the slot holds the
+     * value for the last, and the others are parsed when they are read. */
+    private static class Slot {
+      final String s;
+      boolean isInt;
+      int intValue;
+      boolean isBoolean;
+      boolean booleanValue;
+      boolean isDouble;
+      double doubleValue;
+      Class<?> longType;
+      long longValue;
+      Type objectType;
+      Object objectValue;
+
+      Slot(String s) {
+        this.s = s;
+      }
+
+      void parse(MethodInfo info) {
+        final Class<?> type = info.returnType;
+        if (IntProp.class.isAssignableFrom(type)) {
+          intValue = Integer.parseInt(s, 10);
+          isInt = true;
+        } else if (BooleanProp.class.isAssignableFrom(type)) {
+          booleanValue = Boolean.parseBoolean(s);
+          isBoolean = true;
+        } else if (DoubleProp.class.isAssignableFrom(type)) {
+          doubleValue = Double.parseDouble(s);
+          isDouble = true;
+        } else if (LongProp.class.isAssignableFrom(type)) {
+          longValue = (Long) info.parse(s);
+          longType = type;
+        } else if (ObjectProp.class.isAssignableFrom(type)) {
+          objectValue = info.parse(s);
+          objectType = info.genericReturnType;
+        }
+      }
+    }
+  }
+
+  /** Property accessor that reads properties from one or more files, and
+   * reloads them when they change.
+   *
+   * <p>Each load creates an immutable {@link SnapshotPropertyAccessor} and
+   * publishes it with a single volatile write, so reading a property never
+   * blocks, even while the files are being reloaded. If the files cannot be
+   * read, or a value is not valid for its property's type, the accessor
+   * keeps the previous snapshot and records the error; see
+   * {@link #lastError()}.
+   *
+   * <p>Call {@link #reload()} to check the files now, or {@link #start(long)}
+   * to check them periodically in a background thread. Files are checked by
+   * comparing their modification time and length, so that this class works
+   * on Java 1.6; if several files define the same property, the last file
+   * wins. Files are parsed by {@link PropertiesParser}, so they may be in
+   * UTF-8 or ISO-8859-1, as bundle files may.
+   *
+   * <p>To be told when properties change, call
+   * {@link #subscribe(PropertyListener, Executor, Prop...)}. */
+  public static class ReloadingPropertyAccessor
+      implements ObservablePropertyAccessor, TypedPropertyAccessor,
+      Closeable {
+    private final Class<?> clazz;
+    private final File[] files;
+    private final long[] stamps;
+    private volatile SnapshotPropertyAccessor snapshot;
+    private volatile Throwable lastError;
+    private ScheduledExecutorService executor;
+    private final Subscribers subscribers = new Subscribers();
+
+    /** Whether to expand references such as "${key}" in values. */
+    private final boolean interpolate;
+    /** Interpolator used by the most recent successful load, or null. */
+    private Interpolator interpolator;
+
+    private ReloadingPropertyAccessor(Class<?> clazz, File[] files,
+        boolean interpolate) throws IOException {
+      this.clazz = clazz;
+      this.files = files.clone();
+      this.stamps = new long[files.length * 2];
+      this.interpolate = interpolate;
+      this.snapshot = load();
+    }
+
+    /** Creates an accessor that reads the properties declared in an
+     * interface from some files.
+     *
+     * @param clazz Interface that declares properties
+     * @param files Properties files; later files override earlier ones
+     * @return Accessor
+     * @throws IOException if a file cannot be read
+     * @throws IllegalArgumentException if a value is not valid for its
+     * property's type
+     */
+    public static ReloadingPropertyAccessor of(Class<?> clazz, File... files)
+        throws IOException {
+      return new ReloadingPropertyAccessor(clazz, files, false);
+    }
+
+    /** Creates an accessor that reads the properties declared in an
+     * interface from some files, and expands references such as
+     * "${key}" in their values; see {@link Interpolator}.
+     *
+     * <p>When the files are reloaded, only the values that depend on
+     * changed values are expanded again.
+     *
+     * @param clazz Interface that declares properties
+     * @param files Properties files; later files override earlier ones
+     * @return Accessor
+     * @throws IOException if a file cannot be read
+     * @throws IllegalArgumentException if a value is not valid for its
+     * property's type, or if references form a cycle
+     */
+    public static ReloadingPropertyAccessor interpolated(Class<?> clazz,
+        File... files) throws IOException {
+      return new ReloadingPropertyAccessor(clazz, files, true);
+    }
+
+    /** Reads the files and creates a snapshot. Must be called while holding
+     * the lock on this object, or from the constructor. */
+    private SnapshotPropertyAccessor load() throws IOException {
+      final Map<String, String> values = new HashMap<String, String>();
+      final long[] newStamps = new long[stamps.length];
+      for (int i = 0; i < files.length; i++) {
+        final File file = files[i];
+        newStamps[i * 2] = file.lastModified();
+        newStamps[i * 2 + 1] = file.length();
+        final InputStream stream = new FileInputStream(file);
+        try {
+          values.putAll(PropertiesParser.parse(stream));
+        } finally {
+          stream.close();
+        }
+      }
+      final SnapshotPropertyAccessor snapshot;
+      if (interpolate) {
+        final Interpolator newInterpolator = interpolator == null
+            ? Interpolator.of(values)
+            : interpolator.update(values);
+        snapshot = SnapshotPropertyAccessor.of(newInterpolator.values(), clazz);
+        interpolator = newInterpolator;
+      } else {
+        snapshot = SnapshotPropertyAccessor.of(values, clazz);
+      }
+      System.arraycopy(newStamps, 0, stamps, 0, stamps.length);
+      return snapshot;
+    }
+
+    private boolean changed() {
+      for (int i = 0; i < files.length; i++) {
+        if (files[i].lastModified() != stamps[i * 2]
+            || files[i].length() != stamps[i * 2 + 1]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Reloads the files if any of them has changed since the last
+     * successful load.
+     *
+     * @return whether a new snapshot was published
+     */
+    public synchronized boolean reload() {
+      if (!changed()) {
+        return false;
+      }
+      try {
+        final SnapshotPropertyAccessor previous = snapshot;
+        snapshot = load();
+        lastError = null;
+        subscribers.fire(previous.values, snapshot.values);
+        return true;
+      } catch (IOException e) {
+        lastError = e;
+      } catch (RuntimeException e) {
+        lastError = e;
+      }
+      return false;
+    }
+
+    /** Subscribes to changes in the values of properties. Listeners are
+     * called after each reload that changes a value that they are
+     * interested in. */
+    public Subscription subscribe(PropertyListener listener,
+        Executor executor, Prop... props) {
+      return subscribers.subscribe(listener, executor, props);
+    }
+
+    /** Returns the error from the most recent load, or null if it
+     * succeeded. */
+    public Throwable lastError() {
+      return lastError;
+    }
+
+    /** Returns the current snapshot. */
+    public SnapshotPropertyAccessor snapshot() {
+      return snapshot;
+    }
+
+    /** Starts a daemon thread that checks the files every
+     * {@code periodMillis} milliseconds. */
+    public synchronized void start(long periodMillis) {
+      if (executor != null) {
+        throw new IllegalStateException("already started");
+      }
+      executor = schedule("ReloadingPropertyAccessor", periodMillis,
+          new Runnable() {
+            public void run() {
+              reload();
+            }
+          });
+    }
+
+    /** Stops the background thread, if any. */
+    public synchronized void close() {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+    }
+
+    /** Returns the current snapshot, which is replaced on each successful
+     * reload. */
+    public Object version() {
+      return snapshot;
+    }
+
+    public boolean isSet(Prop p) {
+      return snapshot.isSet(p);
+    }
+
+    public int intValue(IntProp p) {
+      return snapshot.intValue(p);
+    }
+
+    public int intValue(IntProp p, int defaultValue) {
+      return snapshot.intValue(p, defaultValue);
+    }
+
+    public String stringValue(StringProp p) {
+      return snapshot.stringValue(p);
+    }
+
+    public String stringValue(StringProp p, String defaultValue) {
+      return snapshot.stringValue(p, defaultValue);
+    }
+
+    public boolean booleanValue(BooleanProp p) {
+      return snapshot.booleanValue(p);
+    }
+
+    public boolean booleanValue(BooleanProp p, boolean defaultValue) {
+      return snapshot.booleanValue(p, defaultValue);
+    }
+
+    public double doubleValue(DoubleProp p) {
+      return snapshot.doubleValue(p);
+    }
+
+    public double doubleValue(DoubleProp p, double defaultValue) {
+      return snapshot.doubleValue(p, defaultValue);
+    }
+
+    public long longValue(LongProp p) {
+      return snapshot.longValue(p);
+    }
+
+    public long longValue(LongProp p, long defaultValue) {
+      return snapshot.longValue(p, defaultValue);
+    }
+
+    public <T> T objectValue(ObjectProp<T> p) {
+      return snapshot.objectValue(p);
+    }
+
+    public <T> T objectValue(ObjectProp<T> p, T defaultValue) {
+      return snapshot.objectValue(p, defaultValue);
+    }
+  }
+
+  /** Receives notifications that properties have changed.
+   *
+   * @see ObservablePropertyAccessor#subscribe */
+  public interface PropertyListener {
+    /** Called when the values of some properties have changed.
+     *
+     * @param keys Keys of the properties whose values have changed; sorted
+     * and immutable
+     */
+    void onChange(Set<String> keys);
+  }
+
+  /** Subscriptions to an {@link ObservablePropertyAccessor}. */
+  static class Subscribers {
+    private final List<Subscription> list =
+        new CopyOnWriteArrayList<Subscription>();
+
+    Subscription subscribe(PropertyListener listener, Executor executor,
+        Prop... props) {
+      final Set<String> keys;
+      if (props.length == 0) {
+        keys = null;
+      } else {
+        keys = new HashSet<String>();
+        for (Prop prop : props) {
+          keys.add(prop.key);
+        }
+      }
+      final Subscription subscription =
+          new Subscription(list, listener, executor, keys);
+      list.add(subscription);
+      return subscription;
+    }
+
+    /** Returns whether there are no subscriptions; if so, an accessor need
+     * not work out which values have changed. */
+    boolean isEmpty() {
+      return list.isEmpty();
+    }
+
+    /** Tells subscribers about the properties whose values are different in
+     * a new version. */
+    void fire(Map<String, String> before, Map<String, String> after) {
+      if (list.isEmpty()) {
+        return;
+      }
+      final Set<String> changedKeys = changedKeys(before, after);
+      if (!changedKeys.isEmpty()) {
+        for (Subscription subscription : list) {
+          subscription.offer(changedKeys);
+        }
+      }
+    }
+
+    private static Set<String> changedKeys(Map<String, String> before,
+        Map<String, String> after) {
+      final Set<String> keys = new TreeSet<String>();
+      for (Map.Entry<String, String> entry : before.entrySet()) {
+        if (!entry.getValue().equals(after.get(entry.getKey()))) {
+          keys.add(entry.getKey());
         }
-        MyPropertyResourceBundle newBundle =
-            new MyPropertyResourceBundle(stream);
-        stream.close();
-        previousBundle.setParentTrojan(newBundle);
-        previousBundle = newBundle;
       }
+      for (String key : after.keySet()) {
+        if (!before.containsKey(key)) {
+          keys.add(key);
+        }
+      }
+      return keys;
     }
+  }
 
-    /**
-     * Opens the properties file corresponding to a given class. The code is
-     * copied from {@link ResourceBundle}.
-     */
-    private static InputStream openPropertiesFile(Class clazz) {
-      final ClassLoader loader = clazz.getClassLoader();
-      final String resName = clazz.getName().replace('.', '/') + ".properties";
-      return (InputStream) java.security.AccessController.doPrivileged(
-          new java.security.PrivilegedAction() {
-            public Object run() {
-              if (loader != null) {
-                return loader.getResourceAsStream(resName);
-              } else {
-                return ClassLoader.getSystemResourceAsStream(resName);
-              }
-            }
-          });
+  /** Subscription of a {@link PropertyListener} to an
+   * {@link ObservablePropertyAccessor}. */
+  public static class Subscription implements Closeable {
+    private final List<Subscription> subscriptions;
+    private final PropertyListener listener;
+    private final Executor executor;
+    private final Set<String> keys;
+    /** Keys that have changed since the listener was last called; guarded
+     * by {@code this}. */
+    private Set<String> pending = new TreeSet<String>();
+    /** Whether a call to the listener is queued; guarded by
+     * {@code this}. */
+    private boolean queued;
+    private volatile boolean closed;
+
+    private final Runnable task = new Runnable() {
+      public void run() {
+        deliver();
+      }
+    };
+
+    Subscription(List<Subscription> subscriptions, PropertyListener listener,
+        Executor executor, Set<String> keys) {
+      this.subscriptions = subscriptions;
+      this.listener = listener;
+      this.executor = executor;
+      this.keys = keys;
     }
 
-    public Enumeration<String> getKeys() {
-      return bundle.getKeys();
+    void offer(Set<String> changedKeys) {
+      if (closed) {
+        return;
+      }
+      boolean schedule = false;
+      synchronized (this) {
+        for (String key : changedKeys) {
+          if (keys == null || keys.contains(key)) {
+            pending.add(key);
+          }
+        }
+        if (!pending.isEmpty() && !queued) {
+          queued = true;
+          schedule = true;
+        }
+      }
+      if (schedule) {
+        executor.execute(task);
+      }
     }
 
-    protected Object handleGetObject(String key) {
-      return bundle.getObject(key);
+    private void deliver() {
+      final Set<String> batch;
+      synchronized (this) {
+        batch = pending;
+        pending = new TreeSet<String>();
+        queued = false;
+      }
+      if (!closed && !batch.isEmpty()) {
+        listener.onChange(Collections.unmodifiableSet(batch));
+      }
     }
 
-    /**
-     * Returns the instance of the <code>baseName</code> resource bundle
-     * for the given locale.
+    /** Stops notifications. A notification that is already running is not
+     * interrupted. */
+    public void close() {
+      closed = true;
+      subscriptions.remove(this);
+    }
+  }
+
+  /** Source of property values, such as a properties file, the system
+   * properties or the environment.
+   *
+   * @see LayeredPropertyAccessor */
+  public interface PropertySource {
+    /** Returns the name of this source, for use in messages. */
+    String name();
+
+    /** Returns the value of a property, or null if this source does not
+     * define it. */
+    String get(String key);
+  }
+
+  /** Property accessor that combines several {@link PropertySource}s. The
+   * first source that defines a property supplies its value.
+   *
+   * <p>When the accessor is created, it works out, for each property
+   * declared in an interface, which source supplies its value, and stores
+   * only those values, in a {@link SnapshotPropertyAccessor}. So the cost of
+   * reading a property does not depend on the number of sources, and you
+   * can ask which source supplied a value, using {@link #source(Prop)}.
+   * Properties that the interface does not declare are not set.
+   *
+   * <p>Sources are read when the accessor is created, and again when you
+   * call {@link #refresh()}. */
+  public static class LayeredPropertyAccessor
+      implements ObservablePropertyAccessor, TypedPropertyAccessor {
+    private final Class<?> clazz;
+    private final Set<String> keys;
+    private final PropertySource[] sources;
+    /** Whether to expand references such as "${key}" in values. */
+    private final boolean interpolate;
+    private volatile SnapshotPropertyAccessor snapshot;
+    /** Source of the value of each property. */
+    private volatile Map<String, PropertySource> winners;
+    private final Subscribers subscribers = new Subscribers();
+
+    private LayeredPropertyAccessor(Class<?> clazz, PropertySource[] sources,
+        boolean interpolate) {
+      this.clazz = clazz;
+      final Set<String> keys = new HashSet<String>();
+      for (Method method : propertyMethods(clazz)) {
+        keys.add(MethodInfo.of(method).key);
+      }
+      this.keys = keys;
+      this.sources = sources.clone();
+      this.interpolate = interpolate;
+      final Map<String, PropertySource> winners =
+          new HashMap<String, PropertySource>();
+      this.snapshot = load(winners);
+      this.winners = winners;
+    }
+
+    /** Creates a layered accessor for the properties declared in an
+     * interface.
      *
-     * <p> This method should be called from a derived class, with the proper
-     * casting:<blockquote>
+     * @param clazz Interface that declares properties
+     * @param sources Sources, highest precedence first
+     * @return Accessor
+     * @throws IllegalArgumentException if a property's value is not valid
+     * for its type
+     */
+    public static LayeredPropertyAccessor of(Class<?> clazz,
+        PropertySource... sources) {
+      return new LayeredPropertyAccessor(clazz, sources, false);
+    }
+
+    /** Creates a layered accessor for the properties declared in an
+     * interface, and expands references such as "${key}" in their values;
+     * see {@link Interpolator}.
      *
-     * <pre>class MyResource extends ShadowResourceBundle {
-     *    ...
+     * <p>A reference is looked up in the sources in the same way as a
+     * property, so a value in one source may refer to a value in another,
+     * and may refer to a property that the interface does not declare.
+     * {@link #source(Prop)} returns the source of the value before it was
+     * expanded.
      *
-     *    /&#42;&#42;
-     *      &#42; Retrieves the instance of {&#64;link MyResource} appropriate
-     *      &#42; to the given locale.
-     *      &#42;&#42;/
-     *    public static MyResource instance(Locale locale) {
-     *       return (MyResource) instance(
-     *           MyResource.class.getName(), locale,
-     *           ResourceBundle.getBundle(MyResource.class.getName(), locale));
-     *    }
-     *    ...
-     * }</pre></blockquote>
+     * @param clazz Interface that declares properties
+     * @param sources Sources, highest precedence first
+     * @return Accessor
+     * @throws IllegalArgumentException if a property's value is not valid
+     * for its type, or if references form a cycle
+     */
+    public static LayeredPropertyAccessor interpolated(Class<?> clazz,
+        PropertySource... sources) {
+      return new LayeredPropertyAccessor(clazz, sources, true);
+    }
+
+    /** Reads the sources and creates a snapshot, recording the source of
+     * each value in {@code winners}. */
+    private SnapshotPropertyAccessor load(
+        Map<String, PropertySource> winners) {
+      final Map<String, String> values = new HashMap<String, String>();
+      if (!interpolate) {
+        for (String key : keys) {
+          lookup(key, sources, values, winners);
+        }
+        return SnapshotPropertyAccessor.of(values, clazz);
+      }
+      // Look up the declared properties, then, transitively, the properties
+      // that their values refer to.
+      final Deque<String> queue = new ArrayDeque<String>(keys);
+      final Set<String> seen = new HashSet<String>();
+      while (!queue.isEmpty()) {
+        final String key = queue.remove();
+        if (seen.add(key)) {
+          final String value = lookup(key, sources, values, winners);
+          if (value != null) {
+            queue.addAll(Interpolator.references(value));
+          }
+        }
+      }
+      final Map<String, String> resolved =
+          new HashMap<String, String>(Interpolator.of(values).values());
+      resolved.keySet().retainAll(keys);
+      winners.keySet().retainAll(keys);
+      return SnapshotPropertyAccessor.of(resolved, clazz);
+    }
+
+    /** Reads the sources again. If the value of any property has changed,
+     * publishes a new snapshot and notifies subscribers.
      *
-     * @param baseName Base name
-     * @param locale Locale
-     * @param bundle Resource bundle
-     * @return Resource bundle
+     * @return whether a new snapshot was published
+     * @throws IllegalArgumentException if a property's value is not valid
+     * for its type, or if references form a cycle; the accessor keeps its
+     * previous values
      */
-    protected static ShadowResourceBundle instance(
-        String baseName, Locale locale, ResourceBundle bundle) {
-      if (bundle instanceof PropertyResourceBundle) {
-        throw new ClassCastException(
-            "ShadowResourceBundle.instance('" + baseName + "','"
-            + locale + "') found "
-            + baseName + "_" + locale + ".properties but not "
-            + baseName + "_" + locale + ".class");
+    public synchronized boolean refresh() {
+      final Map<String, PropertySource> newWinners =
+          new HashMap<String, PropertySource>();
+      final SnapshotPropertyAccessor newSnapshot = load(newWinners);
+      final SnapshotPropertyAccessor previous = snapshot;
+      winners = newWinners;
+      if (newSnapshot.values.equals(previous.values)) {
+        return false;
       }
-      return (ShadowResourceBundle) bundle;
+      snapshot = newSnapshot;
+      subscribers.fire(previous.values, newSnapshot.values);
+      return true;
     }
-  }
 
-  /** Resource bundle based on properties. */
-  static class MyPropertyResourceBundle extends PropertyResourceBundle {
-    public MyPropertyResourceBundle(InputStream stream) throws IOException {
-      super(stream);
+    /** Subscribes to changes in the values of properties. Listeners are
+     * called after each {@link #refresh()} that changes a value that they
+     * are interested in. */
+    public Subscription subscribe(PropertyListener listener,
+        Executor executor, Prop... props) {
+      return subscribers.subscribe(listener, executor, props);
     }
 
-    void setParentTrojan(ResourceBundle parent) {
-      super.setParent(parent);
+    /** Finds the first source that defines a property, and records its
+     * value and the source; returns the value, or null. */
+    private static String lookup(String key, PropertySource[] sources,
+        Map<String, String> values, Map<String, PropertySource> winners) {
+      if (winners.containsKey(key)) {
+        return values.get(key);
+      }
+      for (PropertySource source : sources) {
+        final String value = source.get(key);
+        if (value != null) {
+          values.put(key, value);
+          winners.put(key, source);
+          return value;
+        }
+      }
+      return null;
     }
-  }
 
-  enum BuiltinMethod {
-    OBJECT_TO_STRING(Object.class, "toString");
+    /** Returns the source that supplied the value of a property, or null if
+     * no source defines it. */
+    public PropertySource source(Prop p) {
+      return winners.get(p.key);
+    }
 
-    public final Method method;
+    /** Creates a source that reads from a {@link Properties}. */
+    public static PropertySource source(final String name,
+        final Properties properties) {
+      return new PropertySource() {
+        public String name() {
+          return name;
+        }
 
-    BuiltinMethod(Class clazz, String methodName, Class... argumentTypes) {
-      this.method = lookupMethod(clazz, methodName, argumentTypes);
+        public String get(String key) {
+          return properties.getProperty(key);
+        }
+
+        @Override public String toString() {
+          return name;
+        }
+      };
     }
 
-    /**
-     * Finds a method of a given name that accepts a given set of arguments.
-     * Includes in its search inherited methods and methods with wider argument
-     * types.
-     *
-     * @param clazz Class against which method is invoked
-     * @param methodName Name of method
-     * @param argumentTypes Types of arguments
-     *
-     * @return A method with the given name that matches the arguments given
-     * @throws RuntimeException if method not found
-     */
-    public static Method lookupMethod(Class clazz, String methodName,
-        Class... argumentTypes) {
+    /** Creates a source that reads from a map. */
+    public static PropertySource source(final String name,
+        final Map<String, String> map) {
+      return new PropertySource() {
+        public String name() {
+          return name;
+        }
+
+        public String get(String key) {
+          return map.get(key);
+        }
+
+        @Override public String toString() {
+          return name;
+        }
+      };
+    }
+
+    /** Creates a source that reads a properties file. The file is read
+     * immediately, by {@link PropertiesParser}, so it may be in UTF-8 or
+     * ISO-8859-1. */
+    public static PropertySource source(File file) throws IOException {
+      final Map<String, String> map;
+      final InputStream stream = new FileInputStream(file);
       try {
-        //noinspection unchecked
-        return clazz.getMethod(methodName, argumentTypes);
-      } catch (NoSuchMethodException e) {
-        throw new RuntimeException(
-            "while resolving method '" + methodName
-                + Arrays.toString(argumentTypes)
-                + "' in class " + clazz, e);
+        map = PropertiesParser.parse(stream);
+      } finally {
+        stream.close();
       }
+      return source(file.getPath(), map);
     }
-  }
 
-  /** Implementation of {@link PropertyAccessor} that reads from a
-   * {@link Properties}. */
-  private static class PropertiesAccessor implements PropertyAccessor {
-    private final Properties properties;
+    /** Creates a source that reads system properties. */
+    public static PropertySource systemProperties() {
+      return source("system properties", System.getProperties());
+    }
 
-    PropertiesAccessor(Properties properties) {
-      this.properties = properties;
+    /** Creates a source that reads environment variables.
+     *
+     * <p>For a property {@code com.example.maxSize}, it looks for the
+     * variable {@code com.example.maxSize}, and then for
+     * {@code COM_EXAMPLE_MAXSIZE}. */
+    public static PropertySource environment() {
+      return environment(System.getenv());
+    }
+
+    /** Creates a source that reads from a map of environment variables, as
+     * {@link #environment()}. */
+    public static PropertySource environment(final Map<String, String> env) {
+      return new PropertySource() {
+        public String name() {
+          return "environment";
+        }
+
+        public String get(String key) {
+          final String value = env.get(key);
+          if (value != null) {
+            return value;
+          }
+          return env.get(key.toUpperCase(Locale.ROOT).replace('.', '_')
+              .replace('-', '_'));
+        }
+
+        @Override public String toString() {
+          return "environment";
+        }
+      };
+    }
+
+    public Object version() {
+      return snapshot;
     }
 
     public boolean isSet(Prop p) {
-      return properties.containsKey(p.key);
+      return snapshot.isSet(p);
     }
 
     public int intValue(IntProp p) {
-      final String s = properties.getProperty(p.key);
-      if (s != null) {
-        return Integer.parseInt(s, 10);
-      }
-      p.checkDefault2();
-      return p.defaultValue;
+      return snapshot.intValue(p);
     }
 
     public int intValue(IntProp p, int defaultValue) {
-      final String s = properties.getProperty(p.key);
-      return s == null ? defaultValue : Integer.parseInt(s, 10);
+      return snapshot.intValue(p, defaultValue);
     }
 
     public String stringValue(StringProp p) {
-      final String s = properties.getProperty(p.key);
-      if (s != null) {
-        return s;
-      }
-      p.checkDefault2();
-      return p.defaultValue;
+      return snapshot.stringValue(p);
     }
 
     public String stringValue(StringProp p, String defaultValue) {
-      final String s = properties.getProperty(p.key);
-      return s == null ? defaultValue : s;
+      return snapshot.stringValue(p, defaultValue);
     }
 
     public boolean booleanValue(BooleanProp p) {
-      final String s = properties.getProperty(p.key);
-      if (s != null) {
-        return Boolean.parseBoolean(s);
-      }
-      p.checkDefault2();
-      return p.defaultValue;
+      return snapshot.booleanValue(p);
     }
 
     public boolean booleanValue(BooleanProp p, boolean defaultValue) {
-      final String s = properties.getProperty(p.key);
-      return s == null ? defaultValue : Boolean.parseBoolean(s);
+      return snapshot.booleanValue(p, defaultValue);
     }
 
     public double doubleValue(DoubleProp p) {
-      final String s = properties.getProperty(p.key);
-      if (s != null) {
-        return Double.parseDouble(s);
-      }
-      p.checkDefault2();
-      return p.defaultValue;
+      return snapshot.doubleValue(p);
     }
 
     public double doubleValue(DoubleProp p, double defaultValue) {
-      final String s = properties.getProperty(p.key);
-      return s == null ? defaultValue : Double.parseDouble(s);
+      return snapshot.doubleValue(p, defaultValue);
+    }
+
+    public long longValue(LongProp p) {
+      return snapshot.longValue(p);
+    }
+
+    public long longValue(LongProp p, long defaultValue) {
+      return snapshot.longValue(p, defaultValue);
+    }
+
+    public <T> T objectValue(ObjectProp<T> p) {
+      return snapshot.objectValue(p);
+    }
+
+    public <T> T objectValue(ObjectProp<T> p, T defaultValue) {
+      return snapshot.objectValue(p, defaultValue);
+    }
+  }
+
+  /** Expands references such as "${key}" in property values.
+   *
+   * <p>For example, given {@code db.host=localhost}, {@code db.port=5432}
+   * and {@code db.url=jdbc:x://${db.host}:${db.port}/app}, the value of
+   * {@code db.url} is {@code jdbc:x://localhost:5432/app}. A reference to a
+   * property that is not defined is left as it is.
+   *
+   * <p>An interpolator is immutable. When it is created, it builds the
+   * graph of references between properties, checks that there are no
+   * cycles, and expands every value. {@link #update(Map)} creates an
+   * interpolator for new values, and expands again only the values that
+   * have changed or that depend, directly or indirectly, on values that have
+   * changed.
+   *
+   * <p>Accessors do not expand references unless you ask them to; use
+   * {@link SnapshotPropertyAccessor#interpolated(Map, Class)},
+   * {@link LayeredPropertyAccessor#interpolated(Class, PropertySource...)}
+   * or {@link ReloadingPropertyAccessor#interpolated(Class, File...)}. */
+  public static class Interpolator {
+    private final Map<String, String> raw;
+    private final Map<String, String> resolved;
+    private final Set<String> recomputed;
+
+    private Interpolator(Map<String, String> raw, Interpolator previous) {
+      this.raw = new HashMap<String, String>(raw);
+
+      // Build the graph. Edges go from a property to the properties that
+      // refer to it.
+      final Map<String, List<String>> dependents =
+          new HashMap<String, List<String>>();
+      for (Map.Entry<String, String> entry : this.raw.entrySet()) {
+        for (String ref : references(entry.getValue())) {
+          List<String> list = dependents.get(ref);
+          if (list == null) {
+            list = new ArrayList<String>();
+            dependents.put(ref, list);
+          }
+          list.add(entry.getKey());
+        }
+      }
+
+      // Find the properties whose values may have changed.
+      final Set<String> dirty = new TreeSet<String>();
+      if (previous == null) {
+        dirty.addAll(this.raw.keySet());
+      } else {
+        final Deque<String> queue = new ArrayDeque<String>();
+        for (Map.Entry<String, String> entry : this.raw.entrySet()) {
+          if (!entry.getValue().equals(previous.raw.get(entry.getKey()))) {
+            queue.add(entry.getKey());
+          }
+        }
+        for (String key : previous.raw.keySet()) {
+          if (!this.raw.containsKey(key)) {
+            queue.add(key);
+          }
+        }
+        while (!queue.isEmpty()) {
+          final String key = queue.remove();
+          if (dirty.add(key)) {
+            final List<String> list = dependents.get(key);
+            if (list != null) {
+              queue.addAll(list);
+            }
+          }
+        }
+        dirty.retainAll(this.raw.keySet());
+      }
+
+      this.resolved = new HashMap<String, String>();
+      if (previous != null) {
+        for (String key : this.raw.keySet()) {
+          if (!dirty.contains(key)) {
+            resolved.put(key, previous.resolved.get(key));
+          }
+        }
+      }
+      final LinkedHashSet<String> path = new LinkedHashSet<String>();
+      for (String key : dirty) {
+        resolve(key, path);
+      }
+      this.recomputed = Collections.unmodifiableSet(dirty);
+    }
+
+    /** Creates an interpolator and expands every value.
+     *
+     * @param raw Property values, which may contain references
+     * @return Interpolator
+     * @throws IllegalArgumentException if references form a cycle
+     */
+    public static Interpolator of(Map<String, String> raw) {
+      return new Interpolator(raw, null);
+    }
+
+    /** Creates an interpolator for new values, reusing the expanded values
+     * of this interpolator that are not affected by the changes.
+     *
+     * @param raw New property values, which may contain references
+     * @return Interpolator
+     * @throws IllegalArgumentException if references form a cycle
+     */
+    public Interpolator update(Map<String, String> raw) {
+      return new Interpolator(raw, this);
+    }
+
+    /** Returns the expanded value of a property, or null if it is not
+     * defined. */
+    public String get(String key) {
+      return resolved.get(key);
+    }
+
+    /** Returns the expanded values of all properties; immutable. */
+    public Map<String, String> values() {
+      return Collections.unmodifiableMap(resolved);
+    }
+
+    /** Returns the keys of the properties whose values were expanded when
+     * this interpolator was created; sorted and immutable. */
+    public Set<String> recomputed() {
+      return recomputed;
+    }
+
+    private String resolve(String key, LinkedHashSet<String> path) {
+      String value = resolved.get(key);
+      if (value != null) {
+        return value;
+      }
+      if (!path.add(key)) {
+        final StringBuilder b = new StringBuilder();
+        boolean inCycle = false;
+        for (String k : path) {
+          inCycle |= k.equals(key);
+          if (inCycle) {
+            b.append(k).append(" -> ");
+          }
+        }
+        throw new IllegalArgumentException("cycle in property references: "
+            + b.append(key));
+      }
+      final String s = raw.get(key);
+      final StringBuilder b = new StringBuilder();
+      int i = 0;
+      for (;;) {
+        final int start = s.indexOf("${", i);
+        final int end = start < 0 ? -1 : s.indexOf('}', start + 2);
+        if (end < 0) {
+          b.append(s, i, s.length());
+          break;
+        }
+        b.append(s, i, start);
+        final String ref = s.substring(start + 2, end);
+        if (raw.containsKey(ref)) {
+          b.append(resolve(ref, path));
+        } else {
+          b.append(s, start, end + 1);
+        }
+        i = end + 1;
+      }
+      path.remove(key);
+      value = b.toString();
+      resolved.put(key, value);
+      return value;
+    }
+
+    /** Returns the keys referenced by a value. */
+    static List<String> references(String s) {
+      List<String> refs = Collections.emptyList();
+      int i = 0;
+      for (;;) {
+        final int start = s.indexOf("${", i);
+        final int end = start < 0 ? -1 : s.indexOf('}', start + 2);
+        if (end < 0) {
+          return refs;
+        }
+        if (refs.isEmpty()) {
+          refs = new ArrayList<String>();
+        }
+        refs.add(s.substring(start + 2, end));
+        i = end + 1;
+      }
     }
   }
 }
@@ -0,0 +1,177 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/** Rule that assigns each key of a sharded bundle to a shard.
+ *
+ * <p>A {@link #hash(int) hash} index assigns a key to shard
+ * {@code hashCode % count}; since {@link String#hashCode()} is the same in
+ * every JVM, the assignment made at build time holds at run time. A
+ * {@link #prefix(String...) prefix} index assigns a key to the shard of
+ * the longest of its prefixes that the key starts with, and keys that
+ * match no prefix to the last shard.
+ *
+ * <p>The index of a bundle is stored, as a properties file, in the
+ * resource named by {@link Catalogs#shardIndexName(String)}. */
+public class ShardIndex {
+  private final int count;
+  /** Prefixes, or null if this is a hash index. */
+  private final String[] prefixes;
+
+  private ShardIndex(int count, String[] prefixes) {
+    this.count = count;
+    this.prefixes = prefixes;
+  }
+
+  /** Creates an index that assigns keys to shards by hash code.
+   *
+   * @param count Number of shards
+   * @return Index
+   */
+  public static ShardIndex hash(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("count must be positive");
+    }
+    return new ShardIndex(count, null);
+  }
+
+  /** Creates an index that assigns keys to shards by prefix. There is one
+   * shard for each prefix, and one for keys that match no prefix.
+   *
+   * @param prefixes Prefixes
+   * @return Index
+   */
+  public static ShardIndex prefix(String... prefixes) {
+    for (String prefix : prefixes) {
+      if (prefix == null || prefix.length() == 0) {
+        throw new IllegalArgumentException("prefix must not be empty");
+      }
+    }
+    return new ShardIndex(prefixes.length + 1, prefixes.clone());
+  }
+
+  /** Reads an index that was written by {@link #write(OutputStream)}.
+   *
+   * @param in Input stream
+   * @param name Name of the index, for use in messages
+   * @return Index
+   * @throws IOException if the stream cannot be read, or does not contain
+   * an index
+   */
+  public static ShardIndex read(InputStream in, String name)
+      throws IOException {
+    final Map<String, String> map = Resources.PropertiesParser.parse(in);
+    try {
+      final String partition = map.get("partition");
+      if ("hash".equals(partition)) {
+        return hash(Integer.parseInt(map.get("count")));
+      }
+      if ("prefix".equals(partition)) {
+        final List<String> prefixes = new ArrayList<String>();
+        for (String prefix; (prefix = map.get("prefix." + prefixes.size()))
+            != null;) {
+          prefixes.add(prefix);
+        }
+        return prefix(prefixes.toArray(new String[prefixes.size()]));
+      }
+    } catch (IllegalArgumentException e) {
+      // fall through; NumberFormatException is an IllegalArgumentException
+    }
+    throw new IOException("not a shard index: " + name);
+  }
+
+  /** Writes this index as a properties file, in ISO-8859-1.
+   *
+   * @param out Output stream
+   * @throws IOException if the stream cannot be written
+   */
+  public void write(OutputStream out) throws IOException {
+    final StringBuilder buf = new StringBuilder();
+    if (prefixes == null) {
+      buf.append("partition=hash\ncount=").append(count).append('\n');
+    } else {
+      buf.append("partition=prefix\n");
+      for (int i = 0; i < prefixes.length; i++) {
+        buf.append("prefix.").append(i).append('=');
+        for (int j = 0; j < prefixes[i].length(); j++) {
+          final char c = prefixes[i].charAt(j);
+          if (c == '\\' || j == 0 && c == ' ') {
+            buf.append('\\').append(c);
+          } else if (c < 0x20 || c > 0x7e) {
+            buf.append(String.format("\\u%04x", (int) c));
+          } else {
+            buf.append(c);
+          }
+        }
+        buf.append('\n');
+      }
+    }
+    out.write(buf.toString().getBytes("ISO-8859-1"));
+  }
+
+  /** Returns the number of shards. */
+  public int count() {
+    return count;
+  }
+
+  /** Returns the shard that holds a given key.
+   *
+   * @param key Key
+   * @return Shard number, between 0 and {@link #count()} - 1
+   */
+  public int shard(String key) {
+    if (prefixes == null) {
+      return (key.hashCode() & 0x7fffffff) % count;
+    }
+    int shard = prefixes.length;
+    int length = -1;
+    for (int i = 0; i < prefixes.length; i++) {
+      if (prefixes[i].length() > length && key.startsWith(prefixes[i])) {
+        shard = i;
+        length = prefixes[i].length();
+      }
+    }
+    return shard;
+  }
+
+  @Override public boolean equals(Object o) {
+    return o == this
+        || o instanceof ShardIndex
+        && count == ((ShardIndex) o).count
+        && Arrays.equals(prefixes, ((ShardIndex) o).prefixes);
+  }
+
+  @Override public int hashCode() {
+    return count * 31 + Arrays.hashCode(prefixes);
+  }
+
+  @Override public String toString() {
+    return prefixes == null
+        ? "hash(" + count + ")"
+        : "prefix" + Arrays.asList(prefixes);
+  }
+}
+
+// End ShardIndex.java
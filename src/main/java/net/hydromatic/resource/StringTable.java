@@ -0,0 +1,285 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Table of strings, keyed by string, in a compact binary format that
+ * can be read without copying it onto the heap; for example, from a
+ * memory-mapped file.
+ *
+ * <p>The format consists of a header, an index sorted by the hash code of
+ * each key, and the keys and values encoded in UTF-8. All integers are
+ * big-endian.
+ *
+ * <blockquote><pre>
+ * int    magic (0x48524346)
+ * int    format version (1)
+ * long   version of the contents
+ * int    number of entries (n)
+ * int    reserved (0)
+ * n * {int hash, int keyOffset, int keyLength, int valueOffset,
+ *      int valueLength}
+ * keys and values
+ * </pre></blockquote>
+ *
+ * <p>Looking up a key searches the index, and decodes only the value that
+ * it finds. Lookups use only absolute reads of the buffer, so a table can
+ * be used by several threads.
+ *
+ * @see MappedPropertyAccessor
+ * @see Catalogs */
+public class StringTable implements Resources.Catalog {
+  static final int MAGIC = 0x48524346;
+  static final int FORMAT = 1;
+  private static final int HEADER_SIZE = 24;
+  private static final int ENTRY_SIZE = 20;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer buffer;
+  private final long version;
+  private final int count;
+
+  private StringTable(ByteBuffer buffer, long version, int count) {
+    this.buffer = buffer;
+    this.version = version;
+    this.count = count;
+  }
+
+  /** Creates a table backed by a buffer.
+   *
+   * @param buffer Buffer containing a table, starting at position 0
+   * @param name Name of the table, for use in messages
+   * @return Table
+   * @throws IOException if the buffer does not contain a table
+   */
+  public static StringTable of(ByteBuffer buffer, String name)
+      throws IOException {
+    if (buffer.capacity() < HEADER_SIZE
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != FORMAT) {
+      throw new IOException("not a string table: " + name);
+    }
+    final int count = buffer.getInt(16);
+    if (count < 0
+        || HEADER_SIZE + (long) count * ENTRY_SIZE > buffer.capacity()) {
+      throw new IOException("corrupt string table: " + name);
+    }
+    return new StringTable(buffer, buffer.getLong(8), count);
+  }
+
+  /** Creates a table by mapping a file into memory.
+   *
+   * @param file File
+   * @return Table
+   * @throws IOException if the file cannot be read, or does not contain a
+   * table
+   */
+  public static StringTable map(File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    final ByteBuffer buffer;
+    try {
+      final FileChannel channel = raf.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+    } finally {
+      raf.close();
+    }
+    return of(buffer, file.getPath());
+  }
+
+  /** Reads the version of the contents of a file, from its header,
+   * without mapping the file.
+   *
+   * @param file File
+   * @return Version of the contents
+   * @throws IOException if the file cannot be read, or does not contain a
+   * table
+   */
+  public static long readVersion(File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() < HEADER_SIZE
+          || raf.readInt() != MAGIC
+          || raf.readInt() != FORMAT) {
+        throw new IOException("not a string table: " + file.getPath());
+      }
+      return raf.readLong();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Creates a table by reading a stream into a direct buffer; for
+   * example, if the table is in a JAR file and cannot be mapped.
+   *
+   * @param in Stream; not closed by this method
+   * @param name Name of the table, for use in messages
+   * @return Table
+   * @throws IOException if the stream cannot be read, or does not contain
+   * a table
+   */
+  public static StringTable read(InputStream in, String name)
+      throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] bytes = new byte[8192];
+    for (int n; (n = in.read(bytes)) >= 0;) {
+      out.write(bytes, 0, n);
+    }
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(out.size());
+    buffer.put(out.toByteArray());
+    buffer.flip();
+    return of(buffer, name);
+  }
+
+  /** Writes a table.
+   *
+   * @param out Output stream; not closed by this method
+   * @param version Version of the contents
+   * @param values Keys and values
+   */
+  public static void write(OutputStream out, long version,
+      Map<String, String> values) throws IOException {
+    final List<Map.Entry<String, String>> entries =
+        new ArrayList<Map.Entry<String, String>>(values.entrySet());
+    Collections.sort(entries,
+        new Comparator<Map.Entry<String, String>>() {
+          public int compare(Map.Entry<String, String> e1,
+              Map.Entry<String, String> e2) {
+            final int h1 = e1.getKey().hashCode();
+            final int h2 = e2.getKey().hashCode();
+            return h1 < h2 ? -1 : h1 > h2 ? 1
+                : e1.getKey().compareTo(e2.getKey());
+          }
+        });
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    final DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(MAGIC);
+    dataOut.writeInt(FORMAT);
+    dataOut.writeLong(version);
+    dataOut.writeInt(entries.size());
+    dataOut.writeInt(0);
+    final int dataStart = HEADER_SIZE + entries.size() * ENTRY_SIZE;
+    for (Map.Entry<String, String> entry : entries) {
+      final byte[] key = entry.getKey().getBytes(UTF_8);
+      final byte[] value = entry.getValue().getBytes(UTF_8);
+      dataOut.writeInt(entry.getKey().hashCode());
+      dataOut.writeInt(dataStart + data.size());
+      dataOut.writeInt(key.length);
+      data.write(key);
+      dataOut.writeInt(dataStart + data.size());
+      dataOut.writeInt(value.length);
+      data.write(value);
+    }
+    data.writeTo(dataOut);
+    dataOut.flush();
+  }
+
+  /** Returns the version of the contents. */
+  public long version() {
+    return version;
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return count;
+  }
+
+  /** Decodes every entry into a map. */
+  public Map<String, String> toMap() {
+    final Map<String, String> map = new HashMap<String, String>();
+    for (int i = 0; i < count; i++) {
+      final int entry = HEADER_SIZE + i * ENTRY_SIZE;
+      map.put(decode(buffer.getInt(entry + 4), buffer.getInt(entry + 8)),
+          decode(buffer.getInt(entry + 12), buffer.getInt(entry + 16)));
+    }
+    return map;
+  }
+
+  /** Returns the value for a key, or null. */
+  public String get(String key) {
+    final int hash = key.hashCode();
+    int lo = 0;
+    int hi = count - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int h = buffer.getInt(HEADER_SIZE + mid * ENTRY_SIZE);
+      if (h < hash) {
+        lo = mid + 1;
+      } else if (h > hash) {
+        hi = mid - 1;
+      } else {
+        // Several keys may have the same hash; find the first.
+        int i = mid;
+        while (i > 0
+            && buffer.getInt(HEADER_SIZE + (i - 1) * ENTRY_SIZE) == hash) {
+          --i;
+        }
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        for (; i < count; i++) {
+          final int entry = HEADER_SIZE + i * ENTRY_SIZE;
+          if (buffer.getInt(entry) != hash) {
+            break;
+          }
+          if (equal(buffer.getInt(entry + 4), buffer.getInt(entry + 8),
+              keyBytes)) {
+            return decode(buffer.getInt(entry + 12),
+                buffer.getInt(entry + 16));
+          }
+        }
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private boolean equal(int offset, int length, byte[] bytes) {
+    if (length != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(offset + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String decode(int offset, int length) {
+    final ByteBuffer b = buffer.duplicate();
+    b.limit(offset + length);
+    b.position(offset);
+    return UTF_8.decode(b).toString();
+  }
+}
+
+// End StringTable.java
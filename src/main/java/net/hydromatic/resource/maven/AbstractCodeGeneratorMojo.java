@@ -17,6 +17,7 @@
 package net.hydromatic.resource.maven;
 
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
 
 import java.io.File;
@@ -36,12 +37,14 @@ public abstract class AbstractCodeGeneratorMojo extends AbstractMojo {
    */
   File outputDirectory;
 
-  public void execute() {
+  public void execute() throws MojoFailureException {
     try {
       generate();
 
       project.addCompileSourceRoot(outputDirectory.getAbsolutePath());
 
+    } catch (MojoFailureException e) {
+      throw e;
     } catch (Exception e) {
       getLog().error("General error", e);
     }
@@ -0,0 +1,436 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.maven;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.TreeMap;
+
+import net.hydromatic.resource.Catalogs;
+import net.hydromatic.resource.Resources;
+import net.hydromatic.resource.ShardIndex;
+import net.hydromatic.resource.StringTable;
+
+/**
+ * Compiles the properties files of a resource bundle into Java classes or
+ * binary catalogs.
+ *
+ * <p>For each locale that has a properties file, {@link #compile} generates
+ * a class that implements {@link Resources.CompiledBundle}. The class
+ * contains the messages of the locale, with messages of parent locales
+ * merged in, and each message already parsed into literal text and argument
+ * slots.
+ *
+ * <p>{@link #writeCatalogs} writes the same messages to a catalog for each
+ * locale, in the format of {@link StringTable}, and
+ * {@link #writeShards} splits each locale's catalog into shards.
+ *
+ * @see CompileBundlesMojo
+ * @see CompileCatalogsMojo
+ */
+public class BundleCompiler {
+  /** Number of messages per generated method; keeps each method well
+   * below the JVM's limit of 64KB of code. */
+  private static final int MESSAGES_PER_METHOD = 100;
+
+  private final String resourcesPackage;
+
+  /** Creates a BundleCompiler.
+   *
+   * @param resourcesPackage Package of the Resources class that the
+   *                         generated classes will use
+   */
+  public BundleCompiler(String resourcesPackage) {
+    this.resourcesPackage = resourcesPackage;
+  }
+
+  /** Compiles the properties files of a bundle into Java classes.
+   *
+   * @param directory Directory that contains the properties files, in
+   *                  sub-directories according to their package
+   * @param base Base name of the bundle, for example
+   *             "com.example.MyResource"
+   * @return Source code of each generated class, keyed by class name
+   * @throws IOException if a properties file cannot be read
+   * @throws IllegalArgumentException if a message is not a valid pattern
+   */
+  public Map<String, String> compile(File directory, String base)
+      throws IOException {
+    final Map<String, String> sources = new TreeMap<String, String>();
+    for (Map.Entry<Locale, Bundle> entry : read(directory, base).entrySet()) {
+      final Locale locale = entry.getKey();
+      final String className =
+          Resources.MessageTable.compiledBundleName(base, locale);
+      sources.put(className,
+          generate(base, locale, className, entry.getValue()));
+    }
+    return sources;
+  }
+
+  /** Writes the messages of a bundle to catalogs, one for each locale.
+   *
+   * @param directory Directory that contains the properties files, in
+   *                  sub-directories according to their package
+   * @param base Base name of the bundle, for example
+   *             "com.example.MyResource"
+   * @param outputDirectory Directory in which to write catalogs, in
+   *                        sub-directories according to their package
+   * @return Catalog files that were written
+   * @throws IOException if a properties file cannot be read, or a catalog
+   * cannot be written
+   * @throws IllegalArgumentException if a message is not a valid pattern
+   *
+   * @see StringTable
+   */
+  public static List<File> writeCatalogs(File directory, String base,
+      File outputDirectory) throws IOException {
+    final List<File> files = new ArrayList<File>();
+    for (Map.Entry<Locale, Bundle> entry : read(directory, base).entrySet()) {
+      final File file = new File(outputDirectory,
+          Catalogs.catalogName(base, entry.getKey()));
+      writeCatalog(file, entry.getValue().messages);
+      files.add(file);
+    }
+    return files;
+  }
+
+  /** Writes the messages of a bundle to catalogs that are split into
+   * shards, and writes the index that assigns keys to shards. Every
+   * locale has every shard, even if the shard is empty.
+   *
+   * @param directory Directory that contains the properties files, in
+   *                  sub-directories according to their package
+   * @param base Base name of the bundle, for example
+   *             "com.example.MyResource"
+   * @param outputDirectory Directory in which to write the index and
+   *                        shards, in sub-directories according to their
+   *                        package
+   * @param index Index that assigns keys to shards
+   * @return Files that were written; empty if the bundle has no properties
+   * files
+   * @throws IOException if a properties file cannot be read, or a file
+   * cannot be written
+   * @throws IllegalArgumentException if a message is not a valid pattern
+   *
+   * @see ShardIndex
+   */
+  public static List<File> writeShards(File directory, String base,
+      File outputDirectory, ShardIndex index) throws IOException {
+    final List<File> files = new ArrayList<File>();
+    final Map<Locale, Bundle> bundles = read(directory, base);
+    if (bundles.isEmpty()) {
+      return files;
+    }
+    final File indexFile = new File(outputDirectory,
+        Catalogs.shardIndexName(base));
+    mkdirs(indexFile.getParentFile());
+    final OutputStream out = new FileOutputStream(indexFile);
+    try {
+      index.write(out);
+    } finally {
+      out.close();
+    }
+    files.add(indexFile);
+    for (Map.Entry<Locale, Bundle> entry : bundles.entrySet()) {
+      final List<Map<String, String>> shards =
+          new ArrayList<Map<String, String>>();
+      for (int i = 0; i < index.count(); i++) {
+        shards.add(new TreeMap<String, String>());
+      }
+      for (Map.Entry<String, String> message
+          : entry.getValue().messages.entrySet()) {
+        shards.get(index.shard(message.getKey()))
+            .put(message.getKey(), message.getValue());
+      }
+      for (int i = 0; i < shards.size(); i++) {
+        final File file = new File(outputDirectory,
+            Catalogs.shardName(base, entry.getKey(), i));
+        writeCatalog(file, shards.get(i));
+        files.add(file);
+      }
+    }
+    return files;
+  }
+
+  private static void writeCatalog(File file, Map<String, String> messages)
+      throws IOException {
+    mkdirs(file.getParentFile());
+    final OutputStream out =
+        new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      StringTable.write(out, 0, messages);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void mkdirs(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("could not create directory " + dir);
+    }
+  }
+
+  /** Reads the properties files of a bundle, and parses their messages.
+   * Returns a {@link Bundle} for each locale that has a properties file. */
+  private static Map<Locale, Bundle> read(File directory, String base)
+      throws IOException {
+    final int dot = base.lastIndexOf('.');
+    final String simpleName = base.substring(dot + 1);
+    final File packageDir =
+        new File(directory,
+            dot < 0 ? "" : base.substring(0, dot).replace('.', '/'));
+    final Map<Locale, File> files = new TreeMap<Locale, File>(
+        new Comparator<Locale>() {
+          public int compare(Locale o1, Locale o2) {
+            return o1.toString().compareTo(o2.toString());
+          }
+        });
+    final File[] children = packageDir.listFiles();
+    if (children != null) {
+      for (File file : children) {
+        final Locale locale = locale(simpleName, file.getName());
+        if (locale != null) {
+          files.put(locale, file);
+        }
+      }
+    }
+    final ResourceBundle.Control control =
+        ResourceBundle.Control.getControl(
+            ResourceBundle.Control.FORMAT_DEFAULT);
+    final Map<Locale, Bundle> bundles =
+        new LinkedHashMap<Locale, Bundle>();
+    for (Map.Entry<Locale, File> entry : files.entrySet()) {
+      final Locale locale = entry.getKey();
+      final List<Locale> candidates =
+          new ArrayList<Locale>(control.getCandidateLocales(base, locale));
+      Collections.reverse(candidates);
+      final Map<String, String> messages = new TreeMap<String, String>();
+      for (Locale candidate : candidates) {
+        final File file = files.get(candidate);
+        if (file != null) {
+          messages.putAll(load(file));
+        }
+      }
+      final Map<String, Resources.MessageTemplate> templates =
+          new TreeMap<String, Resources.MessageTemplate>();
+      for (Map.Entry<String, String> message : messages.entrySet()) {
+        final String key = message.getKey();
+        try {
+          templates.put(key,
+              Resources.MessageTemplate.compile(message.getValue(), locale));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("invalid message '" + key
+              + "' in bundle " + base + " for locale '" + locale + "': "
+              + e.getMessage(), e);
+        }
+      }
+      bundles.put(locale, new Bundle(entry.getValue(), messages, templates));
+    }
+    return bundles;
+  }
+
+  /** Returns the locale of a properties file of a bundle, or null if the
+   * file does not belong to the bundle. For example, if the bundle's simple
+   * name is "MyResource", returns "fr_FR" for "MyResource_fr_FR.properties"
+   * and the root locale for "MyResource.properties".
+   *
+   * <p>The suffix must look like a locale: a language of 2 or 3 lower-case
+   * letters, then optionally a country of 2 upper-case letters or 3 digits,
+   * then optionally a variant. Otherwise the file belongs to another bundle
+   * whose name starts with this bundle's name; for example,
+   * "MyResource_Extra.properties" is not "MyResource" in language
+   * "extra". */
+  private static Locale locale(String simpleName, String fileName) {
+    final String extension = ".properties";
+    if (!fileName.startsWith(simpleName) || !fileName.endsWith(extension)) {
+      return null;
+    }
+    final String suffix = fileName.substring(simpleName.length(),
+        fileName.length() - extension.length());
+    if (suffix.length() == 0) {
+      return Locale.ROOT;
+    }
+    if (!suffix.startsWith("_")) {
+      return null;
+    }
+    final String[] parts = suffix.substring(1).split("_", 3);
+    final String language = parts[0];
+    final String country = parts.length > 1 ? parts[1] : "";
+    final String variant = parts.length > 2 ? parts[2] : "";
+    if (!language.matches("[a-z]{2,3}")
+        || !country.matches("|[A-Z]{2}|[0-9]{3}")
+        || !variant.matches("|[A-Za-z0-9_]+")
+        || parts.length > 2 && country.length() == 0) {
+      return null;
+    }
+    return new Locale(language, country, variant);
+  }
+
+  /** Reads a properties file with {@link Resources.PropertiesParser}, the
+   * parser used at run time, so that a file in UTF-8 gives the same
+   * messages whether it is compiled or read at run time. */
+  private static Map<String, String> load(File file) throws IOException {
+    final InputStream in = new FileInputStream(file);
+    try {
+      return new TreeMap<String, String>(Resources.PropertiesParser.parse(in));
+    } finally {
+      in.close();
+    }
+  }
+
+  private String generate(String base, Locale locale, String className,
+      Bundle bundle) {
+    final Map<String, Resources.MessageTemplate> templates = bundle.templates;
+    final int dot = className.lastIndexOf('.');
+    final StringBuilder buf = new StringBuilder();
+    buf.append("// Generated by hydromatic-resource-maven-plugin from ")
+        .append(bundle.file.getName())
+        .append(". Do not edit.\n");
+    if (dot >= 0) {
+      buf.append("package ").append(className.substring(0, dot))
+          .append(";\n\n");
+    }
+    buf.append("import java.util.Locale;\n")
+        .append("import java.util.Map;\n\n")
+        .append("import ").append(resourcesPackage)
+        .append(".Resources.CompiledBundle;\n")
+        .append("import ").append(resourcesPackage)
+        .append(".Resources.MessageTemplate;\n\n")
+        .append("/** Messages of bundle ").append(base)
+        .append(" in locale ")
+        .append(locale.toString().length() == 0 ? "ROOT" : locale.toString())
+        .append(". */\n")
+        .append("public class ").append(className.substring(dot + 1))
+        .append(" implements CompiledBundle {\n")
+        .append("  public void templates(Locale locale,\n")
+        .append("      Map<String, MessageTemplate> templates) {\n");
+    final int methodCount =
+        (templates.size() + MESSAGES_PER_METHOD - 1) / MESSAGES_PER_METHOD;
+    for (int i = 0; i < methodCount; i++) {
+      buf.append("    add").append(i).append("(locale, templates);\n");
+    }
+    buf.append("  }\n");
+    int i = 0;
+    for (Map.Entry<String, Resources.MessageTemplate> entry
+        : templates.entrySet()) {
+      if (i % MESSAGES_PER_METHOD == 0) {
+        if (i > 0) {
+          buf.append("  }\n");
+        }
+        buf.append("\n  private static void add")
+            .append(i / MESSAGES_PER_METHOD)
+            .append("(Locale locale,\n")
+            .append("      Map<String, MessageTemplate> templates) {\n");
+      }
+      final Resources.MessageTemplate template = entry.getValue();
+      buf.append("    templates.put(").append(literal(entry.getKey()))
+          .append(",\n        MessageTemplate.of(")
+          .append(literal(template.pattern()))
+          .append(", locale,\n            ")
+          .append(array("String", template.literals()))
+          .append(",\n            new int[] {");
+      final int[] argumentNumbers = template.argumentNumbers();
+      for (int j = 0; j < argumentNumbers.length; j++) {
+        buf.append(j > 0 ? ", " : "").append(argumentNumbers[j]);
+      }
+      buf.append("},\n            ")
+          .append(array("String", template.types()))
+          .append(",\n            ")
+          .append(array("String", template.styles()))
+          .append("));\n");
+      ++i;
+    }
+    if (i > 0) {
+      buf.append("  }\n");
+    }
+    buf.append("}\n");
+    return buf.toString();
+  }
+
+  private static String array(String type, String[] values) {
+    final StringBuilder buf = new StringBuilder();
+    buf.append("new ").append(type).append("[] {");
+    for (int i = 0; i < values.length; i++) {
+      buf.append(i > 0 ? ", " : "").append(literal(values[i]));
+    }
+    return buf.append("}").toString();
+  }
+
+  /** Converts a string to a Java string literal. Characters outside
+   * printable ASCII are written as Unicode escapes, so the generated file
+   * does not depend on the compiler's encoding. */
+  static String literal(String s) {
+    final StringBuilder buf = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        buf.append("\\\"");
+        break;
+      case '\\':
+        buf.append("\\\\");
+        break;
+      case '\n':
+        buf.append("\\n");
+        break;
+      case '\r':
+        buf.append("\\r");
+        break;
+      case '\t':
+        buf.append("\\t");
+        break;
+      default:
+        if (c < 0x20 || c > 0x7e) {
+          buf.append(String.format("\\u%04x", (int) c));
+        } else {
+          buf.append(c);
+        }
+      }
+    }
+    return buf.append('"').toString();
+  }
+
+  /** Messages of a bundle in one locale, with the messages of parent
+   * locales merged in. */
+  private static class Bundle {
+    final File file;
+    final Map<String, String> messages;
+    final Map<String, Resources.MessageTemplate> templates;
+
+    Bundle(File file, Map<String, String> messages,
+        Map<String, Resources.MessageTemplate> templates) {
+      this.file = file;
+      this.messages = messages;
+      this.templates = templates;
+    }
+  }
+}
+
+// End BundleCompiler.java
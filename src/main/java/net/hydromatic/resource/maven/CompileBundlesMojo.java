@@ -0,0 +1,91 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.maven;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.plexus.util.FileUtils;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Compiles the properties files of resource bundles into Java classes, so
+ * that messages do not need to be read and parsed at run time.
+ *
+ * <p>If a message is not a valid pattern, the build fails.
+ *
+ * @see BundleCompiler
+ *
+ * @goal compile-bundles
+ * @phase generate-sources
+ */
+public class CompileBundlesMojo extends AbstractCodeGeneratorMojo {
+  /**
+   * Package of the Resources class, as generated by the
+   * "generate-sources" goal.
+   *
+   * @parameter default-value="com.acme.resource"
+   * @required
+   */
+  String packageName;
+
+  /**
+   * Directory that contains the properties files.
+   *
+   * @parameter default-value="${basedir}/src/main/resources"
+   * @required
+   */
+  File resourceDirectory;
+
+  /**
+   * Base names of the bundles to compile; for example,
+   * "com.example.MyResource".
+   *
+   * @parameter
+   * @required
+   */
+  String[] bundles;
+
+  @Override protected void generate() throws Exception {
+    final BundleCompiler compiler = new BundleCompiler(packageName);
+    for (String bundle : bundles) {
+      final Map<String, String> sources;
+      try {
+        sources = compiler.compile(resourceDirectory, bundle);
+      } catch (IllegalArgumentException e) {
+        throw new MojoFailureException(e.getMessage());
+      }
+      if (sources.isEmpty()) {
+        getLog().warn("No properties files for bundle " + bundle);
+      }
+      for (Map.Entry<String, String> entry : sources.entrySet()) {
+        final File file = new File(outputDirectory,
+            entry.getKey().replace('.', '/') + ".java");
+        file.getParentFile().mkdirs();
+        if (file.exists()
+            && entry.getValue().equals(FileUtils.fileRead(file, "UTF-8"))) {
+          getLog().info(file + " is up to date");
+          continue;
+        }
+        getLog().info("Creating " + file);
+        FileUtils.fileWrite(file, "UTF-8", entry.getValue());
+      }
+    }
+  }
+}
+
+// End CompileBundlesMojo.java
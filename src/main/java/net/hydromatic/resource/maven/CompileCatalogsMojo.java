@@ -0,0 +1,123 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.maven;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import net.hydromatic.resource.ShardIndex;
+
+/**
+ * Writes the messages of resource bundles to binary catalogs, which are
+ * mapped into memory at run time rather than loaded onto the heap.
+ *
+ * <p>If {@code shardCount} or {@code shardPrefixes} is set, splits each
+ * catalog into shards, so that at run time only the shards that contain
+ * requested messages are loaded.
+ *
+ * <p>If a message is not a valid pattern, the build fails.
+ *
+ * @see BundleCompiler#writeCatalogs
+ * @see BundleCompiler#writeShards
+ *
+ * @goal compile-catalogs
+ * @phase generate-resources
+ */
+public class CompileCatalogsMojo extends AbstractMojo {
+  /**
+   * Directory that contains the properties files.
+   *
+   * @parameter default-value="${basedir}/src/main/resources"
+   * @required
+   */
+  File resourceDirectory;
+
+  /**
+   * Directory in which to write catalogs.
+   *
+   * @parameter default-value="${project.build.outputDirectory}"
+   * @required
+   */
+  File outputDirectory;
+
+  /**
+   * Base names of the bundles to compile; for example,
+   * "com.example.MyResource".
+   *
+   * @parameter
+   * @required
+   */
+  String[] bundles;
+
+  /**
+   * Number of shards into which to split each catalog, assigning messages
+   * to shards by the hash code of their key; 0 to not split catalogs.
+   *
+   * @parameter default-value="0"
+   */
+  int shardCount;
+
+  /**
+   * Key prefixes by which to split each catalog. There is one shard for
+   * each prefix, and one for keys that match no prefix. Overrides
+   * {@code shardCount}.
+   *
+   * @parameter
+   */
+  String[] shardPrefixes;
+
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    final ShardIndex index;
+    try {
+      index = shardPrefixes != null && shardPrefixes.length > 0
+          ? ShardIndex.prefix(shardPrefixes)
+          : shardCount > 0
+          ? ShardIndex.hash(shardCount)
+          : null;
+    } catch (IllegalArgumentException e) {
+      throw new MojoFailureException(e.getMessage());
+    }
+    for (String bundle : bundles) {
+      final List<File> files;
+      try {
+        files = index == null
+            ? BundleCompiler.writeCatalogs(resourceDirectory, bundle,
+                outputDirectory)
+            : BundleCompiler.writeShards(resourceDirectory, bundle,
+                outputDirectory, index);
+      } catch (IllegalArgumentException e) {
+        throw new MojoFailureException(e.getMessage());
+      } catch (IOException e) {
+        throw new MojoExecutionException("Error writing catalogs for "
+            + bundle, e);
+      }
+      if (files.isEmpty()) {
+        getLog().warn("No properties files for bundle " + bundle);
+      }
+      for (File file : files) {
+        getLog().info("Created " + file);
+      }
+    }
+  }
+}
+
+// End CompileCatalogsMojo.java
@@ -16,6 +16,7 @@
  */
 package net.hydromatic.resource.maven;
 
+import org.apache.maven.plugin.MojoFailureException;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.IOUtil;
 
@@ -34,6 +35,15 @@ public class ResourceMojo extends AbstractCodeGeneratorMojo {
    */
   String packageName;
 
+  /**
+   * Names of optional classes to copy into the package along with
+   * Resources; for example, "MappedPropertyAccessor". Resources does not
+   * need them, so by default they are not copied.
+   *
+   * @parameter
+   */
+  String[] extras;
+
   @Override protected void generate() throws Exception {
     File pd = new File(outputDirectory, packageName.replaceAll("\\.", "/"));
     if (getLog().isDebugEnabled()) {
@@ -41,14 +51,27 @@ public class ResourceMojo extends AbstractCodeGeneratorMojo {
     }
     pd.mkdirs();
 
+    copy(pd, "Resources");
+    if (extras != null) {
+      for (String extra : extras) {
+        copy(pd, extra);
+      }
+    }
+  }
+
+  /** Copies a class's source file into the package. */
+  private void copy(File pd, String className) throws Exception {
     InputStream in = null;
     try {
       in = ResourceMojo.class.getResourceAsStream(
-              "/net/hydromatic/resource/Resources.java");
+              "/net/hydromatic/resource/" + className + ".java");
+      if (in == null) {
+        throw new MojoFailureException("Unknown class " + className);
+      }
       String template = IOUtil.toString(in, "UTF-8");
       template = template.replace("package net.hydromatic.resource;",
           "package " + packageName + ";");
-      saveResult(new File(pd, "Resources.java"), template);
+      saveResult(new File(pd, className + ".java"), template);
     } finally {
       if (in != null) {
         in.close();
@@ -17,6 +17,12 @@
 
 /**
  * Compiler-checked resource framework.
+ *
+ * <p>The "generate-sources" goal of hydromatic-resource-maven-plugin copies
+ * {@link net.hydromatic.resource.Resources} into a project's own package.
+ * The other classes in this package are optional, and {@code Resources}
+ * does not use them; the goal copies those listed in its "extras"
+ * parameter.
  */
 package net.hydromatic.resource;
 
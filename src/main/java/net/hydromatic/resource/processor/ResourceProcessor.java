@@ -0,0 +1,563 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor that generates, for each resource interface, a class
+ * that implements the interface without reflection.
+ *
+ * <p>A resource interface is an interface that has at least one method
+ * returning a sub-class of {@code Resources.Inst} or {@code Resources.Prop}.
+ * For an interface {@code com.example.Outer.MyResource} the processor
+ * generates a class {@code com.example.Outer_MyResourceImpl}; each method
+ * calls the constructor of its {@code Inst} or {@code Prop} return type
+ * directly. {@code Resources.create} uses the generated class if it can find
+ * it, and falls back to a dynamic proxy if it cannot.
+ *
+ * <p>The processor does not generate a class for an interface that it
+ * cannot implement completely: an interface that has type parameters, or
+ * that has a method whose return type is not a resource or property, or
+ * whose return type does not have the constructor that the class would
+ * call. It reports why, as a note, and the interface is implemented by a
+ * proxy, as it would be without the processor.
+ *
+ * <p>The processor only looks at interfaces that declare a method
+ * annotated with {@code BaseMessage}, {@code Resource}, {@code Property} or
+ * {@code Default}, so it does no work in a build that has no resources. An
+ * interface whose methods are all inherited is implemented by a proxy.
+ *
+ * <p>The {@code Resources} class is usually copied into the project's own
+ * package by the Maven plugin. Set the processor option
+ * {@code resource.package} to that package, for example
+ * {@code -Aresource.package=com.example.resource}; the default is
+ * {@code net.hydromatic.resource}.
+ */
+@SupportedOptions(ResourceProcessor.PACKAGE_OPTION)
+public class ResourceProcessor extends AbstractProcessor {
+  /** Suffix appended to the flattened name of a resource interface to form
+   * the name of the generated class. Must match
+   * {@code Resources.createGenerated}. */
+  public static final String SUFFIX = "Impl";
+
+  /** Name of the processor option that holds the package of the
+   * {@code Resources} class. */
+  public static final String PACKAGE_OPTION = "resource.package";
+
+  /** Package of the {@code Resources} class if {@link #PACKAGE_OPTION} is
+   * not set. */
+  public static final String DEFAULT_PACKAGE = "net.hydromatic.resource";
+
+  /** Annotations, nested in {@code Resources}, that mark a method as a
+   * resource or property. */
+  private static final List<String> ANNOTATIONS =
+      Arrays.asList("BaseMessage", "Resource", "Property", "Default");
+
+  private final Set<String> generated = new HashSet<String>();
+
+  @Override public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override public Set<String> getSupportedAnnotationTypes() {
+    final Set<String> names = new LinkedHashSet<String>();
+    for (String annotation : ANNOTATIONS) {
+      names.add(resourcesName() + "." + annotation);
+    }
+    return names;
+  }
+
+  /** Returns the qualified name of the {@code Resources} class. */
+  private String resourcesName() {
+    final String pkg = processingEnv.getOptions().get(PACKAGE_OPTION);
+    return (pkg == null ? DEFAULT_PACKAGE : pkg) + ".Resources";
+  }
+
+  public boolean process(Set<? extends TypeElement> annotations,
+      RoundEnvironment roundEnv) {
+    for (TypeElement annotation : annotations) {
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        if (element.getKind() == ElementKind.METHOD) {
+          visit(element.getEnclosingElement());
+        }
+      }
+    }
+    // Do not claim any annotations; other processors may want them.
+    return false;
+  }
+
+  private void visit(Element element) {
+    if (element.getKind() != ElementKind.INTERFACE) {
+      return;
+    }
+    final TypeElement type = (TypeElement) element;
+    if (!isAccessible(type)) {
+      return;
+    }
+    final List<ExecutableElement> methods = abstractMethods(type);
+    if (isResourceInterface(methods)) {
+      final String className = implName(type);
+      if (generated.add(className) && canGenerate(type, methods)) {
+        try {
+          generate(type, methods, className);
+        } catch (IOException e) {
+          processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+              "error generating " + className + ": " + e, type);
+        }
+      }
+    }
+  }
+
+  /** Returns whether a type can be implemented by a class in its package;
+   * that is, neither it nor any enclosing type is private. */
+  private static boolean isAccessible(TypeElement type) {
+    for (Element e = type; e instanceof TypeElement;
+         e = e.getEnclosingElement()) {
+      if (e.getModifiers().contains(Modifier.PRIVATE)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private List<ExecutableElement> abstractMethods(TypeElement type) {
+    final List<ExecutableElement> list = new ArrayList<ExecutableElement>();
+    for (ExecutableElement method : ElementFilter.methodsIn(
+        processingEnv.getElementUtils().getAllMembers(type))) {
+      if (method.getModifiers().contains(Modifier.ABSTRACT)
+          && !method.getModifiers().contains(Modifier.STATIC)) {
+        list.add(method);
+      }
+    }
+    return list;
+  }
+
+  /** Returns whether the processor can implement every method of an
+   * interface; if not, reports why. */
+  private boolean canGenerate(TypeElement type,
+      List<ExecutableElement> methods) {
+    if (!type.getTypeParameters().isEmpty()) {
+      note(type, type, "it has type parameters");
+      return false;
+    }
+    for (ExecutableElement method : methods) {
+      final TypeMirror returnType = signature(type, method).getReturnType();
+      final String problem = problem(kind(returnType), returnType);
+      if (problem != null) {
+        note(type, method, "method " + method.getSimpleName() + ": "
+            + problem);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void note(TypeElement type, Element element, String problem) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+        "not generating an implementation of " + type.getQualifiedName()
+            + ", so Resources.create will use a proxy; " + problem,
+        element);
+  }
+
+  /** Returns the signature of a method as a member of an interface; if the
+   * method is inherited from a generic interface, its type variables are
+   * replaced by the interface's type arguments. */
+  private ExecutableType signature(TypeElement type,
+      ExecutableElement method) {
+    return (ExecutableType) processingEnv.getTypeUtils()
+        .asMemberOf((DeclaredType) type.asType(), method);
+  }
+
+  private boolean isResourceInterface(List<ExecutableElement> methods) {
+    for (ExecutableElement method : methods) {
+      if (kind(method.getReturnType()) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns "Inst" if a type is a sub-class of {@code Resources.Inst},
+   * "Prop" if it is a sub-class of {@code Resources.Prop}, otherwise null. */
+  private String kind(TypeMirror type) {
+    final TypeElement c = baseClass(type);
+    return c == null ? null : c.getSimpleName().toString();
+  }
+
+  /** Returns the {@code Resources} class that encloses the {@code Inst} or
+   * {@code Prop} super-class of a given type, or null. */
+  private TypeElement resourcesClass(TypeMirror type) {
+    final TypeElement c = baseClass(type);
+    return c == null ? null : (TypeElement) c.getEnclosingElement();
+  }
+
+  /** Returns the super-class of a type that is {@code Resources.Inst} or
+   * {@code Resources.Prop}, or null. */
+  private TypeElement baseClass(TypeMirror type) {
+    final String resourcesName = resourcesName();
+    for (TypeElement c = asTypeElement(type); c != null;
+         c = asTypeElement(c.getSuperclass())) {
+      final Element enclosing = c.getEnclosingElement();
+      if (enclosing instanceof TypeElement
+          && ((TypeElement) enclosing).getQualifiedName()
+              .contentEquals(resourcesName)
+          && (c.getSimpleName().contentEquals("Inst")
+              || c.getSimpleName().contentEquals("Prop"))) {
+        return c;
+      }
+    }
+    return null;
+  }
+
+  private static TypeElement asTypeElement(TypeMirror type) {
+    if (type.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    return (TypeElement) ((DeclaredType) type).asElement();
+  }
+
+  private String implName(TypeElement type) {
+    return processingEnv.getElementUtils().getBinaryName(type).toString()
+        .replace('$', '_') + SUFFIX;
+  }
+
+  private void generate(TypeElement type, List<ExecutableElement> methods,
+      String className) throws IOException {
+    TypeElement resources = null;
+    for (ExecutableElement method : methods) {
+      resources = resourcesClass(method.getReturnType());
+      if (resources != null) {
+        break;
+      }
+    }
+    assert resources != null;
+    final String r = resources.getQualifiedName().toString();
+    final PackageElement pkg =
+        processingEnv.getElementUtils().getPackageOf(type);
+    final String simpleName =
+        className.substring(className.lastIndexOf('.') + 1);
+    final String interfaceName = type.getQualifiedName().toString();
+
+    final Writer w = processingEnv.getFiler()
+        .createSourceFile(className, type).openWriter();
+    final PrintWriter pw = new PrintWriter(w);
+    if (!pkg.isUnnamed()) {
+      pw.println("package " + pkg.getQualifiedName() + ";");
+      pw.println();
+    }
+    pw.println("/** Implementation of {@link " + interfaceName + "}.");
+    pw.println(" *");
+    pw.println(" * <p>Generated by " + getClass().getName() + ";");
+    pw.println(" * do not edit. */");
+    pw.println("@SuppressWarnings({\"rawtypes\", \"unchecked\"})");
+    pw.println("public class " + simpleName + " implements "
+        + interfaceName + " {");
+    pw.println("  private static final Object[] NO_ARGS = {};");
+    final List<ExecutableType> signatures = new ArrayList<ExecutableType>();
+    for (ExecutableElement method : methods) {
+      signatures.add(signature(type, method));
+    }
+    for (int i = 0; i < methods.size(); i++) {
+      final ExecutableElement method = methods.get(i);
+      final StringBuilder b = new StringBuilder();
+      b.append("  private static final java.lang.reflect.Method M").append(i)
+          .append(" =\n      method(\"").append(method.getSimpleName())
+          .append('"');
+      for (VariableElement parameter : method.getParameters()) {
+        b.append(", ").append(
+            processingEnv.getTypeUtils().erasure(parameter.asType()))
+            .append(".class");
+      }
+      b.append(");");
+      pw.println(b);
+      if (hasInfoConstructor(signatures.get(i).getReturnType())) {
+        pw.println("  private static final " + r + ".MethodInfo I" + i
+            + " = info(M" + i + ");");
+      }
+    }
+    pw.println();
+    pw.println("  private final String base;");
+    pw.println("  private final " + r + ".PropertyAccessor accessor;");
+    for (int i = 0; i < methods.size(); i++) {
+      final TypeMirror returnType = signatures.get(i).getReturnType();
+      if ("Prop".equals(kind(returnType))
+          && methods.get(i).getParameters().isEmpty()) {
+        pw.println("  private volatile " + returnType + " p" + i + ";");
+      }
+    }
+    pw.println();
+    pw.println("  public " + simpleName + "(String base,");
+    pw.println("      " + r + ".PropertyAccessor accessor) {");
+    pw.println("    this.base = base;");
+    pw.println("    this.accessor = accessor;");
+    pw.println("  }");
+    pw.println();
+    pw.println("  private static java.lang.reflect.Method method(String name,");
+    pw.println("      Class... parameterTypes) {");
+    pw.println("    try {");
+    pw.println("      return " + interfaceName
+        + ".class.getMethod(name, parameterTypes);");
+    pw.println("    } catch (NoSuchMethodException e) {");
+    pw.println("      throw new ExceptionInInitializerError(e);");
+    pw.println("    }");
+    pw.println("  }");
+    pw.println();
+    pw.println("  /** Returns information about a method, or null if it is"
+        + " not valid;");
+    pw.println("   * then the constructor will throw when it is called. */");
+    pw.println("  private static " + r + ".MethodInfo info(");
+    pw.println("      java.lang.reflect.Method method) {");
+    pw.println("    try {");
+    pw.println("      return " + r + ".MethodInfo.of(method);");
+    pw.println("    } catch (RuntimeException e) {");
+    pw.println("      return null;");
+    pw.println("    }");
+    pw.println("  }");
+    pw.println();
+    pw.println("  private static java.util.Locale locale() {");
+    pw.println("    final java.util.Locale locale = " + r
+        + ".getThreadLocale();");
+    pw.println("    return locale != null ? locale"
+        + " : java.util.Locale.getDefault();");
+    pw.println("  }");
+    for (int i = 0; i < methods.size(); i++) {
+      pw.println();
+      generateMethod(pw, methods.get(i), signatures.get(i), i);
+    }
+    pw.println("}");
+    pw.println();
+    pw.println("// End " + simpleName + ".java");
+    pw.close();
+  }
+
+  private void generateMethod(PrintWriter pw, ExecutableElement method,
+      ExecutableType signature, int i) {
+    final TypeMirror returnType = signature.getReturnType();
+    final String typeParameters = typeParameters(method);
+    final StringBuilder b = new StringBuilder("  public ");
+    b.append(typeParameters).append(returnType).append(' ')
+        .append(method.getSimpleName()).append('(');
+    final List<? extends VariableElement> parameters = method.getParameters();
+    for (int j = 0; j < parameters.size(); j++) {
+      final VariableElement parameter = parameters.get(j);
+      if (j > 0) {
+        b.append(", ");
+      }
+      String typeName = signature.getParameterTypes().get(j).toString();
+      if (method.isVarArgs() && j == parameters.size() - 1) {
+        typeName = typeName.substring(0, typeName.length() - 2) + "...";
+      }
+      b.append(typeName).append(' ')
+          .append(parameter.getSimpleName());
+    }
+    b.append(") {");
+    pw.println(b);
+
+    // The method's parameters are named by the user, and may have the same
+    // name as a field (say "base" or "I0"). So the method only passes its
+    // arguments to a helper, "create" + i, that refers to the fields and
+    // whose only parameter is "args".
+    final boolean inst = kind(returnType).equals("Inst");
+    if (inst) {
+      final StringBuilder args = new StringBuilder();
+      if (parameters.isEmpty()) {
+        args.append("NO_ARGS");
+      } else {
+        args.append("new Object[] {");
+        for (int j = 0; j < parameters.size(); j++) {
+          if (j > 0) {
+            args.append(", ");
+          }
+          args.append(parameters.get(j).getSimpleName());
+        }
+        args.append('}');
+      }
+      pw.println("    return create" + i + "(" + args + ");");
+    } else if (parameters.isEmpty()) {
+      // Properties do not depend on locale or arguments, so create each one
+      // once. Create lazily, because the constructor may throw.
+      pw.println("    " + returnType + " p = p" + i + ";");
+      pw.println("    if (p == null) {");
+      pw.println("      p" + i + " = p = create" + i + "();");
+      pw.println("    }");
+      pw.println("    return p;");
+    } else {
+      pw.println("    return create" + i + "();");
+    }
+    pw.println("  }");
+    pw.println();
+    pw.println("  private " + typeParameters + returnType + " create" + i
+        + (inst ? "(Object[] args) {" : "() {"));
+    pw.println("    return "
+        + (inst
+            ? create(returnType, i, "this.base, locale(), ", ", args")
+            : create(returnType, i, "this.accessor, ", ""))
+        + ";");
+    pw.println("  }");
+  }
+
+  /** Returns the type parameters of a method, followed by a space, as they
+   * would be declared in source code; or the empty string if it has
+   * none. */
+  private static String typeParameters(ExecutableElement method) {
+    if (method.getTypeParameters().isEmpty()) {
+      return "";
+    }
+    final StringBuilder b = new StringBuilder("<");
+    int j = 0;
+    for (TypeParameterElement typeParameter : method.getTypeParameters()) {
+      if (j++ > 0) {
+        b.append(", ");
+      }
+      b.append(typeParameter.getSimpleName());
+      int k = 0;
+      for (TypeMirror bound : typeParameter.getBounds()) {
+        if (bound.toString().equals("java.lang.Object")) {
+          continue;
+        }
+        b.append(k++ == 0 ? " extends " : " & ").append(bound);
+      }
+    }
+    return b.append("> ").toString();
+  }
+
+  /** Returns a description of why a method cannot be implemented, or null if
+   * it can. */
+  private String problem(String kind, TypeMirror returnType) {
+    if (kind == null) {
+      return "return type " + returnType + " is not a resource or property";
+    }
+    final TypeElement e = asTypeElement(returnType);
+    if (e.getModifiers().contains(Modifier.ABSTRACT)) {
+      return "return type " + returnType + " is abstract";
+    }
+    final List<String> expected =
+        constructorParameters(kind, returnType, "java.lang.reflect.Method");
+    if (hasConstructor(e, expected)) {
+      return null;
+    }
+    return "return type " + returnType + " has no public constructor with "
+        + "parameters " + expected;
+  }
+
+  /** Returns an expression that creates the element for method {@code i},
+   * passing its {@code MethodInfo} if the return type has a constructor that
+   * accepts one, otherwise its {@code Method}. */
+  private String create(TypeMirror returnType, int i, String before,
+      String after) {
+    final String byMethod =
+        "new " + creatable(returnType) + "(" + before + "M" + i + after + ")";
+    if (!hasInfoConstructor(returnType)) {
+      return byMethod;
+    }
+    return "I" + i + " != null\n"
+        + "        ? new " + creatable(returnType) + "(" + before + "I" + i
+        + after + ")\n"
+        + "        : " + byMethod;
+  }
+
+  /** Returns whether a type has a public constructor that accepts a
+   * {@code MethodInfo}, so that the generated class can compute the
+   * information about each method once, rather than each time it creates an
+   * element. */
+  private boolean hasInfoConstructor(TypeMirror returnType) {
+    final String kind = kind(returnType);
+    if (kind == null) {
+      return false;
+    }
+    final TypeElement e = asTypeElement(returnType);
+    return !e.getModifiers().contains(Modifier.ABSTRACT)
+        && hasConstructor(e,
+            constructorParameters(kind, returnType,
+                resourcesClass(returnType).getQualifiedName()
+                    + ".MethodInfo"));
+  }
+
+  private List<String> constructorParameters(String kind,
+      TypeMirror returnType, String methodType) {
+    return kind.equals("Inst")
+        ? Arrays.asList("java.lang.String", "java.util.Locale", methodType,
+            "java.lang.Object[]")
+        : Arrays.asList(
+            resourcesClass(returnType).getQualifiedName() + ".PropertyAccessor",
+            methodType);
+  }
+
+  private boolean hasConstructor(TypeElement e, List<String> expected) {
+    for (ExecutableElement constructor
+        : ElementFilter.constructorsIn(e.getEnclosedElements())) {
+      if (constructor.getModifiers().contains(Modifier.PUBLIC)
+          && matches(constructor.getParameters(), expected)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matches(List<? extends VariableElement> parameters,
+      List<String> expected) {
+    if (parameters.size() != expected.size()) {
+      return false;
+    }
+    for (int i = 0; i < expected.size(); i++) {
+      final TypeMirror type =
+          processingEnv.getTypeUtils().erasure(parameters.get(i).asType());
+      if (!type.toString().equals(expected.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the type to use in a {@code new} expression; the raw type if the
+   * type has wildcard arguments. */
+  private String creatable(TypeMirror type) {
+    if (type.toString().contains("?")) {
+      return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+    return type.toString();
+  }
+}
+
+// End ResourceProcessor.java
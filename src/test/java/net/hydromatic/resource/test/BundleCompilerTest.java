@@ -0,0 +1,406 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import net.hydromatic.resource.Catalogs;
+import net.hydromatic.resource.ShardIndex;
+import net.hydromatic.resource.StringTable;
+import net.hydromatic.resource.maven.BundleCompiler;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeThat;
+
+import static net.hydromatic.resource.Resources.*;
+
+/**
+ * Tests for {@link BundleCompiler}.
+ */
+public class BundleCompilerTest {
+  private static final String BASE = "net.hydromatic.resource.test.gen.Msg";
+
+  private File dir;
+
+  @Before public void setUp() throws IOException {
+    dir = File.createTempFile("bundle", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    MessageTable.clearCache();
+  }
+
+  @After public void tearDown() {
+    MessageTable.clearCache();
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    final File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        delete(f);
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  /** Writes a properties file, in ISO-8859-1 like the files read by
+   * {@link java.util.PropertyResourceBundle}. */
+  private void writeProperties(String name, String contents)
+      throws IOException {
+    writeProperties(name, contents, "ISO-8859-1");
+  }
+
+  private void writeProperties(String name, String contents,
+      String encoding) throws IOException {
+    final File file = new File(dir, "src/" + name);
+    assertTrue(file.getParentFile().isDirectory()
+        || file.getParentFile().mkdirs());
+    final OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents.getBytes(encoding));
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Compiles generated sources and returns a class loader that can load
+   * the classes. */
+  private ClassLoader compile(Map<String, String> sources)
+      throws IOException {
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assumeThat("requires a JDK", compiler, notNullValue());
+    final File classes = new File(dir, "classes");
+    assertTrue(classes.mkdir());
+    final List<String> args = new ArrayList<String>();
+    args.add("-classpath");
+    args.add(System.getProperty("java.class.path"));
+    args.add("-d");
+    args.add(classes.getPath());
+    for (Map.Entry<String, String> entry : sources.entrySet()) {
+      final String name = entry.getKey();
+      final File file =
+          new File(dir, name.substring(name.lastIndexOf('.') + 1) + ".java");
+      final Writer w =
+          new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      w.write(entry.getValue());
+      w.close();
+      args.add(file.getPath());
+    }
+    final int status =
+        compiler.run(null, null, null, args.toArray(new String[args.size()]));
+    assertThat(status, is(0));
+    return new URLClassLoader(new URL[] {classes.toURI().toURL()},
+        getClass().getClassLoader());
+  }
+
+  /** Compiles a bundle with messages in several locales, and checks that
+   * {@link MessageTable} loads them from the compiled classes. */
+  @Test public void testCompile() throws Exception {
+    final String path = "net/hydromatic/resource/test/gen/";
+    writeProperties(path + "Msg.properties",
+        "Hello=hello, {0}!\n"
+        + "Count=There {0,choice,0#are no files|1#is one file"
+        + "|1<are {0,number,integer} files}.\n"
+        + "Quote='{0}' is not an argument\n");
+    writeProperties(path + "Msg_fr.properties",
+        "Hello=bonjour, {0} ! \u00c7a va ?\n"
+        + "Path=C:\\\\users\\\\{0}\n");
+    writeProperties(path + "Msg_fr_CA.properties",
+        "Quote=allo\n");
+    writeProperties(path + "Other.properties", "Hello=other\n");
+    // Files of other bundles whose names start with "Msg_" are not locales
+    // of this bundle.
+    writeProperties(path + "Msg_Extra.properties", "Hello=extra\n");
+    writeProperties(path + "Msg_Extra_fr.properties", "Hello=extra fr\n");
+    writeProperties(path + "Msg_fr_Canada.properties", "Hello=canada\n");
+
+    final Map<String, String> sources =
+        new BundleCompiler("net.hydromatic.resource")
+            .compile(new File(dir, "src"), BASE);
+    assertThat(sources.keySet().toString(),
+        is("[" + BASE + "Compiled, " + BASE + "Compiled_fr, "
+            + BASE + "Compiled_fr_CA]"));
+
+    final Thread thread = Thread.currentThread();
+    final ClassLoader previous = thread.getContextClassLoader();
+    thread.setContextClassLoader(compile(sources));
+    try {
+      // The properties files are not on the class path, so any messages
+      // must come from the compiled classes.
+      final MessageTable root = MessageTable.of(BASE, Locale.ROOT);
+      assertThat(root.get("Hello"), is("hello, {0}!"));
+      final MessageTemplate count = root.template("Count", null);
+      assertThat(count.format(new Object[] {0}),
+          is("There are no files."));
+      assertThat(count.format(new Object[] {1234}),
+          is("There are 1,234 files."));
+      assertThat(root.template("Quote", null).format(new Object[] {1}),
+          is("{0} is not an argument"));
+
+      // Messages of parent locales are merged in.
+      final MessageTable frCa = MessageTable.of(BASE, Locale.CANADA_FRENCH);
+      assertThat(frCa.get("Hello"), is("bonjour, {0} ! \u00c7a va ?"));
+      assertThat(frCa.template("Path", null).format(new Object[] {"x"}),
+          is("C:\\users\\x"));
+      assertThat(frCa.get("Quote"), is("allo"));
+      assertThat(frCa.get("Count"), notNullValue());
+
+      // A locale without a class of its own uses its parent's class, and
+      // formats arguments with its own locale.
+      final MessageTable frFr = MessageTable.of(BASE, Locale.FRANCE);
+      assertThat(frFr.get("Quote"), is("'{0}' is not an argument"));
+      final MessageTemplate hello = frFr.template("Hello", null);
+      assertThat(hello.locale(), is(Locale.FRANCE));
+      assertThat(hello.format(new Object[] {"Marie"}),
+          is("bonjour, Marie ! \u00c7a va ?"));
+    } finally {
+      thread.setContextClassLoader(previous);
+    }
+  }
+
+  /** Writes a bundle to catalogs, and checks that {@link MessageTable}
+   * reads messages from them. */
+  @Test public void testCatalog() throws Exception {
+    final String path = "net/hydromatic/resource/test/gen/";
+    writeProperties(path + "Msg.properties",
+        "Hello=hello, {0}!\n"
+        + "Bye=bye\n");
+    writeProperties(path + "Msg_fr.properties",
+        "Hello=bonjour, {0} ! \u00c7a va ?\n");
+    final File classes = new File(dir, "classes");
+    final List<File> files =
+        BundleCompiler.writeCatalogs(new File(dir, "src"), BASE, classes);
+    assertThat(files.size(), is(2));
+    assertThat(files.get(1).getName(), is("Msg_fr.catalog"));
+
+    final Thread thread = Thread.currentThread();
+    final ClassLoader previous = thread.getContextClassLoader();
+    thread.setContextClassLoader(
+        new URLClassLoader(new URL[] {classes.toURI().toURL()},
+            getClass().getClassLoader()));
+    try {
+      final MessageTable fr = MessageTable.of(BASE, Locale.CANADA_FRENCH);
+      assertThat(fr.get("Hello"), is("bonjour, {0} ! \u00c7a va ?"));
+      assertThat(fr.get("Bye"), is("bye"));
+      assertThat(fr.get("Missing"), nullValue());
+      assertThat(fr.template("Hello", null).format(new Object[] {"Marie"}),
+          is("bonjour, Marie ! \u00c7a va ?"));
+
+      // The catalog is read with the same format as MappedPropertyAccessor.
+      final StringTable table = StringTable.map(files.get(0));
+      assertThat(table.size(), is(2));
+      assertThat(table.get("Bye"), is("bye"));
+
+      // Without a catalog finder, tables do not read catalogs, and there
+      // are no properties files.
+      MessageTable.setCatalogFinder(null);
+      MessageTable.clearCache();
+      assertThat(MessageTable.of(BASE, Locale.CANADA_FRENCH).get("Bye"),
+          nullValue());
+    } finally {
+      MessageTable.setCatalogFinder(new Catalogs());
+      thread.setContextClassLoader(previous);
+    }
+  }
+
+  /** Tests that a properties file in UTF-8 with non-ASCII text gives the
+   * same messages when compiled, when written to a catalog, and when read at
+   * run time. */
+  @Test public void testUtf8() throws Exception {
+    final String path = "net/hydromatic/resource/test/gen/";
+    final String message = "gr\u00fc\u00df dich, {0}! \u20ac \u4f60\u597d";
+    writeProperties(path + "Msg.properties",
+        "Hello=" + message + "\nEscaped=\\u00e9\n", "UTF-8");
+    final File src = new File(dir, "src");
+    final File catalogs = new File(dir, "catalogs");
+    BundleCompiler.writeCatalogs(src, BASE, catalogs);
+    final ClassLoader propertiesLoader =
+        new URLClassLoader(new URL[] {src.toURI().toURL()},
+            getClass().getClassLoader());
+    final ClassLoader catalogLoader =
+        new URLClassLoader(new URL[] {catalogs.toURI().toURL()},
+            getClass().getClassLoader());
+    final ClassLoader compiledLoader =
+        compile(new BundleCompiler("net.hydromatic.resource")
+            .compile(src, BASE));
+    for (ClassLoader loader
+        : new ClassLoader[] {propertiesLoader, catalogLoader, compiledLoader}) {
+      final MessageTable table = MessageTable.of(BASE, Locale.ROOT, loader);
+      assertThat(table.get("Hello"), is(message));
+      assertThat(table.get("Escaped"), is("\u00e9"));
+    }
+  }
+
+  /** Tests that class loaders that have bundles with the same name get
+   * different tables. */
+  @Test public void testClassLoaders() throws Exception {
+    final String path = "net/hydromatic/resource/test/gen/";
+    writeProperties(path + "Msg.properties", "Hello=catalog\n");
+    final File classes = new File(dir, "classes");
+    BundleCompiler.writeCatalogs(new File(dir, "src"), BASE, classes);
+    writeProperties(path + "Msg.properties", "Hello=properties\n");
+
+    // One loader sees a catalog, the other a properties file.
+    final ClassLoader loader1 =
+        new URLClassLoader(new URL[] {classes.toURI().toURL()},
+            getClass().getClassLoader());
+    final ClassLoader loader2 =
+        new URLClassLoader(new URL[] {new File(dir, "src").toURI().toURL()},
+            getClass().getClassLoader());
+    final MessageTable table1 = MessageTable.of(BASE, Locale.ROOT, loader1);
+    final MessageTable table2 = MessageTable.of(BASE, Locale.ROOT, loader2);
+    assertThat(table1.get("Hello"), is("catalog"));
+    assertThat(table2.get("Hello"), is("properties"));
+    assertThat(MessageTable.of(BASE, Locale.ROOT, loader1),
+        sameInstance(table1));
+
+    // Without a loader, uses the thread's context class loader.
+    final Thread thread = Thread.currentThread();
+    final ClassLoader previous = thread.getContextClassLoader();
+    try {
+      thread.setContextClassLoader(loader2);
+      assertThat(MessageTable.of(BASE, Locale.ROOT), sameInstance(table2));
+      thread.setContextClassLoader(loader1);
+      assertThat(MessageTable.of(BASE, Locale.ROOT), sameInstance(table1));
+    } finally {
+      thread.setContextClassLoader(previous);
+    }
+    assertThat(MessageTable.of(BASE, Locale.ROOT).get("Hello"), nullValue());
+  }
+
+  /** Writes a bundle to sharded catalogs, and checks that
+   * {@link MessageTable} loads only the shards that hold requested
+   * messages. */
+  @Test public void testShards() throws Exception {
+    final String path = "net/hydromatic/resource/test/gen/";
+    final StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      buf.append("Key").append(i).append("=message ").append(i).append('\n');
+    }
+    writeProperties(path + "Msg.properties", buf.toString());
+    writeProperties(path + "Msg_fr.properties", "Key7=message sept\n");
+    final File classes = new File(dir, "classes");
+    final ShardIndex index = ShardIndex.hash(8);
+    final List<File> files =
+        BundleCompiler.writeShards(new File(dir, "src"), BASE, classes, index);
+    // The index, and 8 shards for each of 2 locales
+    assertThat(files.size(), is(17));
+    assertThat(files.get(0).getName(), is("Msg.shards"));
+    assertThat(files.get(16).getName(), is("Msg_fr.7.catalog"));
+
+    final Thread thread = Thread.currentThread();
+    final ClassLoader previous = thread.getContextClassLoader();
+    thread.setContextClassLoader(
+        new URLClassLoader(new URL[] {classes.toURI().toURL()},
+            getClass().getClassLoader()));
+    try {
+      final MessageTable fr = MessageTable.of(BASE, Locale.CANADA_FRENCH);
+      assertThat(loadedShardCount(fr), is(0));
+      assertThat(fr.get("Key7"), is("message sept"));
+      assertThat(loadedShardCount(fr), is(1));
+      assertThat(fr.get("Key12"), is("message 12"));
+      final int expected =
+          index.shard("Key7") == index.shard("Key12") ? 1 : 2;
+      assertThat(loadedShardCount(fr), is(expected));
+      assertThat(fr.get("Missing"), nullValue());
+      for (int i = 0; i < 40; i++) {
+        assertThat(fr.get("Key" + i), notNullValue());
+      }
+      assertThat(loadedShardCount(fr), is(8));
+
+      final MessageTable root = MessageTable.of(BASE, Locale.ROOT);
+      assertThat(root.get("Key7"), is("message 7"));
+      assertThat(loadedShardCount(root), is(1));
+    } finally {
+      thread.setContextClassLoader(previous);
+    }
+  }
+
+  /** Returns the number of shards that a table has loaded. */
+  private static int loadedShardCount(MessageTable table) {
+    return ((Catalogs.Shards) table.catalog()).loadedCount();
+  }
+
+  /** Tests {@link ShardIndex} with prefixes, and writing and reading an
+   * index. */
+  @Test public void testShardIndex() throws Exception {
+    final ShardIndex index = ShardIndex.prefix("Sql", "SqlValidator", "X\\y");
+    assertThat(index.count(), is(4));
+    assertThat(index.shard("SqlParse"), is(0));
+    assertThat(index.shard("SqlValidatorFoo"), is(1));
+    assertThat(index.shard("X\\yz"), is(2));
+    assertThat(index.shard("Other"), is(3));
+    assertThat(index.shard(""), is(3));
+
+    for (ShardIndex i : new ShardIndex[] {index, ShardIndex.hash(5)}) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      i.write(out);
+      final ShardIndex i2 = ShardIndex.read(
+          new ByteArrayInputStream(out.toByteArray()), "test");
+      assertThat(i2, is(i));
+      assertThat(i2.toString(), is(i.toString()));
+    }
+    try {
+      final ShardIndex i = ShardIndex.read(
+          new ByteArrayInputStream("count=x".getBytes("ISO-8859-1")), "bad");
+      fail("expected error, got " + i);
+    } catch (IOException e) {
+      assertThat(e.getMessage(), is("not a shard index: bad"));
+    }
+  }
+
+  /** Tests that an invalid message pattern causes compilation to fail. */
+  @Test public void testCompileInvalid() throws Exception {
+    writeProperties("net/hydromatic/resource/test/gen/Msg_de.properties",
+        "Good=ok\n"
+        + "Bad=unclosed {0\n");
+    try {
+      final Map<String, String> sources =
+          new BundleCompiler("net.hydromatic.resource")
+              .compile(new File(dir, "src"), BASE);
+      fail("expected error, got " + sources);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          is("invalid message 'Bad' in bundle " + BASE
+              + " for locale 'de': Unmatched braces in the pattern."));
+    }
+  }
+}
+
+// End BundleCompilerTest.java
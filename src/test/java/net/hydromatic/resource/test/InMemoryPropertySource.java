@@ -0,0 +1,77 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.hydromatic.resource.BatchPropertySource;
+
+/** {@link BatchPropertySource} that holds values in memory.
+ *
+ * <p>Use it in tests in place of a configuration service. It counts the
+ * calls to {@link #fetch(Set)}, and can be made to fail. */
+public class InMemoryPropertySource implements BatchPropertySource {
+  private final ConcurrentMap<String, String> values =
+      new ConcurrentHashMap<String, String>();
+  private final AtomicLong fetchCount = new AtomicLong();
+  private volatile IOException failure;
+
+  /** Sets the value of a property. */
+  public void put(String key, String value) {
+    values.put(key, value);
+  }
+
+  /** Removes a property. */
+  public void remove(String key) {
+    values.remove(key);
+  }
+
+  /** Makes subsequent calls to {@link #fetch(Set)} throw an exception, or,
+   * if {@code failure} is null, succeed. */
+  public void setFailure(IOException failure) {
+    this.failure = failure;
+  }
+
+  /** Returns the number of times {@link #fetch(Set)} has been called. */
+  public long fetchCount() {
+    return fetchCount.get();
+  }
+
+  public Map<String, String> fetch(Set<String> keys) throws IOException {
+    fetchCount.incrementAndGet();
+    final IOException e = failure;
+    if (e != null) {
+      throw e;
+    }
+    final Map<String, String> map = new HashMap<String, String>();
+    for (String key : keys) {
+      final String value = values.get(key);
+      if (value != null) {
+        map.put(key, value);
+      }
+    }
+    return map;
+  }
+}
+
+// End InMemoryPropertySource.java
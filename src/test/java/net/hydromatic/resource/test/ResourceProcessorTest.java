@@ -0,0 +1,305 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership. Julian Hyde
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.resource.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import net.hydromatic.resource.Resources;
+import net.hydromatic.resource.processor.ResourceProcessor;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeThat;
+
+import static net.hydromatic.resource.Resources.*;
+
+/**
+ * Tests for {@link ResourceProcessor}.
+ *
+ * <p>The project's own sources are compiled without annotation processing,
+ * so each test compiles a resource interface using the system Java compiler
+ * and loads the result in a new class loader.
+ */
+public class ResourceProcessorTest {
+  private static final String PACKAGE = "net.hydromatic.resource.test.gen";
+
+  private File dir;
+
+  /** Diagnostics printed by the most recent compilation. */
+  private String output;
+
+  @Before public void setUp() throws IOException {
+    dir = File.createTempFile("resource", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+  }
+
+  @After public void tearDown() {
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    final File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        delete(f);
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  /** Compiles a resource interface, running the annotation processor, and
+   * returns a class loader that can load the generated classes. */
+  private ClassLoader compile(String className, String source,
+      String... options) throws IOException {
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assumeThat("requires a JDK", compiler, notNullValue());
+    final File file = new File(dir, className + ".java");
+    final Writer w = new FileWriter(file);
+    w.write("package " + PACKAGE + ";\n"
+        + "import net.hydromatic.resource.Resources.*;\n"
+        + source);
+    w.close();
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    final List<String> args = new ArrayList<String>(Arrays.asList(
+        "-classpath", System.getProperty("java.class.path"),
+        "-processor", ResourceProcessor.class.getName(),
+        "-d", dir.getPath(),
+        "-s", dir.getPath()));
+    args.addAll(Arrays.asList(options));
+    args.add(file.getPath());
+    final int status = compiler.run(null, null, err,
+        args.toArray(new String[args.size()]));
+    output = err.toString();
+    assertThat(output, status, is(0));
+    return new URLClassLoader(new URL[] {dir.toURI().toURL()},
+        getClass().getClassLoader());
+  }
+
+  private static Object invoke(Object o, String methodName, Object... args)
+      throws Exception {
+    for (java.lang.reflect.Method method : o.getClass().getMethods()) {
+      if (method.getName().equals(methodName)) {
+        try {
+          return method.invoke(o, args);
+        } catch (InvocationTargetException e) {
+          throw (Exception) e.getCause();
+        }
+      }
+    }
+    throw new AssertionError("no method " + methodName);
+  }
+
+  @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
+  @Test public void testGenerate() throws Exception {
+    final ClassLoader loader = compile("GenResource",
+        "public interface GenResource {\n"
+        + "  @BaseMessage(\"hello, {0}!\")\n"
+        + "  Inst hello(String name);\n"
+        + "  @BaseMessage(\"goodbye\")\n"
+        + "  Inst goodbye();\n"
+        + "  @BaseMessage(\"bad {0,number}\")\n"
+        + "  ExInst<IllegalArgumentException> bad(int i);\n"
+        + "  @BaseMessage(\"all {0}\")\n"
+        + "  Inst all(String... names);\n"
+        + "  @Default(\"5\")\n"
+        + "  IntProp five();\n"
+        + "}\n");
+    final Class<?> clazz = loader.loadClass(PACKAGE + ".GenResource");
+    final Object r = Resources.create(clazz);
+    assertThat(Proxy.isProxyClass(r.getClass()), is(false));
+    assertThat(r.getClass().getName(), is(PACKAGE + ".GenResourceImpl"));
+
+    assertThat(((Inst) invoke(r, "hello", "world")).str(),
+        is("hello, world!"));
+    assertThat(((Inst) invoke(r, "goodbye")).str(), is("goodbye"));
+    // The generated class computes information about each method once
+    assertThat(((Inst) invoke(r, "hello", "a")).info(),
+        sameInstance(((Inst) invoke(r, "hello", "b")).info()));
+    // Varargs are passed as a single argument, as they are to a proxy
+    assertThat(((Inst) invoke(r, "all", (Object) new String[] {"a", "b"}))
+            .str(),
+        startsWith("all [Ljava.lang.String;"));
+
+    final ExInst<?> exInst = (ExInst<?>) invoke(r, "bad", 3);
+    final Exception e = exInst.ex();
+    assertThat(e, instanceOf(IllegalArgumentException.class));
+    assertThat(e.getMessage(), is("bad 3"));
+
+    final IntProp five = (IntProp) invoke(r, "five");
+    assertThat(five.get(), is(5));
+    assertThat(invoke(r, "five"), sameInstance((Object) five));
+  }
+
+  /** Tests that the processor does not generate a class for an interface
+   * that has a method that is not a resource or property, and that the
+   * interface is implemented by a proxy instead. */
+  @Test public void testNotResource() throws Exception {
+    final ClassLoader loader = compile("MixedResource",
+        "public interface MixedResource {\n"
+        + "  @BaseMessage(\"hello\")\n"
+        + "  Inst hello();\n"
+        + "  String notResource();\n"
+        + "}\n");
+    assertThat(output,
+        containsString("not generating an implementation of "
+            + PACKAGE + ".MixedResource, so Resources.create will use a "
+            + "proxy; method notResource: return type java.lang.String is "
+            + "not a resource or property"));
+    assertThat(new File(dir, "net/hydromatic/resource/test/gen/"
+            + "MixedResourceImpl.java").exists(),
+        is(false));
+    final Class<?> clazz = loader.loadClass(PACKAGE + ".MixedResource");
+    final Object r = Resources.create(clazz);
+    assertThat(Proxy.isProxyClass(r.getClass()), is(true));
+    assertThat(((Inst) invoke(r, "hello")).str(), is("hello"));
+  }
+
+  /** Tests generic resource interfaces. An interface with type parameters is
+   * implemented by a proxy; an interface that extends a generic interface
+   * is generated, with type arguments in place of type variables. */
+  @Test public void testGeneric() throws Exception {
+    final ClassLoader loader = compile("Generic",
+        "public class Generic {\n"
+        + "  public interface Base<T> {\n"
+        + "    @BaseMessage(\"got {0}\")\n"
+        + "    Inst got(T t);\n"
+        + "  }\n"
+        + "  public interface Sub extends Base<String> {\n"
+        + "    @BaseMessage(\"sub\")\n"
+        + "    Inst sub();\n"
+        + "  }\n"
+        + "}\n");
+    assertThat(output,
+        containsString("not generating an implementation of "
+            + PACKAGE + ".Generic.Base, so Resources.create will use a "
+            + "proxy; it has type parameters"));
+    final Object base =
+        Resources.create(loader.loadClass(PACKAGE + ".Generic$Base"));
+    assertThat(Proxy.isProxyClass(base.getClass()), is(true));
+    assertThat(((Inst) invoke(base, "got", 1)).str(), is("got 1"));
+
+    final Object sub =
+        Resources.create(loader.loadClass(PACKAGE + ".Generic$Sub"));
+    assertThat(sub.getClass().getName(), is(PACKAGE + ".Generic_SubImpl"));
+    assertThat(((Inst) invoke(sub, "got", "x")).str(), is("got x"));
+    assertThat(((Inst) invoke(sub, "sub")).str(), is("sub"));
+  }
+
+  /** Tests that the processor only recognizes the {@code Resources} class
+   * in the package given by its option, not any class that happens to be
+   * called "Resources". */
+  @Test public void testResourcesPackage() throws Exception {
+    compile("LookAlike",
+        "public class LookAlike {\n"
+        + "  public static class Resources {\n"
+        + "    public static class Inst {\n"
+        + "      public Inst(String base, java.util.Locale locale,\n"
+        + "          java.lang.reflect.Method method, Object[] args) {}\n"
+        + "    }\n"
+        + "  }\n"
+        + "  public interface Fake {\n"
+        + "    @BaseMessage(\"fake\")\n"
+        + "    Resources.Inst fake();\n"
+        + "  }\n"
+        + "}\n");
+    assertThat(new File(dir, "net/hydromatic/resource/test/gen/"
+            + "LookAlike_FakeImpl.java").exists(),
+        is(false));
+
+    // With the option set to another package, net.hydromatic.resource's
+    // annotations are not processed
+    compile("Elsewhere",
+        "public interface Elsewhere {\n"
+        + "  @BaseMessage(\"hello\")\n"
+        + "  Inst hello();\n"
+        + "}\n",
+        "-A" + ResourceProcessor.PACKAGE_OPTION + "=com.example.resource");
+    assertThat(new File(dir, "net/hydromatic/resource/test/gen/"
+            + "ElsewhereImpl.java").exists(),
+        is(false));
+  }
+
+  /** Tests a resource whose parameters have the same names as fields of
+   * the generated class. They must not hide the fields; a parameter called
+   * "base" once became the bundle's base name. */
+  @Test public void testParameterShadowsField() throws Exception {
+    final File bundle =
+        new File(dir, "net/hydromatic/resource/test/gen/Shadow.properties");
+    assertTrue(bundle.getParentFile().mkdirs());
+    final Writer w = new FileWriter(bundle);
+    w.write("IllegalBase=translated {0}\n");
+    w.close();
+    final ClassLoader loader = compile("Shadow",
+        "public interface Shadow {\n"
+        + "  @BaseMessage(\"illegal {0}\")\n"
+        + "  Inst illegalBase(String base);\n"
+        + "  @BaseMessage(\"fields {0} {1} {2} {3}\")\n"
+        + "  Inst fields(int I0, int M0, int NO_ARGS, String args);\n"
+        + "  @Default(\"7\")\n"
+        + "  IntProp size(String accessor);\n"
+        + "}\n");
+    final Object r = Resources.create(loader.loadClass(PACKAGE + ".Shadow"));
+    assertThat(r.getClass().getName(), is(PACKAGE + ".ShadowImpl"));
+    assertThat(((Inst) invoke(r, "illegalBase", "xyz")).str(),
+        is("translated xyz"));
+    assertThat(((Inst) invoke(r, "fields", 1, 2, 3, "a")).str(),
+        is("fields 1 2 3 a"));
+    assertThat(((IntProp) invoke(r, "size", "x")).get(), is(7));
+  }
+
+  @Test public void testGenerateNested() throws Exception {
+    final ClassLoader loader = compile("Outer",
+        "public class Outer {\n"
+        + "  public interface Nested {\n"
+        + "    @BaseMessage(\"nested\")\n"
+        + "    Inst nested();\n"
+        + "  }\n"
+        + "  private interface Hidden {\n"
+        + "    @BaseMessage(\"hidden\")\n"
+        + "    Inst hidden();\n"
+        + "  }\n"
+        + "}\n");
+    final Class<?> clazz = loader.loadClass(PACKAGE + ".Outer$Nested");
+    final Object r = Resources.create(clazz);
+    assertThat(r.getClass().getName(), is(PACKAGE + ".Outer_NestedImpl"));
+    assertThat(((Inst) invoke(r, "nested")).str(), is("nested"));
+    assertThat(new File(dir, "net/hydromatic/resource/test/gen/"
+            + "Outer_HiddenImpl.java").exists(),
+        is(false));
+  }
+}
+
+// End ResourceProcessorTest.java
@@ -18,15 +18,43 @@
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
 import java.util.Properties;
-
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.hydromatic.resource.CachingPropertyAccessor;
+import net.hydromatic.resource.DeflatedString;
+import net.hydromatic.resource.MappedPropertyAccessor;
 import net.hydromatic.resource.Resources;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeThat;
 
 import static net.hydromatic.resource.Resources.*;
 
@@ -48,6 +76,447 @@ public class ResourceTest {
         equalTo("message in properties file"));
   }
 
+  /** Tests that a resource without arguments is cached per locale, not
+   * shared between threads that have different locales. */
+  @Test public void testCachePerLocale() {
+    try {
+      Resources.setThreadLocale(Locale.FRENCH);
+      final Inst fr = fooResource.helloWorld();
+      assertThat(fooResource.helloWorld(), sameInstance(fr));
+      Resources.setThreadLocale(Locale.GERMAN);
+      final Inst de = fooResource.helloWorld();
+      assertThat(de, not(sameInstance(fr)));
+      assertThat(de, not(equalTo(fr)));
+      assertThat(de, equalTo(fr.localize(Locale.GERMAN)));
+      assertThat(fooResource.helloWorld(), sameInstance(de));
+      Resources.setThreadLocale(Locale.FRENCH);
+      assertThat(fooResource.helloWorld(), sameInstance(fr));
+    } finally {
+      Resources.setThreadLocale(null);
+    }
+  }
+
+  /** Tests that {@link MessageTemplate} gives the same results as
+   * {@link MessageFormat}. */
+  @Test public void testMessageTemplate() {
+    final String[] patterns = {
+      "hello",
+      "it''s {0}",
+      "'{0}' is quoted, {0} is not, '''{0}'''",
+      "{1} before {0}",
+      "{0} and {3}",
+      "{0,number}",
+      "{0,number,#.##}",
+      "{0, number ,integer}",
+      "{0,number,percent}",
+      "{0,number,currency}",
+      "{0,number,'#'#}",
+      "{0,date}",
+      "{0,date,short}",
+      "{0,time,long}",
+      "{0,date,yyyy-MM-dd 'at' HH:mm}",
+      "{0,choice,0#none|1#one|1<{0,number,integer} or more; also {1}}",
+      "{0,choice,0#none|1#one|1<many}",
+    };
+    final Object[][] argss = {
+      {},
+      {1234.5678, "x"},
+      {-7, null},
+      {new Date(1234567890123L), 1},
+      {0, "y"},
+      {1, 2},
+      {42L, Locale.CHINA},
+    };
+    for (Locale locale
+        : new Locale[] {Locale.US, Locale.GERMANY, Locale.FRANCE}) {
+      for (String pattern : patterns) {
+        final MessageTemplate template =
+            MessageTemplate.compile(pattern, locale);
+        assertThat(template.pattern(), is(pattern));
+        final boolean dateFormat =
+            pattern.contains("date") || pattern.contains("time");
+        final boolean numberFormat =
+            pattern.contains("number") || pattern.contains("choice");
+        for (Object[] args : argss) {
+          if (dateFormat
+              && (args.length == 0 || !(args[0] instanceof Date))
+              || numberFormat
+              && (args.length == 0 || !(args[0] instanceof Number))) {
+            continue;
+          }
+          final String expected =
+              new MessageFormat(pattern, locale).format(args);
+          assertThat(pattern + " " + locale,
+              template.format(args), is(expected));
+        }
+      }
+    }
+  }
+
+  /** Tests that a {@link MessageTable} contains messages from the bundle for
+   * its locale and from parent bundles. */
+  @Test public void testMessageTable() {
+    final String base = "net.hydromatic.resource.test.ResourceTest";
+    final MessageTable table = MessageTable.of(base, Locale.FRANCE);
+    assertThat(MessageTable.of(base, Locale.FRANCE), sameInstance(table));
+    assertThat(table.get("HelloWorld"), is("bonjour, monde!"));
+    assertThat(table.get("DifferentMessageInPropertiesFile"),
+        is("message in properties file"));
+    assertThat(table.get("OnlyInClass"), nullValue());
+    assertThat(table.template("HelloWorld", null),
+        sameInstance(table.template("HelloWorld", null)));
+    assertThat(table.template("NoSuchKey", "x {0}").pattern(), is("x {0}"));
+    assertThat(table.getMissing("NoSuchKey"), is("x {0}"));
+    assertThat(fooResource.helloWorld().localize(Locale.FRANCE).str(),
+        is("bonjour, monde!"));
+    assertThat(fooResource.onlyInClass().localize(Locale.FRANCE).str(),
+        is("only in class"));
+
+    // A bundle that does not exist gives an empty table.
+    final MessageTable table2 = MessageTable.of("no.such.Bundle", Locale.US);
+    assertThat(table2.get("HelloWorld"), nullValue());
+  }
+
+  /** Tests that a {@link MessageTable} records the keys of resources that
+   * are not in the bundle. */
+  @Test public void testMissingKeys() {
+    final String base = "net.hydromatic.resource.test.ResourceTest";
+    final MessageTable table = MessageTable.of(base, Locale.ITALY);
+    assertThat(table.getMissing("OnlyInClass"), nullValue());
+    for (int i = 0; i < 2; i++) {
+      assertThat(fooResource.onlyInClass().localize(Locale.ITALY).str(),
+          is("only in class"));
+      assertThat(fooResource.helloWorld().localize(Locale.ITALY).str(),
+          is("hello, world!"));
+      assertThat(table.getMissing("OnlyInClass"), is("only in class"));
+      assertThat(table.missingKeys(), hasItem("OnlyInClass"));
+      assertThat(table.missingKeys(), not(hasItem("HelloWorld")));
+    }
+  }
+
+  /** Tests that the cache of message tables evicts tables when it has more
+   * locales than its capacity. */
+  @Test public void testMessageTableEviction() {
+    final String base = "net.hydromatic.resource.test.ResourceTest";
+    try {
+      MessageTable.setCapacity(1);
+      final MessageTable fr = MessageTable.of(base, Locale.FRANCE);
+      final MessageTable de = MessageTable.of(base, Locale.GERMANY);
+      assertThat(MessageTable.of(base, Locale.GERMANY), sameInstance(de));
+      assertThat(MessageTable.of(base, Locale.FRANCE), not(sameInstance(fr)));
+      assertThat(MessageTable.of(base, Locale.GERMANY), not(sameInstance(de)));
+    } finally {
+      MessageTable.setCapacity(64);
+    }
+  }
+
+  /** Tests that {@link MessageTable} shares messages between locales, and
+   * can hold messages in compact form. */
+  @Test public void testMessageTableCompaction() {
+    final String base = "net.hydromatic.resource.test.ResourceTest";
+    final String key = "DifferentMessageInPropertiesFile";
+    try {
+      MessageTable.clearCache();
+      final MessageTable fr = MessageTable.of(base, Locale.FRANCE);
+      final MessageTable frCa = MessageTable.of(base, Locale.CANADA_FRENCH);
+      assertThat(fr.get(key), is("message in properties file"));
+      assertThat(frCa.get(key), sameInstance(fr.get(key)));
+
+      // With compaction, every message is held in bytes, and is converted
+      // back to the same string.
+      MessageTable.setCompaction(0, DeflatedString.COMPACTOR);
+      MessageTable.clearCache();
+      final ResourceBundle bundle =
+          ResourceBundle.getBundle(base, Locale.FRANCE);
+      final MessageTable fr2 = MessageTable.of(base, Locale.FRANCE);
+      assertThat(fr2, not(sameInstance(fr)));
+      int n = 0;
+      for (Enumeration<String> e = bundle.getKeys(); e.hasMoreElements();) {
+        final String k = e.nextElement();
+        assertThat(fr2.get(k), is(bundle.getString(k)));
+        ++n;
+      }
+      assertThat(n > 0, is(true));
+      assertThat(fooResource.helloWorld().localize(Locale.FRANCE).str(),
+          is("bonjour, monde!"));
+
+      // After the first use, the table holds the decoded message, and the
+      // template shares it; a second render decodes nothing.
+      final Inst inst = fooResource.helloWorld().localize(Locale.FRANCE);
+      final MessageTable table = inst.table();
+      final String message = table.get("HelloWorld");
+      assertThat(table.get("HelloWorld"), sameInstance(message));
+      final MessageTemplate template = table.template("HelloWorld", null);
+      assertThat(template.pattern(), sameInstance(message));
+      assertThat(inst.str(), is("bonjour, monde!"));
+      assertThat(inst.raw(), sameInstance(message));
+      assertThat(table.template("HelloWorld", null), sameInstance(template));
+    } finally {
+      MessageTable.setCompaction(512, null);
+      MessageTable.clearCache();
+    }
+  }
+
+  /** Tests {@link DeflatedString}. */
+  @Test public void testDeflatedString() {
+    final StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      buf.append("gr\u00fc\u00df dich, \u4f60\u597d ").append(i % 3);
+    }
+    final String s = buf.toString();
+    final DeflatedString d = DeflatedString.of(s);
+    assertThat(d.toString(), is(s));
+    assertThat(d.byteCount() < s.length(), is(true));
+    assertThat(d.hashCode(), is(s.hashCode()));
+    assertThat(DeflatedString.of(s), is(d));
+
+    // A short string does not get smaller, so is not compressed; the
+    // compactor holds it in another form.
+    assertThat(DeflatedString.of("abc"), nullValue());
+    final Object o = DeflatedString.COMPACTOR.compact("abc");
+    assertThat(o.toString(), is("abc"));
+    assertThat(o, not(instanceOf(DeflatedString.class)));
+  }
+
+  /** Tests that {@link MessageTable#reload()} replaces a table whose
+   * properties file has changed, and that {@link MessageReloader} does so
+   * in the background. */
+  @Test public void testMessageTableReload() throws Exception {
+    final String base = "net.hydromatic.resource.test.ReloadResource";
+    final File dir =
+        new File(ResourceTest.class.getResource("ResourceTest.class").toURI())
+            .getParentFile();
+    final File file = new File(dir, "ReloadResource.properties");
+    final ReloadResource r = Resources.create(base, ReloadResource.class);
+    try {
+      MessageTable.clearCache();
+      write(file, "Hello=hello, {0}!\n");
+      final Inst hello = r.hello("Fred").localize(Locale.ROOT);
+      assertThat(hello.str(), is("hello, Fred!"));
+      final MessageTable table = MessageTable.of(base, Locale.ROOT);
+      assertThat(MessageTable.reload(), is(0));
+      assertThat(MessageTable.of(base, Locale.ROOT), sameInstance(table));
+
+      write(file, "Hello=bonjour, {0}!\n");
+      assertThat(MessageTable.reload(), is(1));
+      assertThat(hello.str(), is("bonjour, Fred!"));
+      final MessageTable table2 = MessageTable.of(base, Locale.ROOT);
+      assertThat(table2, not(sameInstance(table)));
+      // A thread that is still using the old table sees the old message.
+      assertThat(table.get("Hello"), is("hello, {0}!"));
+
+      // If the file cannot be read, the previous table is kept.
+      write(file, "Hello=\\uzzzz\n");
+      try {
+        final int n = MessageTable.reload();
+        fail("expected error, got " + n);
+      } catch (MissingResourceException e) {
+        assertThat(e.getMessage(), startsWith("Can't find bundle"));
+      }
+      assertThat(MessageTable.of(base, Locale.ROOT), sameInstance(table2));
+      assertThat(hello.str(), is("bonjour, Fred!"));
+
+      // The background thread notices changes.
+      final MessageReloader reloader = MessageReloader.start(10);
+      try {
+        write(file, "Hello=hallo, {0}!\n");
+        // The reloader counts the table after it has replaced it, so wait
+        // for the count, not just the message.
+        for (int i = 0; i < 500 && reloader.reloadCount() == 0; i++) {
+          Thread.sleep(10);
+        }
+        assertThat(hello.str(), is("hallo, Fred!"));
+        assertThat(reloader.lastError(), nullValue());
+        assertThat(reloader.reloadCount(), is(1L));
+      } finally {
+        reloader.close();
+      }
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      MessageTable.clearCache();
+    }
+  }
+
+  /** Tests that information about a method is computed once per resource
+   * interface and shared by all resources and properties created from that
+   * method. */
+  @Test public void testMethodInfo() throws NoSuchMethodException {
+    final Method method =
+        FooResource.class.getMethod("withProperty", int.class);
+    final MethodInfo info = MethodInfo.of(method);
+    assertThat(info.method(), is(method));
+    assertThat(info.key, is("WithProperty"));
+    assertThat(info.baseMessage, is("with properties {0,number}"));
+    assertThat(info.properties.get("prop"), is("my value"));
+    assertThat(info.hasDefault, is(false));
+    assertThat(info.parameterTypes().length, is(1));
+
+    final Inst i1 = fooResource.withProperty(1);
+    final Inst i2 = fooResource.withProperty(2);
+    assertThat(i1.getProperties(), sameInstance(i2.getProperties()));
+
+    // The constructors that take a Method look the information up in the
+    // table of the method's interface.
+    assertThat(MethodInfo.of(method), sameInstance(info));
+    final Inst i5 = new Inst("x", Locale.ROOT, method, 5);
+    assertThat(i5.info(), sameInstance(info));
+    final Method sameMethod =
+        FooResource.class.getMethod("withProperty", int.class);
+    assertThat(new Inst("x", Locale.ROOT, sameMethod, 6).info(),
+        sameInstance(info));
+
+    // An element created from a MethodInfo uses it, rather than computing
+    // its own.
+    final Inst i3 = new Inst("x", Locale.ROOT, info, 3);
+    final Inst i4 = new Inst("x", Locale.ROOT, info, 4);
+    assertThat(i3.getProperties(), sameInstance(i4.getProperties()));
+    assertThat(i3.getProperties(), sameInstance(info.properties));
+
+    final Method method2 = FooResource.class.getMethod("intPropDefaultFive");
+    final MethodInfo info2 = MethodInfo.of(method2);
+    assertThat(info2.hasDefault, is(true));
+    assertThat(info2.defaultValue, is((Object) (-50)));
+  }
+
+  /** Tests that {@link Inst#str()} formats the message returned by
+   * {@link Inst#raw()}, including when a sub-class overrides it. */
+  @Test public void testOverrideRaw() throws NoSuchMethodException {
+    final Method method = FooResource.class.getMethod("helloWorld");
+    final Inst inst = new Inst("net.hydromatic.resource.test.ResourceTest",
+        Locale.US, method, 1000) {
+      @Override public String raw() {
+        return "overridden {0}";
+      }
+    };
+    assertThat(inst.str(), is("overridden 1,000"));
+    assertThat(inst.localize(Locale.US).str(), is("hello, world!"));
+  }
+
+  /** Tests that the constructor of an exception is resolved once per
+   * method. */
+  @Test public void testExceptionFactory() throws NoSuchMethodException {
+    final Method method =
+        FooResource.class.getMethod("illArg", String.class);
+    final MethodInfo info = MethodInfo.of(method);
+    final ExceptionFactory<?> factory = info.exceptionFactory();
+    assertThat(info.exceptionFactory(), sameInstance((Object) factory));
+    assertThat(factory.exceptionClass(),
+        equalTo((Class) IllegalArgumentException.class));
+    final Throwable cause = new NullPointerException();
+    final Exception e = factory.create("msg", cause);
+    assertThat(e, instanceOf(IllegalArgumentException.class));
+    assertThat(e.getMessage(), is("msg"));
+    assertThat(e.getCause(), sameInstance(cause));
+    assertThat(fooResource.illArg("x").ex().getMessage(), is("bad arg x"));
+  }
+
+  /** Tests that explicit formats such as {@code {0,number}} use the default
+   * locale, as they did when resources were formatted by
+   * {@link MessageFormat}, unless
+   * {@link MessageTable#setLocalizeSubformats(boolean)} is set. */
+  @Test public void testSubformatLocale() {
+    final Locale previous = Locale.getDefault();
+    try {
+      Locale.setDefault(Locale.US);
+      MessageTable.clearCache();
+      final Inst inst = fooResource.withProperty(1000).localize(Locale.GERMANY);
+      assertThat(inst.str(), is("with properties 1,000"));
+      final MessageFormat format =
+          new MessageFormat("with properties {0,number}");
+      format.setLocale(Locale.GERMANY);
+      assertThat(inst.str(), is(format.format(new Object[] {1000})));
+
+      // The default locale is read when formatting, not when the template
+      // is created.
+      Locale.setDefault(Locale.GERMANY);
+      assertThat(inst.str(), is("with properties 1.000"));
+
+      // Arguments without an explicit format use the template's locale.
+      final MessageTemplate template =
+          MessageTemplate.compile("{0,number} {1}", Locale.GERMANY, null);
+      assertThat(template.subformatLocale(), nullValue());
+      final Object[] args = {1000, 2000.5};
+      assertThat(template.format(args), is("1.000 2.000,5"));
+      Locale.setDefault(Locale.US);
+      assertThat(template.format(args), is("1,000 2.000,5"));
+      assertThat(template.withSubformatLocale(Locale.GERMANY).format(args),
+          is("1.000 2.000,5"));
+
+      // With the option, explicit formats use the resource's locale.
+      MessageTable.setLocalizeSubformats(true);
+      MessageTable.clearCache();
+      assertThat(fooResource.withProperty(1000).localize(Locale.GERMANY).str(),
+          is("with properties 1.000"));
+      assertThat(fooResource.withProperty(1000).localize(Locale.US).str(),
+          is("with properties 1,000"));
+    } finally {
+      MessageTable.setLocalizeSubformats(false);
+      MessageTable.clearCache();
+      Locale.setDefault(previous);
+    }
+  }
+
+  /** Tests that explicit formats use the default locale for formatting,
+   * {@code Locale.getDefault(Locale.Category.FORMAT)}, as
+   * {@link MessageFormat} does, rather than {@link Locale#getDefault()}. */
+  @Test public void testFormatCategoryLocale() throws Exception {
+    Class<?> categoryClass = null;
+    try {
+      categoryClass = Class.forName("java.util.Locale$Category");
+    } catch (ClassNotFoundException e) {
+      // Java 6 has no locale categories
+    }
+    assumeThat("requires Java 7", categoryClass, notNullValue());
+    final Object category = categoryClass.getField("FORMAT").get(null);
+    final Method getDefault =
+        Locale.class.getMethod("getDefault", categoryClass);
+    final Method setDefault =
+        Locale.class.getMethod("setDefault", categoryClass, Locale.class);
+    final Locale previous = Locale.getDefault();
+    final Locale previousFormat = (Locale) getDefault.invoke(null, category);
+    try {
+      Locale.setDefault(Locale.US);
+      setDefault.invoke(null, category, Locale.GERMANY);
+      MessageTable.clearCache();
+      final MessageFormat format =
+          new MessageFormat("with properties {0,number}");
+      format.setLocale(Locale.US);
+      assertThat(format.format(new Object[] {1000}),
+          is("with properties 1.000"));
+      final Inst inst = fooResource.withProperty(1000).localize(Locale.US);
+      assertThat(inst.str(), is("with properties 1.000"));
+    } finally {
+      Locale.setDefault(previous);
+      setDefault.invoke(null, category, previousFormat);
+      MessageTable.clearCache();
+    }
+  }
+
+  @Test public void testMessageTemplateInvalid() {
+    final String[] patterns = {
+      "{0",
+      "{x}",
+      "{-1}",
+      "{0,foo}",
+    };
+    for (String pattern : patterns) {
+      try {
+        final MessageFormat format = new MessageFormat(pattern, Locale.US);
+        fail("expected error, got " + format);
+      } catch (IllegalArgumentException e) {
+        // ok
+      }
+      try {
+        final MessageTemplate template =
+            MessageTemplate.compile(pattern, Locale.US);
+        fail("expected error, got " + template);
+      } catch (IllegalArgumentException e) {
+        // ok
+      }
+    }
+  }
+
   @Test public void testProperty() {
     assertThat(fooResource.helloWorld().getProperties().size(), equalTo(0));
     assertThat(fooResource.withProperty(0).str(), equalTo("with properties 0"));
@@ -223,6 +692,838 @@ public class ResourceTest {
     assertThat(p.isSet(), is(false));
   }
 
+  /** Tests {@link SnapshotPropertyAccessor}. */
+  @Test public void testSnapshot() {
+    final Properties properties = new Properties();
+    properties.setProperty("IntPropNoDefault", "3");
+    properties.setProperty("com.example.my.int.property", "7");
+    properties.setProperty("StringPropNoDefault", "abc");
+    properties.setProperty("BooleanPropDefaultTrue", "false");
+    properties.setProperty("DoublePropNoDefault", "1.25");
+    final SnapshotPropertyAccessor snapshot =
+        SnapshotPropertyAccessor.of(properties, FooResource.class);
+    final FooResource r = Resources.create(snapshot, FooResource.class);
+
+    // Changes after the snapshot is created are not seen.
+    properties.setProperty("IntPropNoDefault", "4");
+    properties.setProperty("IntPropDefaultFive", "5");
+
+    assertThat(r.intPropNoDefault().get(), is(3));
+    assertThat(r.intPropNoDefault().get(1), is(3));
+    assertThat(r.intPropNoDefault().isSet(), is(true));
+    assertThat(r.intPropDefaultFive().get(), is(-50));
+    assertThat(r.intPropDefaultFive().isSet(), is(false));
+    assertThat(r.intPropPathDefault().get(), is(7));
+    assertThat(r.stringPropNoDefault().get(), is("abc"));
+    assertThat(r.stringPropDefaultXyz().get(), is("xyz"));
+    assertThat(r.booleanPropDefaultTrue().get(), is(false));
+    assertThat(r.doublePropNoDefault().get(), is(1.25d));
+    assertThat(r.doublePropDefaultHalf().get(0.75d), is(0.75d));
+    try {
+      final boolean actual = r.booleanPropNoDefault().get();
+      fail("expected error, got " + actual);
+    } catch (NoDefaultValueException e) {
+      assertThat(e.getMessage(),
+          is("Property BooleanPropNoDefault is not set and has no default "
+              + "value"));
+    }
+
+    // A bad value fails when the snapshot is created, not when it is read.
+    properties.setProperty("DoublePropNoDefault", "1.5x");
+    try {
+      final SnapshotPropertyAccessor snapshot2 =
+          SnapshotPropertyAccessor.of(properties, FooResource.class);
+      fail("expected error, got " + snapshot2);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          is("invalid value '1.5x' for property 'DoublePropNoDefault' of "
+              + "type DoubleProp"));
+      assertThat(e.getCause(), instanceOf(NumberFormatException.class));
+    }
+  }
+
+  /** Tests {@link ReloadingPropertyAccessor}. */
+  @Test public void testReloading() throws Exception {
+    final File file = File.createTempFile("reload", ".properties");
+    try {
+      write(file, "IntPropNoDefault=3\nStringPropNoDefault=abc\n");
+      final ReloadingPropertyAccessor accessor =
+          ReloadingPropertyAccessor.of(FooResource.class, file);
+      final FooResource r = Resources.create(accessor, FooResource.class);
+      final IntProp intProp = r.intPropNoDefault();
+      assertThat(intProp.get(), is(3));
+      assertThat(r.stringPropNoDefault().get(), is("abc"));
+      assertThat(accessor.reload(), is(false));
+
+      write(file, "IntPropNoDefault=4\n");
+      assertThat(accessor.reload(), is(true));
+      assertThat(intProp.get(), is(4));
+      assertThat(r.stringPropNoDefault().isSet(), is(false));
+
+      // A bad value keeps the previous snapshot, and records the error.
+      final SnapshotPropertyAccessor snapshot = accessor.snapshot();
+      write(file, "IntPropNoDefault=four\n");
+      assertThat(accessor.reload(), is(false));
+      assertThat(accessor.snapshot(), sameInstance(snapshot));
+      assertThat(intProp.get(), is(4));
+      assertThat(accessor.lastError(),
+          instanceOf(IllegalArgumentException.class));
+
+      // The background thread notices changes.
+      accessor.start(10);
+      try {
+        write(file, "IntPropNoDefault=5\n");
+        for (int i = 0; i < 500 && intProp.get() != 5; i++) {
+          Thread.sleep(10);
+        }
+        assertThat(intProp.get(), is(5));
+        assertThat(accessor.lastError(), nullValue());
+      } finally {
+        accessor.close();
+      }
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Tests {@link Interpolator}. */
+  @Test public void testInterpolator() {
+    final Map<String, String> map = new HashMap<String, String>();
+    map.put("db.host", "localhost");
+    map.put("db.port", "5432");
+    map.put("db.url", "jdbc:x://${db.host}:${db.port}/app");
+    map.put("db.desc", "${db.url} (${undefined})");
+    map.put("other", "$ {not} ${ unclosed");
+    final Interpolator interpolator = Interpolator.of(map);
+    assertThat(interpolator.get("db.url"), is("jdbc:x://localhost:5432/app"));
+    assertThat(interpolator.get("db.desc"),
+        is("jdbc:x://localhost:5432/app (${undefined})"));
+    assertThat(interpolator.get("other"), is("$ {not} ${ unclosed"));
+    assertThat(interpolator.recomputed().size(), is(5));
+
+    // Only the changed value and its dependents are expanded again.
+    map.put("db.port", "6543");
+    final Interpolator interpolator2 = interpolator.update(map);
+    assertThat(interpolator2.recomputed().toString(),
+        is("[db.desc, db.port, db.url]"));
+    assertThat(interpolator2.get("db.desc"),
+        is("jdbc:x://localhost:6543/app (${undefined})"));
+    assertThat(interpolator.get("db.url"), is("jdbc:x://localhost:5432/app"));
+
+    // Defining a previously undefined reference recomputes its dependents.
+    map.put("undefined", "now defined");
+    final Interpolator interpolator3 = interpolator2.update(map);
+    assertThat(interpolator3.recomputed().toString(),
+        is("[db.desc, undefined]"));
+    assertThat(interpolator3.get("db.desc"),
+        is("jdbc:x://localhost:6543/app (now defined)"));
+
+    // Cycles are detected when the interpolator is created.
+    map.put("db.host", "${db.desc}");
+    try {
+      final Interpolator interpolator4 = interpolator3.update(map);
+      fail("expected error, got " + interpolator4);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          is("cycle in property references: "
+              + "db.desc -> db.url -> db.host -> db.desc"));
+    }
+  }
+
+  /** Tests {@link SnapshotPropertyAccessor#interpolated} and
+   * {@link LayeredPropertyAccessor#interpolated}. */
+  @Test public void testInterpolated() {
+    final Properties properties = new Properties();
+    properties.setProperty("IntPropNoDefault", "${x}${y}");
+    properties.setProperty("StringPropNoDefault", "${x}-$${y}");
+    properties.setProperty("x", "1");
+    properties.setProperty("y", "2");
+    final FooResource r = Resources.create(
+        SnapshotPropertyAccessor.interpolated(properties, FooResource.class),
+        FooResource.class);
+    assertThat(r.intPropNoDefault().get(), is(12));
+    assertThat(r.stringPropNoDefault().get(), is("1-$2"));
+
+    // Plain snapshots do not expand references.
+    properties.remove("IntPropNoDefault");
+    final FooResource r2 = Resources.create(
+        SnapshotPropertyAccessor.of(properties, FooResource.class),
+        FooResource.class);
+    assertThat(r2.stringPropNoDefault().get(), is("${x}-$${y}"));
+
+    // A reference may be supplied by another source, and need not be
+    // declared in the interface.
+    final Map<String, String> defaults = new HashMap<String, String>();
+    defaults.put("StringPropNoDefault", "${dir}/${file}");
+    defaults.put("dir", "/tmp");
+    defaults.put("file", "a.txt");
+    final Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put("file", "b.txt");
+    final PropertySource defaultSource =
+        LayeredPropertyAccessor.source("defaults", defaults);
+    final LayeredPropertyAccessor accessor =
+        LayeredPropertyAccessor.interpolated(FooResource.class,
+            LayeredPropertyAccessor.source("overrides", overrides),
+            defaultSource);
+    final FooResource r3 = Resources.create(accessor, FooResource.class);
+    assertThat(r3.stringPropNoDefault().get(), is("/tmp/b.txt"));
+    assertThat(accessor.source(r3.stringPropNoDefault()),
+        sameInstance(defaultSource));
+    assertThat(r3.intPropNoDefault().isSet(), is(false));
+
+    defaults.put("dir", "${file}/${StringPropNoDefault}");
+    try {
+      final LayeredPropertyAccessor accessor2 =
+          LayeredPropertyAccessor.interpolated(FooResource.class,
+              defaultSource);
+      fail("expected error, got " + accessor2);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          startsWith("cycle in property references: "));
+    }
+  }
+
+  /** Tests that {@link ReloadingPropertyAccessor} and
+   * {@link LayeredPropertyAccessor#source(File)} read properties files in
+   * UTF-8 or ISO-8859-1, as bundle files are read. */
+  @Test public void testPropertiesFileEncoding() throws Exception {
+    final File file = File.createTempFile("encoding", ".properties");
+    try {
+      for (String encoding : new String[] {"UTF-8", "ISO-8859-1"}) {
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write("StringPropNoDefault=caf\u00e9\n".getBytes(encoding));
+        out.close();
+        final ReloadingPropertyAccessor accessor =
+            ReloadingPropertyAccessor.of(FooResource.class, file);
+        final FooResource r = Resources.create(accessor, FooResource.class);
+        assertThat(encoding, r.stringPropNoDefault().get(), is("caf\u00e9"));
+        accessor.close();
+        assertThat(encoding,
+            LayeredPropertyAccessor.source(file).get("StringPropNoDefault"),
+            is("caf\u00e9"));
+      }
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Tests {@link ReloadingPropertyAccessor#interpolated}. */
+  @Test public void testReloadingInterpolated() throws Exception {
+    final File file = File.createTempFile("reload", ".properties");
+    try {
+      write(file, "IntPropNoDefault=${x}${y}\nx=1\ny=2\n");
+      final ReloadingPropertyAccessor accessor =
+          ReloadingPropertyAccessor.interpolated(FooResource.class, file);
+      final FooResource r = Resources.create(accessor, FooResource.class);
+      assertThat(r.intPropNoDefault().get(), is(12));
+      write(file, "IntPropNoDefault=${x}${y}\nx=3\ny=2\n");
+      assertThat(accessor.reload(), is(true));
+      assertThat(r.intPropNoDefault().get(), is(32));
+
+      // A cycle keeps the previous snapshot.
+      write(file, "IntPropNoDefault=${x}${y}\nx=${y}\ny=${x}\n");
+      assertThat(accessor.reload(), is(false));
+      assertThat(r.intPropNoDefault().get(), is(32));
+      assertThat(accessor.lastError().getMessage(),
+          startsWith("cycle in property references: "));
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Tests that listeners subscribed to a {@link ReloadingPropertyAccessor}
+   * receive one notification per batch of changes. */
+  @Test public void testSubscribe() throws Exception {
+    final File file = File.createTempFile("reload", ".properties");
+    try {
+      write(file, "IntPropNoDefault=3\nStringPropNoDefault=abc\n");
+      final ReloadingPropertyAccessor accessor =
+          ReloadingPropertyAccessor.of(FooResource.class, file);
+      final FooResource r = Resources.create(accessor, FooResource.class);
+
+      // An executor that runs tasks only when we tell it to.
+      final List<Runnable> tasks = new ArrayList<Runnable>();
+      final Executor executor = new Executor() {
+        public void execute(Runnable command) {
+          tasks.add(command);
+        }
+      };
+      final List<Set<String>> all = new ArrayList<Set<String>>();
+      final List<Set<String>> ints = new ArrayList<Set<String>>();
+      final Subscription s1 =
+          accessor.subscribe(
+              new PropertyListener() {
+                public void onChange(Set<String> keys) {
+                  all.add(keys);
+                }
+              }, executor);
+      accessor.subscribe(
+          new PropertyListener() {
+            public void onChange(Set<String> keys) {
+              ints.add(keys);
+            }
+          }, executor, r.intPropNoDefault());
+
+      // Two reloads before the executor runs are merged into one
+      // notification for each listener.
+      write(file, "IntPropNoDefault=3\nStringPropNoDefault=def\n");
+      assertThat(accessor.reload(), is(true));
+      write(file, "IntPropNoDefault=4\nStringPropNoDefault=def\n"
+          + "OtherProperty=x\n");
+      assertThat(accessor.reload(), is(true));
+      assertThat(tasks.size(), is(2));
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+      assertThat(all.toString(),
+          is("[[IntPropNoDefault, OtherProperty, StringPropNoDefault]]"));
+      assertThat(ints.toString(), is("[[IntPropNoDefault]]"));
+
+      // A change that the second listener is not interested in, and that the
+      // first has unsubscribed from.
+      s1.close();
+      write(file, "IntPropNoDefault=4\n");
+      assertThat(accessor.reload(), is(true));
+      assertThat(tasks.size(), is(0));
+      assertThat(all.size(), is(1));
+      assertThat(ints.size(), is(1));
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Tests {@link LayeredPropertyAccessor}. */
+  @Test public void testLayered() {
+    final Properties overrides = new Properties();
+    overrides.setProperty("IntPropNoDefault", "1");
+    final Map<String, String> env = new HashMap<String, String>();
+    env.put("INTPROPNODEFAULT", "2");
+    env.put("COM_EXAMPLE_MY_INT_PROPERTY", "3");
+    env.put("StringPropNoDefault", "from env");
+    final Properties defaults = new Properties();
+    defaults.setProperty("StringPropNoDefault", "from file");
+    defaults.setProperty("BooleanPropNoDefault", "true");
+    defaults.setProperty("NotDeclared", "x");
+    final PropertySource overridesSource =
+        LayeredPropertyAccessor.source("overrides", overrides);
+    final PropertySource envSource = LayeredPropertyAccessor.environment(env);
+    final PropertySource defaultsSource =
+        LayeredPropertyAccessor.source("defaults", defaults);
+    final LayeredPropertyAccessor accessor =
+        LayeredPropertyAccessor.of(FooResource.class, overridesSource,
+            envSource, defaultsSource);
+    final FooResource r = Resources.create(accessor, FooResource.class);
+
+    assertThat(r.intPropNoDefault().get(), is(1));
+    assertThat(accessor.source(r.intPropNoDefault()),
+        sameInstance(overridesSource));
+    assertThat(r.intPropPathDefault().get(), is(3));
+    assertThat(accessor.source(r.intPropPathDefault()).name(),
+        is("environment"));
+    assertThat(r.stringPropNoDefault().get(), is("from env"));
+    assertThat(r.booleanPropNoDefault().get(), is(true));
+    assertThat(accessor.source(r.booleanPropNoDefault()),
+        sameInstance(defaultsSource));
+    assertThat(r.intPropDefaultFive().get(), is(-50));
+    assertThat(r.intPropDefaultFive().isSet(), is(false));
+    assertThat(accessor.source(r.intPropDefaultFive()), nullValue());
+
+    // Sources are read only when the accessor is created.
+    overrides.setProperty("IntPropNoDefault", "10");
+    assertThat(r.intPropNoDefault().get(), is(1));
+  }
+
+  /** Tests {@link MappedPropertyAccessor}. */
+  @Test public void testMapped() throws Exception {
+    final File file = File.createTempFile("mapped", ".cfg");
+    try {
+      final Map<String, String> values = new HashMap<String, String>();
+      values.put("IntPropNoDefault", "3");
+      values.put("StringPropNoDefault", "caf\u00e9");
+      values.put("com.example.my.int.property", "7");
+      assertThat(MappedPropertyAccessor.publish(file, values), is(1L));
+      final MappedPropertyAccessor accessor = MappedPropertyAccessor.of(file);
+      final FooResource r = Resources.create(accessor, FooResource.class);
+      assertThat(accessor.fileVersion(), is(1L));
+      assertThat(r.intPropNoDefault().get(), is(3));
+      assertThat(r.stringPropNoDefault().get(), is("caf\u00e9"));
+      assertThat(r.intPropPathDefault().get(), is(7));
+      assertThat(r.booleanPropNoDefault().isSet(), is(false));
+      assertThat(r.intPropDefaultFive().get(), is(-50));
+      assertThat(accessor.refresh(), is(false));
+
+      // A file that is touched, but has the same version, is not mapped
+      // again, then or on later refreshes.
+      final Object version = accessor.version();
+      assertThat(file.setLastModified(file.lastModified() - 5000), is(true));
+      assertThat(accessor.refresh(), is(false));
+      assertThat(accessor.refresh(), is(false));
+      assertThat(accessor.mapCount(), is(1));
+      assertThat(accessor.version(), sameInstance(version));
+
+      // Readers see the old version until they refresh.
+      values.put("IntPropNoDefault", "40");
+      values.remove("StringPropNoDefault");
+      assertThat(MappedPropertyAccessor.publish(file, values), is(2L));
+      assertThat(r.intPropNoDefault().get(), is(3));
+      assertThat(accessor.refresh(), is(true));
+      assertThat(accessor.fileVersion(), is(2L));
+      assertThat(accessor.mapCount(), is(2));
+      assertThat(r.intPropNoDefault().get(), is(40));
+      assertThat(r.stringPropNoDefault().isSet(), is(false));
+      accessor.close();
+
+      write(file, "IntPropNoDefault=3\n");
+      try {
+        final MappedPropertyAccessor accessor2 =
+            MappedPropertyAccessor.of(file);
+        fail("expected error, got " + accessor2);
+      } catch (IOException e) {
+        assertThat(e.getMessage(), startsWith("not a string table"));
+      }
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Tests {@link CachingPropertyAccessor} and
+   * {@link InMemoryPropertySource}. */
+  @Test public void testCaching() throws Exception {
+    final InMemoryPropertySource source = new InMemoryPropertySource();
+    source.put("IntPropNoDefault", "3");
+    source.put("StringPropNoDefault", "abc");
+    source.put("NotDeclared", "x");
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    final Executor executor = new Executor() {
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    };
+    final CachingPropertyAccessor accessor =
+        CachingPropertyAccessor.of(FooResource.class, source, 50, executor);
+    final FooResource r = Resources.create(accessor, FooResource.class);
+    assertThat(accessor.keys().contains("IntPropNoDefault"), is(true));
+    assertThat(accessor.keys().contains("NotDeclared"), is(false));
+    assertThat(source.fetchCount(), is(1L));
+
+    // All properties come from the single fetch.
+    assertThat(r.intPropNoDefault().get(), is(3));
+    assertThat(r.stringPropNoDefault().get(), is("abc"));
+    assertThat(r.booleanPropNoDefault().isSet(), is(false));
+    assertThat(source.fetchCount(), is(1L));
+
+    // A refresh that changes nothing keeps the snapshot.
+    final Object version = accessor.version();
+    assertThat(accessor.refresh(), is(false));
+    assertThat(accessor.version(), sameInstance(version));
+    assertThat(source.fetchCount(), is(2L));
+
+    // After the values expire, the timer gives the executor one refresh,
+    // however long it waits; meanwhile, reads return the old values.
+    source.put("IntPropNoDefault", "4");
+    for (int i = 0; tasks.isEmpty() && i < 500; i++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(120);
+    assertThat(r.intPropNoDefault().get(), is(3));
+    assertThat(r.stringPropNoDefault().get(), is("abc"));
+    assertThat(tasks.size(), is(1));
+    assertThat(source.fetchCount(), is(2L));
+    tasks.remove(0).run();
+    assertThat(source.fetchCount(), is(3L));
+    assertThat(r.intPropNoDefault().get(), is(4));
+    accessor.close();
+    tasks.clear();
+
+    // If the source fails, the previous values remain.
+    source.setFailure(new IOException("unavailable"));
+    source.put("IntPropNoDefault", "5");
+    assertThat(accessor.refresh(), is(false));
+    assertThat(accessor.lastError().getMessage(), is("unavailable"));
+    assertThat(r.intPropNoDefault().get(), is(4));
+    source.setFailure(null);
+    assertThat(accessor.refresh(), is(true));
+    assertThat(accessor.lastError(), nullValue());
+    assertThat(r.intPropNoDefault().get(), is(5));
+  }
+
+  /** Tests that every {@link ObservablePropertyAccessor} notifies
+   * subscribers when it publishes a version that changes values. */
+  @Test public void testSubscribeObservable() throws Exception {
+    final Executor direct = new Executor() {
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    final List<Set<String>> changes = new ArrayList<Set<String>>();
+    final PropertyListener listener = new PropertyListener() {
+      public void onChange(Set<String> keys) {
+        changes.add(keys);
+      }
+    };
+
+    // Layered
+    final Map<String, String> map = new HashMap<String, String>();
+    map.put("IntPropNoDefault", "1");
+    final LayeredPropertyAccessor layered =
+        LayeredPropertyAccessor.of(FooResource.class,
+            LayeredPropertyAccessor.source("map", map));
+    final FooResource r = Resources.create(layered, FooResource.class);
+    layered.subscribe(listener, direct);
+    assertThat(layered.refresh(), is(false));
+    map.put("IntPropNoDefault", "2");
+    map.put("StringPropNoDefault", "a");
+    assertThat(layered.refresh(), is(true));
+    assertThat(r.intPropNoDefault().get(), is(2));
+    assertThat(changes.toString(),
+        is("[[IntPropNoDefault, StringPropNoDefault]]"));
+
+    // Mapped
+    changes.clear();
+    final File file = File.createTempFile("mapped", ".cfg");
+    try {
+      MappedPropertyAccessor.publish(file, map);
+      final MappedPropertyAccessor mapped = MappedPropertyAccessor.of(file);
+      mapped.subscribe(listener, direct, r.stringPropNoDefault());
+      map.put("IntPropNoDefault", "30");
+      MappedPropertyAccessor.publish(file, map);
+      assertThat(mapped.refresh(), is(true));
+      assertThat(changes.size(), is(0));
+      map.put("StringPropNoDefault", "bcd");
+      MappedPropertyAccessor.publish(file, map);
+      assertThat(mapped.refresh(), is(true));
+      assertThat(changes.toString(), is("[[StringPropNoDefault]]"));
+      mapped.close();
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+
+    // Caching
+    changes.clear();
+    final InMemoryPropertySource source = new InMemoryPropertySource();
+    source.put("IntPropNoDefault", "3");
+    final CachingPropertyAccessor caching =
+        CachingPropertyAccessor.of(FooResource.class, source, 60000, direct);
+    final Subscription subscription = caching.subscribe(listener, direct);
+    source.put("IntPropNoDefault", "4");
+    assertThat(caching.refresh(), is(true));
+    assertThat(changes.toString(), is("[[IntPropNoDefault]]"));
+    subscription.close();
+    source.put("IntPropNoDefault", "5");
+    assertThat(caching.refresh(), is(true));
+    assertThat(changes.size(), is(1));
+    caching.close();
+  }
+
+  /** Tests that {@link PropertiesParser} gives the same results as
+   * {@link Properties#load(java.io.InputStream)}. */
+  @Test public void testPropertiesParser() throws IOException {
+    final String s = "# comment\n"
+        + "! another comment \\\n"
+        + "a=1\n"
+        + "  b : 2  \n"
+        + "c 3\r\n"
+        + "d\t=\t4\r"
+        + "\n"
+        + "e=five \\\n"
+        + "    and \\\r\n"
+        + "\tsix\n"
+        + "f\\=g\\ h=\\u00e9\\t\\\\\\x\n"
+        + "key\\\n"
+        + "  continued = value\n"
+        + "empty\n"
+        + "=no key\n"
+        + "   # not a comment\\\n"
+        + "last=\\";
+    final Properties properties = new Properties();
+    properties.load(new ByteArrayInputStream(s.getBytes("ISO-8859-1")));
+    final Map<String, String> expected = new HashMap<String, String>();
+    for (String name : properties.stringPropertyNames()) {
+      expected.put(name, properties.getProperty(name));
+    }
+    final Map<String, String> map =
+        PropertiesParser.parse(ByteBuffer.wrap(s.getBytes("UTF-8")));
+    assertThat(map, is(expected));
+    assertThat(map.get("e"), is("five and six"));
+    assertThat(map.get("f=g h"), is("\u00e9\t\\x"));
+    assertThat(map.get("keycontinued"), is("value"));
+
+    // UTF-8, including a supplementary character
+    final String utf8 = "k=caf\u00e9 \ud83d\ude00\n";
+    assertThat(
+        PropertiesParser.parse(ByteBuffer.wrap(utf8.getBytes("UTF-8")))
+            .get("k"),
+        is("caf\u00e9 \ud83d\ude00"));
+
+    // Not valid UTF-8, so read as ISO-8859-1
+    assertThat(
+        PropertiesParser.parse(
+            ByteBuffer.wrap("k=caf\u00e9\n".getBytes("ISO-8859-1")))
+            .get("k"),
+        is("caf\u00e9"));
+
+    try {
+      final Map<String, String> map2 =
+          PropertiesParser.parse(ByteBuffer.wrap("k=\\u12".getBytes("UTF-8")));
+      fail("expected error, got " + map2);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), is("Malformed \\uxxxx encoding."));
+    }
+  }
+
+  /** Tests that {@link ShadowResourceBundle} loads the properties files of
+   * its class and its super-classes, and links them. */
+  @Test public void testShadowResourceBundle() throws IOException {
+    final ResourceBundle bundle = new ShadowChild();
+    assertThat(bundle.getString("Greeting"), is("salut"));
+    assertThat(bundle.getString("OnlyChild"), is("child"));
+    assertThat(bundle.getString("OnlyParent"), is("parent"));
+    final Set<String> keys = new TreeSet<String>();
+    for (Enumeration<String> e = bundle.getKeys(); e.hasMoreElements();) {
+      keys.add(e.nextElement());
+    }
+    assertThat(keys.toString(), is("[Greeting, OnlyChild, OnlyParent]"));
+    try {
+      final String s = bundle.getString("Missing");
+      fail("expected error, got " + s);
+    } catch (MissingResourceException e) {
+      assertThat(e.getKey(), is("Missing"));
+    }
+  }
+
+  /** Tests {@link LongProp}, {@link DurationProp}, {@link ByteSizeProp},
+   * {@link EnumProp} and {@link ListProp}. */
+  @Test public void testTypedProps() {
+    final Properties properties = new Properties();
+    final TypedPropResource r =
+        Resources.create(properties, TypedPropResource.class);
+    assertThat(r.longProp().get(), is(10000000000L));
+    assertThat(r.timeout().get(), is(30000L));
+    assertThat(r.timeout().get(TimeUnit.SECONDS), is(30L));
+    assertThat(r.bufferSize().get(), is(64L * 1024 * 1024));
+    assertThat(r.unit().get(), is(TimeUnit.SECONDS));
+    assertThat(r.hosts().get(), is(Arrays.asList("a", "b", "c")));
+    assertThat(r.unitNoDefault().get(TimeUnit.DAYS), is(TimeUnit.DAYS));
+
+    properties.setProperty("LongProp", "-5");
+    properties.setProperty("Timeout", "250ms");
+    properties.setProperty("BufferSize", "2k");
+    properties.setProperty("Unit", "MILLISECONDS");
+    properties.setProperty("Hosts", "");
+    properties.setProperty("UnitNoDefault", "Hours");
+    assertThat(r.longProp().get(), is(-5L));
+    assertThat(r.timeout().get(), is(250L));
+    assertThat(r.bufferSize().get(), is(2048L));
+    assertThat(r.unit().get(), is(TimeUnit.MILLISECONDS));
+    assertThat(r.hosts().get().size(), is(0));
+    assertThat(r.unitNoDefault().get(), is(TimeUnit.HOURS));
+
+    // Each form of duration
+    final String[] durations = {"5", "5ms", "5s", "5 m", "5min", "5h", "5D"};
+    final long[] millis = {5L, 5L, 5000L, 300000L, 300000L, 18000000L,
+      432000000L};
+    for (int i = 0; i < durations.length; i++) {
+      properties.setProperty("Timeout", durations[i]);
+      assertThat(r.timeout().get(), is(millis[i]));
+    }
+
+    // Each form of byte size
+    final String[] sizes = {"7", "7b", "7 B", "7K", "7kb", "7KiB", "7m",
+      "7g", "7t", "7PiB"};
+    final long[] bytes = {7L, 7L, 7L, 7L << 10, 7L << 10, 7L << 10, 7L << 20,
+      7L << 30, 7L << 40, 7L << 50};
+    for (int i = 0; i < sizes.length; i++) {
+      properties.setProperty("BufferSize", sizes[i]);
+      assertThat(r.bufferSize().get(), is(bytes[i]));
+    }
+
+    // Invalid values
+    properties.setProperty("Timeout", "5 weeks");
+    try {
+      final long actual = r.timeout().get();
+      fail("expected error, got " + actual);
+    } catch (NumberFormatException e) {
+      assertThat(e.getMessage(), is("Invalid duration: \"5 weeks\""));
+    }
+    properties.setProperty("BufferSize", "99999999999g");
+    try {
+      final long actual = r.bufferSize().get();
+      fail("expected error, got " + actual);
+    } catch (NumberFormatException e) {
+      assertThat(e.getMessage(), is("Invalid byte size: \"99999999999g\""));
+    }
+    for (String size : new String[] {"64ib", "ib", "b", "k", "7kk", "7x"}) {
+      properties.setProperty("BufferSize", size);
+      try {
+        final long actual = r.bufferSize().get();
+        fail("expected error, got " + actual);
+      } catch (NumberFormatException e) {
+        assertThat(e.getMessage(), is("Invalid byte size: \"" + size + "\""));
+      }
+    }
+    properties.setProperty("Unit", "fortnights");
+    try {
+      final TimeUnit actual = r.unit().get();
+      fail("expected error, got " + actual);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          is("No enum constant java.util.concurrent.TimeUnit.fortnights"));
+    }
+
+    // In a snapshot, values are parsed once, and bad values fail early.
+    try {
+      final SnapshotPropertyAccessor snapshot =
+          SnapshotPropertyAccessor.of(properties, TypedPropResource.class);
+      fail("expected error, got " + snapshot);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          startsWith("invalid value '"));
+    }
+    properties.setProperty("Timeout", "1h");
+    properties.setProperty("BufferSize", "1m");
+    properties.setProperty("Unit", "days");
+    properties.setProperty("Hosts", "x,y");
+    final TypedPropResource r2 =
+        Resources.create(
+            SnapshotPropertyAccessor.of(properties, TypedPropResource.class),
+            TypedPropResource.class);
+    assertThat(r2.timeout().get(TimeUnit.MINUTES), is(60L));
+    assertThat(r2.bufferSize().get(), is(1L << 20));
+    assertThat(r2.unit().get(), is(TimeUnit.DAYS));
+    assertThat(r2.hosts().get(), is(Arrays.asList("x", "y")));
+    assertThat(r2.hosts().get(), sameInstance(r2.hosts().get()));
+  }
+
+  /** Tests that {@link LongProp} and {@link ObjectProp} properties work with
+   * an accessor that implements only {@link PropertyAccessor}, by parsing
+   * the string value. */
+  @Test public void testUntypedAccessor() {
+    final Map<String, String> map = new HashMap<String, String>();
+    final TypedPropResource r =
+        Resources.create(new MapAccessor(map), TypedPropResource.class);
+    assertThat(r.longProp().get(), is(10000000000L));
+    assertThat(r.longProp().get(3L), is(3L));
+    assertThat(r.timeout().get(TimeUnit.SECONDS), is(30L));
+    assertThat(r.bufferSize().get(), is(64L * 1024 * 1024));
+    assertThat(r.unit().get(), is(TimeUnit.SECONDS));
+    assertThat(r.hosts().get(), is(Arrays.asList("a", "b", "c")));
+    assertThat(r.unitNoDefault().get(TimeUnit.DAYS), is(TimeUnit.DAYS));
+    try {
+      final TimeUnit actual = r.unitNoDefault().get();
+      fail("expected error, got " + actual);
+    } catch (NoDefaultValueException e) {
+      assertThat(e.getMessage(),
+          is("Property UnitNoDefault is not set and has no default value"));
+    }
+
+    map.put("LongProp", "-5");
+    map.put("Timeout", "250ms");
+    map.put("BufferSize", "2k");
+    map.put("Unit", "MILLISECONDS");
+    map.put("Hosts", "x");
+    map.put("UnitNoDefault", "Hours");
+    assertThat(r.longProp().get(), is(-5L));
+    assertThat(r.longProp().get(3L), is(-5L));
+    assertThat(r.timeout().get(), is(250L));
+    assertThat(r.bufferSize().get(), is(2048L));
+    assertThat(r.unit().get(), is(TimeUnit.MILLISECONDS));
+    assertThat(r.hosts().get(), is(Arrays.asList("x")));
+    assertThat(r.unitNoDefault().get(TimeUnit.DAYS), is(TimeUnit.HOURS));
+  }
+
+  /** Tests that a property caches its value while the version of its
+   * {@link VersionedPropertyAccessor} does not change. */
+  @Test public void testVersionedAccessor() {
+    final Properties properties = new Properties();
+    properties.setProperty("IntPropNoDefault", "3");
+    properties.setProperty("BooleanPropNoDefault", "true");
+    final CountingAccessor accessor = new CountingAccessor(
+        SnapshotPropertyAccessor.of(properties, FooResource.class));
+    final FooResource r = Resources.create(accessor, FooResource.class);
+    final IntProp intProp = r.intPropNoDefault();
+    final BooleanProp booleanProp = r.booleanPropNoDefault();
+    for (int i = 0; i < 3; i++) {
+      assertThat(intProp.get(), is(3));
+      assertThat(booleanProp.get(), is(true));
+    }
+    assertThat(accessor.count, is(2));
+
+    properties.setProperty("IntPropNoDefault", "4");
+    accessor.snapshot =
+        SnapshotPropertyAccessor.of(properties, FooResource.class);
+    for (int i = 0; i < 3; i++) {
+      assertThat(intProp.get(), is(4));
+      assertThat(booleanProp.get(), is(true));
+    }
+    assertThat(accessor.count, is(4));
+
+    // A value that is not set is not cached.
+    try {
+      final String actual = r.stringPropNoDefault().get();
+      fail("expected error, got " + actual);
+    } catch (NoDefaultValueException e) {
+      assertThat(accessor.count, is(5));
+    }
+  }
+
+  /** Tests that {@link Inst#table()} looks for the bundle in the class
+   * loader of the resource interface, not the thread's context class
+   * loader, and that each class loader has its own tables. */
+  @Test public void testContextClassLoader() throws Exception {
+    final String base = "net.hydromatic.resource.test.ContextResource";
+    final File dir = File.createTempFile("resource", "");
+    assertTrue(dir.delete());
+    final File file = new File(dir,
+        "net/hydromatic/resource/test/ContextResource.properties");
+    assertTrue(file.getParentFile().mkdirs());
+    final Thread thread = Thread.currentThread();
+    final ClassLoader previous = thread.getContextClassLoader();
+    try {
+      write(file, "Hello=hello from context, {0}!\n");
+      final ClassLoader loader =
+          new URLClassLoader(new URL[] {dir.toURI().toURL()}, previous);
+      thread.setContextClassLoader(loader);
+      final ReloadResource r = Resources.create(base, ReloadResource.class);
+      final Inst hello = r.hello("Fred").localize(Locale.ROOT);
+      assertThat(hello.str(), is("hello, Fred!"));
+      assertThat(hello.table(),
+          sameInstance(MessageTable.of(base, Locale.ROOT,
+              ReloadResource.class.getClassLoader())));
+      assertThat(hello.table().get("Hello"), nullValue());
+
+      // The context class loader can see the bundle, and has its own table
+      final MessageTable table = MessageTable.of(base, Locale.ROOT);
+      assertThat(table, not(sameInstance(hello.table())));
+      assertThat(table.get("Hello"), is("hello from context, {0}!"));
+      assertThat(MessageTable.of(base, Locale.ROOT, loader),
+          sameInstance(table));
+    } finally {
+      thread.setContextClassLoader(previous);
+      MessageTable.clearCache();
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Writes a file, and changes its modification time so that the change is
+   * noticed even if the file system has coarse timestamps. */
+  private static void write(File file, String s) throws IOException {
+    final long lastModified = file.lastModified();
+    final Writer w = new FileWriter(file);
+    w.write(s);
+    w.close();
+    //noinspection ResultOfMethodCallIgnored
+    file.setLastModified(Math.max(lastModified + 2000,
+        System.currentTimeMillis()));
+  }
+
   @Test public void testIntProp() {
     final Properties properties = new Properties();
     final FooResource r = Resources.create(properties, FooResource.class);
@@ -537,6 +1838,92 @@ public class ResourceTest {
     assertThat(p.isSet(), is(true));
   }
 
+  /** Tests resources annotated {@link Stackless}. */
+  @Test public void testStackless() {
+    final StacklessResource r = Resources.create(StacklessResource.class);
+    final IllegalArgumentException e = r.illegal("x").ex();
+    assertThat(e.getMessage(), is("illegal x"));
+    assertThat(e.getStackTrace().length, is(0));
+
+    // An exception with a public (String, Throwable, boolean, boolean)
+    // constructor never fills in its stack trace.
+    final int fillCount = NoStackException.FILL_COUNT.get();
+    final NoStackException e2 = r.noStack().ex();
+    assertThat(e2.getMessage(), is("no stack"));
+    assertThat(e2.getStackTrace().length, is(0));
+    assertThat(NoStackException.FILL_COUNT.get(), is(fillCount));
+
+    // If that constructor is protected, it is not made accessible; the
+    // stack trace is filled in, then discarded.
+    final NoStackException e5 = r.protectedNoStack().ex();
+    assertThat(e5, instanceOf(ProtectedNoStackException.class));
+    assertThat(e5.getStackTrace().length, is(0));
+    assertThat(NoStackException.FILL_COUNT.get(), is(fillCount + 1));
+
+    // Likewise RuntimeException, whose stack trace is therefore not
+    // writable.
+    final RuntimeException e4 = r.runtime().ex();
+    assertThat(e4.getStackTrace().length, is(0));
+    e4.setStackTrace(new Throwable().getStackTrace());
+    assertThat(e4.getStackTrace().length, is(0));
+
+    // Frames of the exception's constructor and of Resources are removed.
+    final Throwable cause = new NullPointerException();
+    final IllegalStateException e3 = r.shallow().ex(cause);
+    assertThat(e3.getCause(), sameInstance(cause));
+    final StackTraceElement[] stack = e3.getStackTrace();
+    assertThat(stack.length, is(2));
+    assertThat(stack[0].getClassName(), is(ResourceTest.class.getName()));
+    assertThat(stack[0].getMethodName(), is("testStackless"));
+
+    // The frame of a constructor that creates the exception is kept.
+    final StackTraceElement[] stack2 = new ExceptionHolder(r).e.getStackTrace();
+    assertThat(stack2[0].getClassName(),
+        is(ExceptionHolder.class.getName()));
+    assertThat(stack2[0].getMethodName(), is("<init>"));
+
+    // Exceptions of resources without the annotation have full stacks.
+    assertThat(fooResource.illArg("y").ex().getStackTrace().length > 2,
+        is(true));
+  }
+
+  /** Tests resources annotated {@link Throttle}. */
+  @Test public void testThrottle() {
+    final ThrottledResource r = Resources.create(ThrottledResource.class);
+    final ExceptionThrottle throttle = r.connectFailed("db0").info().throttle;
+    assertThat(throttle, notNullValue());
+    final long suppressed0 = throttle.suppressedCount();
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < 7; i++) {
+      final IllegalStateException e = r.connectFailed("db1").ex();
+      assertThat(e.getMessage(), is("failed to connect to db1"));
+      b.append(e.getStackTrace().length == 0 ? '-' : 'x');
+    }
+    // The first exception opens the window; then one in 3 has a stack.
+    assertThat(b.toString(), is("x-x--x-"));
+    assertThat(throttle.suppressedCount() - suppressed0, is(4L));
+    assertThat(throttle.count(r.connectFailed("db1")), is(7L));
+
+    // Different arguments have their own window.
+    final IllegalStateException e = r.connectFailed("db2").ex();
+    assertThat(e.getMessage(), is("failed to connect to db2"));
+    assertThat(e.getStackTrace().length > 0, is(true));
+    assertThat(throttle.count(r.connectFailed("db2")), is(1L));
+    assertThat(throttle.count(r.connectFailed("db3")), is(0L));
+
+    // When there are too many windows, the least recently used are
+    // discarded; a window that is in use is kept.
+    for (int i = 0; i < ExceptionThrottle.MAX_WINDOWS + 100; i++) {
+      r.connectFailed("host" + i).ex();
+      if (i % 100 == 0) {
+        r.connectFailed("db1").ex();
+      }
+    }
+    assertThat(throttle.count(r.connectFailed("db1")) > 7L, is(true));
+    assertThat(throttle.count(r.connectFailed("db2")), is(0L));
+    assertThat(throttle.count(r.connectFailed("host0")), is(0L));
+  }
+
   @Test public void testBadDefaultProp() {
     final Properties properties = new Properties();
 
@@ -610,6 +1997,13 @@ public MyExceptionRequiresCause(String message, Throwable cause) {
     }
   }
 
+  /** Resource whose properties file is written by
+   * {@link #testMessageTableReload()}. */
+  public interface ReloadResource {
+    @BaseMessage("hello, {0}!")
+    Inst hello(String name);
+  }
+
   /** A resource object to be tested. Has one of each flaw. */
   public interface FooResource {
     @BaseMessage("hello, world!")
@@ -692,6 +2086,235 @@ interface BadDoubleResource {
     @Default("1.5xx")
     DoubleProp doublePropBadDefault();
   }
+
+  /** Accessor that counts how many values are read, and whose version is
+   * its current snapshot. */
+  /** Bundle whose properties are in "ResourceTest$ShadowParent.properties".
+   * (Names of bundles for a locale would contain an underscore, which
+   * checkstyle does not allow.) */
+  public static class ShadowParent extends ShadowResourceBundle {
+    public ShadowParent() throws IOException {
+    }
+  }
+
+  /** Bundle that inherits properties from {@link ShadowParent}. */
+  public static class ShadowChild extends ShadowParent {
+    public ShadowChild() throws IOException {
+    }
+  }
+
+  private static class CountingAccessor
+      implements VersionedPropertyAccessor, TypedPropertyAccessor {
+    SnapshotPropertyAccessor snapshot;
+    int count;
+
+    CountingAccessor(SnapshotPropertyAccessor snapshot) {
+      this.snapshot = snapshot;
+    }
+
+    public Object version() {
+      return snapshot;
+    }
+
+    public boolean isSet(Prop p) {
+      return snapshot.isSet(p);
+    }
+
+    public int intValue(IntProp p) {
+      ++count;
+      return snapshot.intValue(p);
+    }
+
+    public int intValue(IntProp p, int defaultValue) {
+      ++count;
+      return snapshot.intValue(p, defaultValue);
+    }
+
+    public String stringValue(StringProp p) {
+      ++count;
+      return snapshot.stringValue(p);
+    }
+
+    public String stringValue(StringProp p, String defaultValue) {
+      ++count;
+      return snapshot.stringValue(p, defaultValue);
+    }
+
+    public boolean booleanValue(BooleanProp p) {
+      ++count;
+      return snapshot.booleanValue(p);
+    }
+
+    public boolean booleanValue(BooleanProp p, boolean defaultValue) {
+      ++count;
+      return snapshot.booleanValue(p, defaultValue);
+    }
+
+    public double doubleValue(DoubleProp p) {
+      ++count;
+      return snapshot.doubleValue(p);
+    }
+
+    public double doubleValue(DoubleProp p, double defaultValue) {
+      ++count;
+      return snapshot.doubleValue(p, defaultValue);
+    }
+
+    public long longValue(LongProp p) {
+      ++count;
+      return snapshot.longValue(p);
+    }
+
+    public long longValue(LongProp p, long defaultValue) {
+      ++count;
+      return snapshot.longValue(p, defaultValue);
+    }
+
+    public <T> T objectValue(ObjectProp<T> p) {
+      ++count;
+      return snapshot.objectValue(p);
+    }
+
+    public <T> T objectValue(ObjectProp<T> p, T defaultValue) {
+      ++count;
+      return snapshot.objectValue(p, defaultValue);
+    }
+  }
+
+  /** Accessor that implements only the methods of {@link PropertyAccessor},
+   * as an accessor written outside this library would. */
+  private static class MapAccessor implements PropertyAccessor {
+    final Map<String, String> map;
+
+    MapAccessor(Map<String, String> map) {
+      this.map = map;
+    }
+
+    public boolean isSet(Prop p) {
+      return map.containsKey(p.info().key);
+    }
+
+    public int intValue(IntProp p) {
+      return Integer.parseInt(map.get(p.info().key));
+    }
+
+    public int intValue(IntProp p, int defaultValue) {
+      return isSet(p) ? intValue(p) : defaultValue;
+    }
+
+    public String stringValue(StringProp p) {
+      return map.get(p.info().key);
+    }
+
+    public String stringValue(StringProp p, String defaultValue) {
+      return isSet(p) ? stringValue(p) : defaultValue;
+    }
+
+    public boolean booleanValue(BooleanProp p) {
+      return Boolean.parseBoolean(map.get(p.info().key));
+    }
+
+    public boolean booleanValue(BooleanProp p, boolean defaultValue) {
+      return isSet(p) ? booleanValue(p) : defaultValue;
+    }
+
+    public double doubleValue(DoubleProp p) {
+      return Double.parseDouble(map.get(p.info().key));
+    }
+
+    public double doubleValue(DoubleProp p, double defaultValue) {
+      return isSet(p) ? doubleValue(p) : defaultValue;
+    }
+  }
+
+  /** Resource with properties of each of the typed property classes. */
+  public interface TypedPropResource {
+    @Default("10000000000")
+    LongProp longProp();
+
+    @Default("30s")
+    DurationProp timeout();
+
+    @Default("64MiB")
+    ByteSizeProp bufferSize();
+
+    @Default("seconds")
+    EnumProp<TimeUnit> unit();
+
+    @Default("a, b,c")
+    ListProp hosts();
+
+    EnumProp<TimeUnit> unitNoDefault();
+  }
+
+  /** Resource whose exceptions have no stack trace. */
+  @Stackless
+  public interface StacklessResource {
+    @BaseMessage("illegal {0}")
+    ExInst<IllegalArgumentException> illegal(String s);
+
+    @BaseMessage("no stack")
+    ExInst<NoStackException> noStack();
+
+    @BaseMessage("protected no stack")
+    ExInst<ProtectedNoStackException> protectedNoStack();
+
+    @BaseMessage("runtime")
+    ExInst<RuntimeException> runtime();
+
+    @BaseMessage("shallow")
+    @Stackless(depth = 2)
+    ExInstWithCause<IllegalStateException> shallow();
+  }
+
+  /** Resource whose exceptions are throttled. */
+  public interface ThrottledResource {
+    @BaseMessage("failed to connect to {0}")
+    @Throttle(windowMillis = 60000, sample = 3)
+    ExInst<IllegalStateException> connectFailed(String host);
+  }
+
+  /** Exception that has a public constructor that can suppress its stack
+   * trace, and counts how many times its stack trace is filled in. */
+  public static class NoStackException extends RuntimeException {
+    static final AtomicInteger FILL_COUNT = new AtomicInteger();
+
+    public NoStackException(String message, Throwable cause) {
+      super(message, cause);
+    }
+
+    public NoStackException(String message, Throwable cause,
+        boolean enableSuppression, boolean writableStackTrace) {
+      super(message, cause, enableSuppression, writableStackTrace);
+    }
+
+    @Override public synchronized Throwable fillInStackTrace() {
+      FILL_COUNT.incrementAndGet();
+      return super.fillInStackTrace();
+    }
+  }
+
+  /** Exception whose constructor that can suppress its stack trace is
+   * protected. */
+  public static class ProtectedNoStackException extends NoStackException {
+    public ProtectedNoStackException(String message, Throwable cause) {
+      super(message, cause);
+    }
+
+    protected ProtectedNoStackException(String message, Throwable cause,
+        boolean enableSuppression, boolean writableStackTrace) {
+      super(message, cause, enableSuppression, writableStackTrace);
+    }
+  }
+
+  /** Creates an exception in its constructor. */
+  private static class ExceptionHolder {
+    final IllegalStateException e;
+
+    ExceptionHolder(StacklessResource r) {
+      e = r.shallow().ex(null);
+    }
+  }
 }
 
 // End ResourceTest.java